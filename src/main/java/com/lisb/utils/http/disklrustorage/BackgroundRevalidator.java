@@ -0,0 +1,75 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link EntryRevalidator} をスレッド数と待ち行列の長さを制限したスレッドプールで実行する。
+ */
+// 同じ URI の再検証は実行中か待ち行列にある間は重ねて登録しない。
+// 待ち行列がいっぱいの場合は登録を見送り、次の参照で改めて登録する。
+final class BackgroundRevalidator {
+
+	private final EntryRevalidator revalidator;
+	private final ThreadPoolExecutor executor;
+	private final Set<String> scheduled = new HashSet<String>();
+
+	BackgroundRevalidator(final EntryRevalidator revalidator,
+			final int threads, final int maxPending) {
+		this.revalidator = revalidator;
+		executor = new ThreadPoolExecutor(threads, threads, 0,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+						maxPending), new ThreadFactory() {
+					public Thread newThread(final Runnable r) {
+						final Thread thread = new Thread(r,
+								"DiskLruHttpCacheStorage-revalidation");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * @return 再検証を登録したかどうか。同じ URI の再検証が登録済みか、待ち行列がいっぱいの場合は false
+	 */
+	boolean schedule(final String uri) {
+		synchronized (scheduled) {
+			if (!scheduled.add(uri)) {
+				return false;
+			}
+		}
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						revalidator.revalidate(uri);
+					} catch (IOException e) {
+						// 次の参照で再検証する
+					} finally {
+						done(uri);
+					}
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			done(uri);
+			return false;
+		}
+	}
+
+	private void done(final String uri) {
+		synchronized (scheduled) {
+			scheduled.remove(uri);
+		}
+	}
+
+	void shutdown() {
+		executor.shutdownNow();
+	}
+}
@@ -0,0 +1,70 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.util.Locale;
+
+/**
+ * CachingHttpClient が {@link ch.boye.httpclientandroidlib.client.cache.HttpCacheStorage}
+ * に渡すキー(正規化された URI)を解釈するためのユーティリティ。
+ */
+// Vary を持つレスポンスのキーは CacheKeyGenerator#getVariantKey によって
+// "{Accept-Encoding=gzip}http://example.com:80/path" のような形式になる。
+final class CacheKeys {
+
+	private CacheKeys() {
+	}
+
+	/**
+	 * Variant を表す接頭辞を取り除いた URI を返す。
+	 */
+	static String stripVariant(final String key) {
+		if (key.length() == 0 || key.charAt(0) != '{') {
+			return key;
+		}
+		final int end = key.indexOf('}');
+		return end < 0 ? key : key.substring(end + 1);
+	}
+
+	/**
+	 * Variant を表す接頭辞 (例: "{Accept-Encoding=gzip}") を返す。
+	 * 
+	 * @return Variant のキーでない場合は null
+	 */
+	static String getVariantPrefix(final String key) {
+		if (key.length() == 0 || key.charAt(0) != '{') {
+			return null;
+		}
+		final int end = key.indexOf('}');
+		return end < 0 ? null : key.substring(0, end + 1);
+	}
+
+	/**
+	 * キーに含まれるホスト名を小文字で返す。ポート番号やユーザー情報は含まない。
+	 * 
+	 * @return ホスト名を持たないキーの場合は空文字列
+	 */
+	static String getHost(final String key) {
+		final String uri = stripVariant(key);
+		final int schemeEnd = uri.indexOf("://");
+		if (schemeEnd < 0) {
+			return "";
+		}
+		int start = schemeEnd + 3;
+		int end = uri.length();
+		for (int i = start; i < end; i++) {
+			final char c = uri.charAt(i);
+			if (c == '/' || c == '?' || c == '#') {
+				end = i;
+				break;
+			}
+		}
+		final int userInfoEnd = uri.lastIndexOf('@', end - 1);
+		if (userInfoEnd >= start) {
+			start = userInfoEnd + 1;
+		}
+		int portStart = uri.lastIndexOf(':', end - 1);
+		if (portStart >= start && uri.lastIndexOf(']', end - 1) < portStart) {
+			end = portStart;
+		}
+		return uri.substring(start, end).toLowerCase(Locale.US);
+	}
+}
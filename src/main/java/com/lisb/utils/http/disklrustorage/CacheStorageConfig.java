@@ -0,0 +1,463 @@
+package com.lisb.utils.http.disklrustorage;
+
+/**
+ * {@link DiskLruHttpCacheStorage} の動作設定。
+ */
+public class CacheStorageConfig {
+
+	/** 期限切れエントリの掃除間隔(ミリ秒)のデフォルト値。0 以下の場合は掃除スレッドを起動しない。 */
+	public static final long DEFAULT_EXPIRY_SWEEP_INTERVAL = 0;
+
+	/** 鮮度の期限が過ぎてから掃除の対象になるまでの猶予期間(ミリ秒)のデフォルト値。 */
+	public static final long DEFAULT_EXPIRED_ENTRY_GRACE_PERIOD = 60 * 60 * 1000L;
+
+	/** ヒープ外に保持するボディの最大バイト数のデフォルト値。 */
+	public static final int DEFAULT_OFF_HEAP_MAX_BODY_SIZE = 64 * 1024;
+
+	/** {@link Durability#PERIODIC} で fsync する間隔(ミリ秒)のデフォルト値。 */
+	public static final long DEFAULT_SYNC_INTERVAL = 1000;
+
+	/** バックグラウンドで再検証するスレッド数のデフォルト値。 */
+	public static final int DEFAULT_REVALIDATION_THREADS = 1;
+
+	/** 実行を待つ再検証の最大数のデフォルト値。 */
+	public static final int DEFAULT_MAX_PENDING_REVALIDATIONS = 64;
+
+	/** バックグラウンドの処理を実行するスレッド数のデフォルト値。 */
+	public static final int DEFAULT_MAINTENANCE_THREADS = 1;
+
+	/** 書き込んだ直後のエントリを保持する期間(ミリ秒)のデフォルト値。 */
+	public static final long DEFAULT_RECENT_WRITES_TTL = 1000;
+
+	private long expirySweepInterval = DEFAULT_EXPIRY_SWEEP_INTERVAL;
+	private long expiredEntryGracePeriod = DEFAULT_EXPIRED_ENTRY_GRACE_PERIOD;
+	private int maxEntryCount;
+	private long maxHostBytes;
+	private int maxHostEntryCount;
+	private boolean verifyBodyChecksum;
+	private boolean uriIndexEnabled;
+	private String[] tagHeaders = new String[0];
+	private long offHeapCacheSize;
+	private int offHeapMaxBodySize = DEFAULT_OFF_HEAP_MAX_BODY_SIZE;
+	private boolean lockFreeReadsEnabled;
+	private long journalFlushDelay;
+	private Durability durability = Durability.NONE;
+	private long syncInterval = DEFAULT_SYNC_INTERVAL;
+	private long groupCommitDelay;
+	private EntryRevalidator entryRevalidator;
+	private int revalidationThreads = DEFAULT_REVALIDATION_THREADS;
+	private int maxPendingRevalidations = DEFAULT_MAX_PENDING_REVALIDATIONS;
+	private int maintenanceThreads = DEFAULT_MAINTENANCE_THREADS;
+	private long maintenanceIoRate;
+	private long indexCompactionInterval;
+	private long foregroundWriteRate;
+	private long prefetchWriteRate;
+	private long maxEntrySize;
+	private long recentWritesSize;
+	private long recentWritesTtl = DEFAULT_RECENT_WRITES_TTL;
+	private Ticker ticker = Ticker.SYSTEM;
+
+	public long getExpirySweepInterval() {
+		return expirySweepInterval;
+	}
+
+	/**
+	 * 再検証できない期限切れエントリをバックグラウンドで削除する間隔を設定する。
+	 * 
+	 * @param expirySweepInterval
+	 *            ミリ秒。0 以下の場合はバックグラウンドでの削除を行わない。
+	 */
+	public void setExpirySweepInterval(long expirySweepInterval) {
+		this.expirySweepInterval = expirySweepInterval;
+	}
+
+	public long getExpiredEntryGracePeriod() {
+		return expiredEntryGracePeriod;
+	}
+
+	/**
+	 * 鮮度の期限が過ぎてから削除の対象になるまでの猶予期間を設定する。
+	 * 
+	 * @param expiredEntryGracePeriod
+	 *            ミリ秒
+	 */
+	public void setExpiredEntryGracePeriod(long expiredEntryGracePeriod) {
+		if (expiredEntryGracePeriod < 0) {
+			throw new IllegalArgumentException("expiredEntryGracePeriod < 0");
+		}
+		this.expiredEntryGracePeriod = expiredEntryGracePeriod;
+	}
+
+	public int getMaxEntryCount() {
+		return maxEntryCount;
+	}
+
+	/**
+	 * キャッシュ全体のエントリ数の上限を設定する。
+	 * 
+	 * @param maxEntryCount
+	 *            0 以下の場合は制限しない。
+	 */
+	public void setMaxEntryCount(int maxEntryCount) {
+		this.maxEntryCount = maxEntryCount;
+	}
+
+	public long getMaxHostBytes() {
+		return maxHostBytes;
+	}
+
+	/**
+	 * ホストごとのバイト数の上限を設定する。超えた場合は同じホストのエントリを LRU 順に削除する。
+	 * 
+	 * @param maxHostBytes
+	 *            0 以下の場合は制限しない。
+	 */
+	public void setMaxHostBytes(long maxHostBytes) {
+		this.maxHostBytes = maxHostBytes;
+	}
+
+	public int getMaxHostEntryCount() {
+		return maxHostEntryCount;
+	}
+
+	/**
+	 * ホストごとのエントリ数の上限を設定する。超えた場合は同じホストのエントリを LRU 順に削除する。
+	 * 
+	 * @param maxHostEntryCount
+	 *            0 以下の場合は制限しない。
+	 */
+	public void setMaxHostEntryCount(int maxHostEntryCount) {
+		this.maxHostEntryCount = maxHostEntryCount;
+	}
+
+	public boolean isVerifyBodyChecksum() {
+		return verifyBodyChecksum;
+	}
+
+	/**
+	 * レスポンスボディを読み込みながらチェックサムを検証するかどうかを設定する。
+	 * 検証に失敗した場合はストリームの終端で {@link java.io.IOException} を投げ、エントリを削除する。
+	 * メタデータのチェックサムはこの設定に関わらず常に検証する。
+	 */
+	public void setVerifyBodyChecksum(boolean verifyBodyChecksum) {
+		this.verifyBodyChecksum = verifyBodyChecksum;
+	}
+
+	public boolean isUriIndexEnabled() {
+		return uriIndexEnabled;
+	}
+
+	/**
+	 * 元の URI とホストからエントリを引くインデックスを有効にするかどうかを設定する。
+	 * {@link DiskLruHttpCacheStorage#removeByPrefix(String)} と
+	 * {@link DiskLruHttpCacheStorage#removeByHost(String)} を使う場合は有効にする必要がある。
+	 * インデックスはキャッシュのディレクトリに保存され、書き込みごとに1行追記される。
+	 */
+	public void setUriIndexEnabled(boolean uriIndexEnabled) {
+		this.uriIndexEnabled = uriIndexEnabled;
+	}
+
+	public String[] getTagHeaders() {
+		return tagHeaders.clone();
+	}
+
+	/**
+	 * エントリにタグを付けるヘッダ (例: "Surrogate-Key", "Cache-Tag") を設定する。
+	 * ヘッダの値は空白とカンマで区切ってタグとして扱い、
+	 * {@link DiskLruHttpCacheStorage#invalidateTag(String)} で同じタグを持つエントリをまとめて削除できる。
+	 * 1つ以上指定するとタグのインデックスがキャッシュのディレクトリに保存される。
+	 */
+	public void setTagHeaders(String... tagHeaders) {
+		this.tagHeaders = tagHeaders.clone();
+	}
+
+	public long getOffHeapCacheSize() {
+		return offHeapCacheSize;
+	}
+
+	/**
+	 * 参照されたレスポンスボディをヒープの外 (ダイレクトバッファ) に保持する容量を設定する。
+	 * 保持しているボディはディスクを読まずに返し、容量を超えた場合は LRU 順に追い出す。
+	 * 容量分のダイレクトバッファはストレージの生成時に確保される。
+	 * 
+	 * @param offHeapCacheSize
+	 *            バイト数。4096 未満の場合はヒープ外に保持しない。
+	 */
+	public void setOffHeapCacheSize(long offHeapCacheSize) {
+		this.offHeapCacheSize = offHeapCacheSize;
+	}
+
+	public int getOffHeapMaxBodySize() {
+		return offHeapMaxBodySize;
+	}
+
+	/**
+	 * ヒープの外に保持するボディの最大バイト数を設定する。これより大きいボディは常にディスクから読む。
+	 */
+	public void setOffHeapMaxBodySize(int offHeapMaxBodySize) {
+		this.offHeapMaxBodySize = offHeapMaxBodySize;
+	}
+
+	public boolean isLockFreeReadsEnabled() {
+		return lockFreeReadsEnabled;
+	}
+
+	/**
+	 * {@link DiskLruHttpCacheStorage#getEntry(String)} で DiskLruCache のロックを取らずにファイルを開くかどうかを設定する。
+	 * 有効にすると、書き込みや掃除と読み込みが競合しなくなる。
+	 * 読み込みは一定数ごとにまとめて LRU の順序に反映されるので、追い出しの順序はおおよそになる。
+	 */
+	public void setLockFreeReadsEnabled(boolean lockFreeReadsEnabled) {
+		this.lockFreeReadsEnabled = lockFreeReadsEnabled;
+	}
+
+	public long getJournalFlushDelay() {
+		return journalFlushDelay;
+	}
+
+	/**
+	 * URI とタグのインデックスへの追記を、まとめてファイルに書き出すまでの最大の遅延を設定する。
+	 * 同時に多くのエントリを書き込む場合の書き出しの回数が減る代わりに、
+	 * プロセスが異常終了すると最大この時間の間の変更がインデックスから失われる。
+	 * 失われた変更は、エントリの読み込み時にメタデータの URI から補われる。
+	 * 
+	 * @param journalFlushDelay
+	 *            ミリ秒。0 以下の場合は追記ごとに書き出す。
+	 */
+	public void setJournalFlushDelay(long journalFlushDelay) {
+		this.journalFlushDelay = journalFlushDelay;
+	}
+
+	public Durability getDurability() {
+		return durability;
+	}
+
+	/**
+	 * 書き込んだエントリを fsync する方針を設定する。デフォルトは {@link Durability#NONE}。
+	 */
+	public void setDurability(Durability durability) {
+		if (durability == null) {
+			throw new NullPointerException("durability");
+		}
+		this.durability = durability;
+	}
+
+	public long getSyncInterval() {
+		return syncInterval;
+	}
+
+	/**
+	 * {@link Durability#PERIODIC} で fsync する間隔を設定する。
+	 * 
+	 * @param syncInterval
+	 *            ミリ秒
+	 */
+	public void setSyncInterval(long syncInterval) {
+		if (syncInterval <= 0) {
+			throw new IllegalArgumentException("syncInterval <= 0");
+		}
+		this.syncInterval = syncInterval;
+	}
+
+	public long getGroupCommitDelay() {
+		return groupCommitDelay;
+	}
+
+	/**
+	 * {@link Durability#COMMIT} で、同時に書き込まれたエントリのジャーナルの fsync をまとめるために待つ時間を設定する。
+	 * エントリのファイルはそれぞれ fsync し、全エントリで共有するジャーナルだけを1回の fsync にまとめる。
+	 * 長くするとまとまる書き込みが増える代わりに、putEntry が返るまでの時間が最大この分だけ長くなる。
+	 * putEntry が返ったエントリが永続化されていることは変わらない。
+	 * 
+	 * @param groupCommitDelay
+	 *            ミリ秒。0 以下の場合は待たず、実行中の fsync の間に書き込まれたエントリだけをまとめる。
+	 */
+	public void setGroupCommitDelay(long groupCommitDelay) {
+		this.groupCommitDelay = groupCommitDelay;
+	}
+
+	public EntryRevalidator getEntryRevalidator() {
+		return entryRevalidator;
+	}
+
+	/**
+	 * 鮮度の期限が過ぎていても Cache-Control の stale-while-revalidate の期間内のエントリを
+	 * {@link DiskLruHttpCacheStorage#getEntry(String)} で参照した場合に、
+	 * バックグラウンドで再検証する {@link EntryRevalidator} を設定する。
+	 * getEntry は再検証を待たずに古いエントリを返す。
+	 * <p>
+	 * CachingHttpClient を経由せずにこのストレージを読む呼び出し元のための機能。
+	 * CachingHttpClient は古いエントリを見つけると、CacheConfig の asynchronousWorkersMax が
+	 * 1 以上なら自身の AsynchronousValidator で、0 なら呼び出し元のスレッドで再検証するので、
+	 * CachingHttpClient のストレージとして使う場合に設定すると同じエントリへの条件付きリクエストが重複する。
+	 * CachingHttpClient を使う場合は設定せず、CacheConfig で再検証を調整する。
+	 * </p>
+	 * 
+	 * @param entryRevalidator
+	 *            null の場合はバックグラウンドで再検証しない。
+	 */
+	public void setEntryRevalidator(EntryRevalidator entryRevalidator) {
+		this.entryRevalidator = entryRevalidator;
+	}
+
+	public int getRevalidationThreads() {
+		return revalidationThreads;
+	}
+
+	/**
+	 * バックグラウンドで再検証するスレッド数を設定する。
+	 */
+	public void setRevalidationThreads(int revalidationThreads) {
+		if (revalidationThreads <= 0) {
+			throw new IllegalArgumentException("revalidationThreads <= 0");
+		}
+		this.revalidationThreads = revalidationThreads;
+	}
+
+	public int getMaxPendingRevalidations() {
+		return maxPendingRevalidations;
+	}
+
+	/**
+	 * 実行を待つ再検証の最大数を設定する。超えた場合、その参照での再検証は見送られる。
+	 */
+	public void setMaxPendingRevalidations(int maxPendingRevalidations) {
+		if (maxPendingRevalidations <= 0) {
+			throw new IllegalArgumentException("maxPendingRevalidations <= 0");
+		}
+		this.maxPendingRevalidations = maxPendingRevalidations;
+	}
+
+	public int getMaintenanceThreads() {
+		return maintenanceThreads;
+	}
+
+	/**
+	 * 掃除、インデックスの書き出しと詰め直し、fsync などのバックグラウンドの処理を実行するスレッド数を設定する。
+	 */
+	public void setMaintenanceThreads(int maintenanceThreads) {
+		if (maintenanceThreads <= 0) {
+			throw new IllegalArgumentException("maintenanceThreads <= 0");
+		}
+		this.maintenanceThreads = maintenanceThreads;
+	}
+
+	public long getMaintenanceIoRate() {
+		return maintenanceIoRate;
+	}
+
+	/**
+	 * バックグラウンドの掃除とインデックスの詰め直しが1秒あたりに読み書きするバイト数の上限を設定する。
+	 * 上限を超える分は待たされるので、リクエストの処理とディスクの帯域を奪い合わない。
+	 * {@link Durability#PERIODIC} の fsync は失われうる書き込みの量を保つため、上限の対象にしない。
+	 * 
+	 * @param maintenanceIoRate
+	 *            バイト数。0 以下の場合は制限しない。
+	 */
+	public void setMaintenanceIoRate(long maintenanceIoRate) {
+		this.maintenanceIoRate = maintenanceIoRate;
+	}
+
+	public long getIndexCompactionInterval() {
+		return indexCompactionInterval;
+	}
+
+	/**
+	 * URI とタグのインデックスのファイルに不要な行が貯まっていないかを確認し、詰め直す間隔を設定する。
+	 * 
+	 * @param indexCompactionInterval
+	 *            ミリ秒。0 以下の場合は起動時にだけ詰め直す。
+	 */
+	public void setIndexCompactionInterval(long indexCompactionInterval) {
+		this.indexCompactionInterval = indexCompactionInterval;
+	}
+
+	public long getForegroundWriteRate() {
+		return foregroundWriteRate;
+	}
+
+	/**
+	 * {@link WritePriority#FOREGROUND} の書き込みで、ボディを1秒あたりに書き込むバイト数の上限を設定する。
+	 * 大きなボディの書き込みがディスクの帯域を使い切り、小さなエントリの読み込みが遅れるのを防ぐ。
+	 * 
+	 * @param foregroundWriteRate
+	 *            バイト数。0 以下の場合は制限しない。
+	 */
+	public void setForegroundWriteRate(long foregroundWriteRate) {
+		this.foregroundWriteRate = foregroundWriteRate;
+	}
+
+	public long getPrefetchWriteRate() {
+		return prefetchWriteRate;
+	}
+
+	/**
+	 * {@link WritePriority#PREFETCH} の書き込みで、ボディを1秒あたりに書き込むバイト数の上限を設定する。
+	 * {@link #setForegroundWriteRate(long)} とは別に数える。
+	 * 
+	 * @param prefetchWriteRate
+	 *            バイト数。0 以下の場合は制限しない。
+	 */
+	public void setPrefetchWriteRate(long prefetchWriteRate) {
+		this.prefetchWriteRate = prefetchWriteRate;
+	}
+
+	public long getMaxEntrySize() {
+		return maxEntrySize;
+	}
+
+	/**
+	 * 保存するエントリのボディの最大バイト数を設定する。
+	 * これより大きいボディは保存せず、同じ URI の以前のエントリも削除する。
+	 * 1つの大きなレスポンスのために他のエントリがまとめて追い出されるのを防ぐ。
+	 * 
+	 * @param maxEntrySize
+	 *            バイト数。0 以下の場合は制限しない。
+	 */
+	public void setMaxEntrySize(long maxEntrySize) {
+		this.maxEntrySize = maxEntrySize;
+	}
+
+	public long getRecentWritesSize() {
+		return recentWritesSize;
+	}
+
+	/**
+	 * 書き込んだ直後のエントリをヒープに保持する容量を設定する。
+	 * 保持している間は {@link DiskLruHttpCacheStorage#getEntry(String)} がディスクを読まずにエントリを返す。
+	 * 
+	 * @param recentWritesSize
+	 *            ボディの合計バイト数。0 以下の場合は保持しない。
+	 */
+	public void setRecentWritesSize(long recentWritesSize) {
+		this.recentWritesSize = recentWritesSize;
+	}
+
+	public long getRecentWritesTtl() {
+		return recentWritesTtl;
+	}
+
+	/**
+	 * 書き込んだ直後のエントリをヒープに保持する期間を設定する。
+	 * 
+	 * @param recentWritesTtl
+	 *            ミリ秒
+	 */
+	public void setRecentWritesTtl(long recentWritesTtl) {
+		if (recentWritesTtl <= 0) {
+			throw new IllegalArgumentException("recentWritesTtl <= 0");
+		}
+		this.recentWritesTtl = recentWritesTtl;
+	}
+
+	Ticker getTicker() {
+		return ticker;
+	}
+
+	/**
+	 * 書き込みの速度制限と、書き込んだ直後のエントリを保持する期間の計測で使う時計を設定する。テストで時間の経過を制御するために使う。
+	 */
+	void setTicker(Ticker ticker) {
+		this.ticker = ticker;
+	}
+}
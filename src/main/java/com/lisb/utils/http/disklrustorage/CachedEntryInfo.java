@@ -0,0 +1,73 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.util.Date;
+
+/**
+ * キャッシュされているエントリの概要。{@link DiskLruHttpCacheStorage#entries()} で列挙する。
+ */
+public final class CachedEntryInfo {
+
+	private final String uri;
+	private final String key;
+	private final long metadataLength;
+	private final long bodyLength;
+	private final Date requestDate;
+	private final Date responseDate;
+	private final int statusCode;
+
+	CachedEntryInfo(final String uri, final String key,
+			final long metadataLength, final long bodyLength,
+			final Date requestDate, final Date responseDate,
+			final int statusCode) {
+		this.uri = uri;
+		this.key = key;
+		this.metadataLength = metadataLength;
+		this.bodyLength = bodyLength;
+		this.requestDate = requestDate;
+		this.responseDate = responseDate;
+		this.statusCode = statusCode;
+	}
+
+	/**
+	 * {@link DiskLruHttpCacheStorage#putEntry(String, ch.boye.httpclientandroidlib.client.cache.HttpCacheEntry)}
+	 * に渡されたキー (元の URI)。
+	 */
+	public String getUri() {
+		return uri;
+	}
+
+	/**
+	 * DiskLruCache のキー。
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	public long getMetadataLength() {
+		return metadataLength;
+	}
+
+	public long getBodyLength() {
+		return bodyLength;
+	}
+
+	public Date getRequestDate() {
+		return requestDate;
+	}
+
+	public Date getResponseDate() {
+		return responseDate;
+	}
+
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	@Override
+	public String toString() {
+		return "[uri=" + uri + ", key=" + key + ", metadataLength="
+				+ metadataLength + ", bodyLength=" + bodyLength
+				+ ", requestDate=" + requestDate + ", responseDate="
+				+ responseDate + ", statusCode=" + statusCode + "]";
+	}
+}
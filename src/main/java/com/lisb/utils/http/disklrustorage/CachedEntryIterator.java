@@ -0,0 +1,84 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * キャッシュされているエントリを列挙する。メタデータは {@link #hasNext()} で1件ずつ読み込む。
+ * <p>
+ * {@link #trySplit()} で残りのエントリを2つに分割できるので、分割したそれぞれを別のスレッドで処理できる。
+ * 1つのインスタンスはスレッドセーフではない。
+ * </p>
+ */
+// java.util.Spliterator は Java 8 からなので、同じ考え方の分割だけを提供する。
+public final class CachedEntryIterator implements Iterator<CachedEntryInfo> {
+
+	/**
+	 * キーからエントリの概要を読み込む。
+	 */
+	interface Reader {
+		/**
+		 * @return エントリが存在しないか読み込めない場合は null
+		 */
+		CachedEntryInfo read(String key);
+	}
+
+	private final Reader reader;
+	private final String[] keys;
+	private int index;
+	private int end;
+	private CachedEntryInfo next;
+
+	CachedEntryIterator(final Reader reader, final String[] keys,
+			final int start, final int end) {
+		this.reader = reader;
+		this.keys = keys;
+		this.index = start;
+		this.end = end;
+	}
+
+	public boolean hasNext() {
+		while (next == null && index < end) {
+			// 列挙を始めた後に削除されたエントリは読み飛ばす
+			next = reader.read(keys[index++]);
+		}
+		return next != null;
+	}
+
+	public CachedEntryInfo next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		final CachedEntryInfo result = next;
+		next = null;
+		return result;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * 残りのエントリの後半を列挙する新しいインスタンスを返し、このインスタンスは前半だけを列挙するようにする。
+	 * 
+	 * @return 分割できるほど残っていない場合は null
+	 */
+	public CachedEntryIterator trySplit() {
+		final int remaining = end - index;
+		if (remaining < 2) {
+			return null;
+		}
+		final int middle = index + remaining / 2;
+		final CachedEntryIterator split = new CachedEntryIterator(reader,
+				keys, middle, end);
+		end = middle;
+		return split;
+	}
+
+	/**
+	 * 残りのエントリ数の見積もり。列挙中に削除されたエントリも含む。
+	 */
+	public long estimateSize() {
+		return end - index + (next != null ? 1 : 0);
+	}
+}
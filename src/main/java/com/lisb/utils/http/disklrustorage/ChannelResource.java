@@ -0,0 +1,44 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import ch.boye.httpclientandroidlib.client.cache.Resource;
+
+/**
+ * 位置を指定してボディを読める {@link Resource}。
+ * ストレージがファイルやオフヒープのキャッシュから読むボディの Resource はこのインターフェースを実装する。
+ * 書き込んだ直後にヒープから返すボディなどは実装しないので、instanceof で確認してから使う。
+ * <p>
+ * {@link #getInputStream()} と違い、呼び出しごとの状態を持たないので、
+ * 少数のスレッドから多くのエントリのボディを少しずつ読んだり、ソケットに直接転送したりできる。
+ * 複数のスレッドから同時に呼び出してもよい。
+ * </p>
+ * <p>
+ * {@link CacheStorageConfig#setVerifyBodyChecksum(boolean)} でチェックサムを検証する場合、
+ * ファイルのボディは最初の {@link #read(ByteBuffer, long)} か
+ * {@link #transferTo(long, long, WritableByteChannel)} の前にボディ全体を一度読んで検証する。
+ * 壊れていた場合はエントリを削除し、{@link IOException} を投げる。
+ * </p>
+ */
+// Java 6 と Android では AsynchronousFileChannel を使えないので、
+// ファイルのボディは FileChannel の位置指定の読み込みと transferTo で読む。
+public interface ChannelResource extends Resource {
+
+	/**
+	 * ボディの position バイト目から dst の残りの分だけ読み込む。
+	 * 
+	 * @return 読み込んだバイト数。position がボディの終端以降の場合は -1
+	 */
+	int read(ByteBuffer dst, long position) throws IOException;
+
+	/**
+	 * ボディの position バイト目から最大 count バイトを target に書き込む。
+	 * ファイルのボディは可能であれば OS のゼロコピー転送を使う。
+	 * 
+	 * @return 書き込んだバイト数。target が書き込みを受け付けなかった場合は count より少ない。
+	 */
+	long transferTo(long position, long count, WritableByteChannel target)
+			throws IOException;
+}
@@ -0,0 +1,21 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.io.IOException;
+
+/**
+ * キャッシュのエントリが壊れていて読み込めないことを表す。
+ */
+class CorruptedEntryException extends IOException {
+
+	private static final long serialVersionUID = 4182235496817004614L;
+
+	CorruptedEntryException(final String message) {
+		super(message);
+	}
+
+	CorruptedEntryException(final String message, final Throwable cause) {
+		// IOException(String, Throwable) は Android の古い API レベルにはない
+		super(message);
+		initCause(cause);
+	}
+}
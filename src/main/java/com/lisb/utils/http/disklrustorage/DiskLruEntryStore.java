@@ -0,0 +1,225 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.jakewharton.disklrucache.DiskLruCache;
+import com.jakewharton.disklrucache.DiskLruCache.Snapshot;
+
+/**
+ * {@link DiskLruCache} にエントリを保存する {@link EntryStore}。
+ */
+// DiskLruCache のファイル名 (キー.インデックス) とジャーナルのファイル名に依存する処理もここに置く。
+final class DiskLruEntryStore implements EntryStore {
+
+	/* DiskLruCache のジャーナルのファイル名 */
+	private static final String JOURNAL_FILE = "journal";
+
+	private final File directory;
+	private final int valueCount;
+	private final DiskLruCache diskLruCache;
+	/* ロックを取らない読み込みを使わない場合は null */
+	private final LockFreeReads lockFreeReads;
+
+	private DiskLruEntryStore(final File directory, final int valueCount,
+			final DiskLruCache diskLruCache, final boolean lockFreeReadsEnabled) {
+		this.directory = directory;
+		this.valueCount = valueCount;
+		this.diskLruCache = diskLruCache;
+		this.lockFreeReads = lockFreeReadsEnabled ? new LockFreeReads(
+				directory, valueCount) : null;
+	}
+
+	static DiskLruEntryStore open(final File directory, final int appVersion,
+			final int valueCount, final long maxSize,
+			final boolean lockFreeReadsEnabled) throws IOException {
+		return new DiskLruEntryStore(directory, valueCount, DiskLruCache.open(
+				directory, appVersion, valueCount, maxSize),
+				lockFreeReadsEnabled);
+	}
+
+	public EntryFiles get(final String key) throws IOException {
+		if (lockFreeReads != null) {
+			final EntryFiles files = lockFreeReads.open(key);
+			if (files != null) {
+				touchRecentReads(key);
+				return files;
+			}
+		}
+		final Snapshot snapshot = diskLruCache.get(key);
+		return snapshot != null ? new SnapshotFiles(snapshot) : null;
+	}
+
+	/**
+	 * ロックを取らずに読み込んだキーを、まとめて DiskLruCache の LRU の順序に反映する。
+	 */
+	private void touchRecentReads(final String key) throws IOException {
+		for (final String read : lockFreeReads.recordRead(key)) {
+			final Snapshot snapshot = diskLruCache.get(read);
+			if (snapshot != null) {
+				snapshot.close();
+			}
+		}
+	}
+
+	public EntryFiles peek(final String key) {
+		// DiskLruCache を通さずにファイルを直接読むので、LRU の順序は変わらない
+		return LockFreeReads.openFiles(directory, key, valueCount);
+	}
+
+	public Editor edit(final String key) throws IOException {
+		final DiskLruCache.Editor editor = diskLruCache.edit(key);
+		if (editor == null) {
+			return null;
+		}
+		return new Editor() {
+			public OutputStream newOutputStream(final int index)
+					throws IOException {
+				return editor.newOutputStream(index);
+			}
+
+			public void commit() throws IOException {
+				beginPublish(key);
+				try {
+					editor.commit();
+				} finally {
+					endPublish(key);
+				}
+			}
+
+			public void abort() throws IOException {
+				editor.abort();
+			}
+		};
+	}
+
+	public boolean remove(final String key) throws IOException {
+		beginPublish(key);
+		try {
+			return diskLruCache.remove(key);
+		} finally {
+			endPublish(key);
+		}
+	}
+
+	public boolean contains(final String key) {
+		return new File(directory, key + ".0").exists();
+	}
+
+	public List<String> keys() {
+		final String suffix = ".0";
+		// 書き込み途中のファイルは "キー.0.tmp" なので含まれない
+		final String[] names = directory.list(new FilenameFilter() {
+			public boolean accept(final File dir, final String name) {
+				return name.endsWith(suffix);
+			}
+		});
+		if (names == null) {
+			return new ArrayList<String>(0);
+		}
+		final List<String> keys = new ArrayList<String>(names.length);
+		for (final String name : names) {
+			keys.add(name.substring(0, name.length() - suffix.length()));
+		}
+		return keys;
+	}
+
+	public long size() {
+		return diskLruCache.size();
+	}
+
+	public void flush() throws IOException {
+		diskLruCache.flush();
+	}
+
+	public void sync(final Collection<String> keys) throws IOException {
+		// DiskLruCache は commit の最後にジャーナルを flush している
+		for (final String key : keys) {
+			syncEntry(key);
+		}
+		sync(new File(directory, JOURNAL_FILE));
+	}
+
+	public void syncEntry(final String key) throws IOException {
+		for (int i = 0; i < valueCount; i++) {
+			sync(new File(directory, key + "." + i));
+		}
+	}
+
+	public void close() throws IOException {
+		diskLruCache.close();
+	}
+
+	public void delete() throws IOException {
+		diskLruCache.delete();
+	}
+
+	/**
+	 * ファイルの内容をストレージに書き出す。すでに削除されたファイルは無視する。
+	 */
+	// 書き込みの後に開き直しても、同じファイルへの書き込みはすべて fsync の対象になる。
+	// ディレクトリの fsync (rename の永続化) は Java 6 の API ではできないので行わない。
+	static void sync(final File file) throws IOException {
+		final FileInputStream in;
+		try {
+			in = new FileInputStream(file);
+		} catch (FileNotFoundException e) {
+			return;
+		}
+		try {
+			in.getFD().sync();
+		} finally {
+			in.close();
+		}
+	}
+
+	private void beginPublish(final String key) {
+		if (lockFreeReads != null) {
+			lockFreeReads.beginPublish(key);
+		}
+	}
+
+	private void endPublish(final String key) {
+		if (lockFreeReads != null) {
+			lockFreeReads.endPublish(key);
+		}
+	}
+
+	private static final class SnapshotFiles implements EntryFiles {
+		private final Snapshot snapshot;
+
+		SnapshotFiles(final Snapshot snapshot) {
+			this.snapshot = snapshot;
+		}
+
+		public InputStream getInputStream(final int index) {
+			return snapshot.getInputStream(index);
+		}
+
+		public long getLength(final int index) {
+			// ジャーナルに記録された長さではなく、開いたファイルの実際の長さを返す。
+			// 異常終了で途中まで書かれたファイルをメタデータの長さとの比較で検出できる。
+			final InputStream in = snapshot.getInputStream(index);
+			if (in instanceof FileInputStream) {
+				try {
+					return ((FileInputStream) in).getChannel().size();
+				} catch (IOException e) {
+					// ジャーナルの長さを使う
+				}
+			}
+			return snapshot.getLength(index);
+		}
+
+		public void close() {
+			snapshot.close();
+		}
+	}
+}
@@ -1,35 +1,35 @@
 package com.lisb.utils.http.disklrustorage;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
 
-import ch.boye.httpclientandroidlib.Header;
-import ch.boye.httpclientandroidlib.ProtocolVersion;
-import ch.boye.httpclientandroidlib.StatusLine;
 import ch.boye.httpclientandroidlib.annotation.ThreadSafe;
 import ch.boye.httpclientandroidlib.client.cache.HttpCacheEntry;
 import ch.boye.httpclientandroidlib.client.cache.HttpCacheStorage;
 import ch.boye.httpclientandroidlib.client.cache.HttpCacheUpdateCallback;
 import ch.boye.httpclientandroidlib.client.cache.HttpCacheUpdateException;
 import ch.boye.httpclientandroidlib.client.cache.Resource;
-import ch.boye.httpclientandroidlib.message.BasicHeader;
-import ch.boye.httpclientandroidlib.message.BasicStatusLine;
 
 import com.jakewharton.disklrucache.DiskLruCache;
-import com.jakewharton.disklrucache.DiskLruCache.Editor;
-import com.jakewharton.disklrucache.DiskLruCache.Snapshot;
 import com.lisb.utils.http.disklrustorage.compat.Charsets;
 import com.lisb.utils.http.disklrustorage.compat.MD5;
 import com.lisb.utils.http.disklrustorage.compat.Strings;
@@ -44,44 +44,395 @@ import com.lisb.utils.http.disklrustorage.compat.Strings;
 @ThreadSafe
 public class DiskLruHttpCacheStorage implements HttpCacheStorage {
 
-	public static final int VERSION = 1;
+	public static final int VERSION = 4;
 
-	/* DiskLruCacheのインデックス */
+	/* EntryStore のインデックス */
 	private static final int ENTRY_METADATA = 0;
 	private static final int ENTRY_BODY = 1;
 	private static final int ENTRY_COUNT = 2;
 
-	private final DiskLruCache diskLruCache;
+	private static final int BODY_BUFFER_SIZE = 8192;
+
+	/* UriIndex のファイル名。DiskLruCache のファイル名 (キー.インデックス) とは重ならない。 */
+	private static final String URI_INDEX_FILE = "uri-index";
+	private static final String TAG_INDEX_FILE = "tag-index";
+
+	/* Variant のキーのうち、Variant の部分を表すハッシュの桁数 */
+	private static final int VARIANT_HASH_LENGTH = 16;
+
+	/* 掃除スレッドを使わない場合の ExpiryIndex のバケット幅 */
+	private static final long DEFAULT_EXPIRY_RESOLUTION = 60 * 1000L;
+
+	/* 掃除で1エントリを削除するときに見込む読み書きのバイト数 (ジャーナルの追記とファイルの削除) */
+	private static final long REMOVE_IO_COST = 4096;
+
+	/* メモリ上のインデックスから追い出されたエントリを取り除く間隔 (書き込みの回数) */
+	private static final int PRUNE_INTERVAL = 1000;
+
+	private final File directory;
+	private final EntryStore store;
+	private final CacheStorageConfig config;
+	private final ExpiryIndex expiryIndex;
+	private final VariantGroups variantGroups = new VariantGroups();
+	private final SingleFlight<EntryMetadata> metadataReads = new SingleFlight<EntryMetadata>();
+	private final WriteCoalescer<PendingWrite> entryWrites = new WriteCoalescer<PendingWrite>();
+	/* 上限が設定されていない場合は null */
+	private final EntryQuotas quotas;
+	/* 無効な場合は null */
+	private final UriIndex uriIndex;
+	/* タグのヘッダが設定されていない場合は null */
+	private final TagIndex tagIndex;
+	private final String[] tagHeaders;
+	private final MaintenanceScheduler maintenance;
+	/* ヒープ外にボディを保持しない場合は null */
+	private final OffHeapBodyCache offHeapBodies;
+	private final Durability durability;
+	/* Durability.PERIODIC で、まだ fsync していないキー */
+	private final Set<String> unsyncedKeys = new HashSet<String>();
+	/* Durability.COMMIT で、同時に commit したエントリのジャーナルの fsync をまとめる */
+	private final GroupCommit journalCommit;
+	/* バックグラウンドで再検証しない場合は null */
+	private final BackgroundRevalidator revalidations;
+	/* 書き込んだ直後のエントリを保持しない場合は null */
+	private final RecentWrites recentWrites;
+	/* 書き込みの速度を制限しない場合は null */
+	private final IoRateLimiter foregroundWrites;
+	private final IoRateLimiter prefetchWrites;
+	/* 前回インデックスを刈り込んでからの書き込みの回数 */
+	private final AtomicInteger writesSincePrune = new AtomicInteger();
+	/* 開いたときのインデックスの作り直しが終わるまで、その間に書き込みか削除したキー。終わった後は null */
+	private Set<String> changedDuringRebuild = new HashSet<String>();
+	private final Object rebuildLock = new Object();
+	private final CountDownLatch indexesRebuilt = new CountDownLatch(1);
+	/* インデックスを詰め直すときに残すキー */
+	private final IndexJournal.KeyFilter storedKeys = new IndexJournal.KeyFilter() {
+		public boolean accept(final String key) {
+			return store.contains(key);
+		}
+	};
 
 	public DiskLruHttpCacheStorage(final File directory, final long maxSize)
 			throws IOException {
-		diskLruCache = DiskLruCache.open(directory, VERSION, ENTRY_COUNT,
-				maxSize);
+		this(directory, maxSize, new CacheStorageConfig());
+	}
+
+	public DiskLruHttpCacheStorage(final File directory, final long maxSize,
+			final CacheStorageConfig config) throws IOException {
+		this(directory, config, DiskLruEntryStore.open(directory, VERSION,
+				ENTRY_COUNT, maxSize, config.isLockFreeReadsEnabled()));
+	}
+
+	/**
+	 * @param directory
+	 *            インデックスのファイルを保存するディレクトリ
+	 * @param store
+	 *            エントリごとに {@link #ENTRY_COUNT} 個のファイルを保存する先
+	 */
+	DiskLruHttpCacheStorage(final File directory,
+			final CacheStorageConfig config, final EntryStore store)
+			throws IOException {
+		this.directory = directory;
+		this.config = config;
+		this.store = store;
+		final long sweepInterval = config.getExpirySweepInterval();
+		final long journalFlushDelay = config.getJournalFlushDelay();
+		durability = config.getDurability();
+		journalCommit = new GroupCommit(config.getGroupCommitDelay()) {
+			@Override
+			void syncShared() throws IOException {
+				DiskLruHttpCacheStorage.this.store.sync(Collections
+						.<String> emptyList());
+			}
+		};
+		final long indexCompactionInterval = config
+				.getIndexCompactionInterval();
+		// 開いたときのインデックスの作り直しにも使うので常に作る。スレッドは処理があるときだけ動く。
+		maintenance = new MaintenanceScheduler(config.getMaintenanceThreads(),
+				config.getMaintenanceIoRate());
+		final JournalFlusher journalFlusher = journalFlushDelay > 0 ? new JournalFlusher(
+				maintenance, journalFlushDelay) : null;
+		final File uriIndexFile = new File(directory, URI_INDEX_FILE);
+		final boolean rebuildUriIndex = config.isUriIndexEnabled()
+				&& !uriIndexFile.exists();
+		uriIndex = config.isUriIndexEnabled() ? UriIndex.open(uriIndexFile,
+				storedKeys, journalFlusher) : null;
+		tagHeaders = config.getTagHeaders();
+		tagIndex = tagHeaders.length > 0 ? TagIndex.open(new File(directory,
+				TAG_INDEX_FILE), storedKeys, journalFlusher) : null;
+
+		expiryIndex = new ExpiryIndex(sweepInterval > 0 ? sweepInterval
+				: DEFAULT_EXPIRY_RESOLUTION);
+		quotas = EntryQuotas.isEnabled(config) ? new EntryQuotas(
+				config.getMaxEntryCount(), config.getMaxHostBytes(),
+				config.getMaxHostEntryCount()) : null;
+		offHeapBodies = OffHeapBodyCache.isEnabled(config) ? new OffHeapBodyCache(
+				config.getOffHeapCacheSize(), config.getOffHeapMaxBodySize())
+				: null;
+		final EntryRevalidator revalidator = config.getEntryRevalidator();
+		revalidations = revalidator != null ? new BackgroundRevalidator(
+				revalidator, config.getRevalidationThreads(),
+				config.getMaxPendingRevalidations()) : null;
+		recentWrites = RecentWrites.isEnabled(config) ? new RecentWrites(
+				config.getRecentWritesSize(), config.getRecentWritesTtl(),
+				config.getTicker()) : null;
+		foregroundWrites = config.getForegroundWriteRate() > 0 ? new IoRateLimiter(
+				config.getForegroundWriteRate(), config.getTicker()) : null;
+		prefetchWrites = config.getPrefetchWriteRate() > 0 ? new IoRateLimiter(
+				config.getPrefetchWriteRate(), config.getTicker()) : null;
+		if (rebuildUriIndex) {
+			rebuildUriIndex();
+		}
+		maintenance.schedule(new Runnable() {
+			public void run() {
+				rebuildIndexes();
+			}
+		}, 0);
+		if (sweepInterval > 0) {
+			maintenance.scheduleWithFixedDelay(new MaintenanceScheduler.Task() {
+				public void run() throws IOException {
+					sweepExpiredEntries(true);
+				}
+			}, sweepInterval);
+		}
+		if (durability == Durability.PERIODIC) {
+			maintenance.scheduleWithFixedDelay(new MaintenanceScheduler.Task() {
+				public void run() throws IOException {
+					syncUnsynced();
+				}
+			}, config.getSyncInterval());
+		}
+		if (indexCompactionInterval > 0) {
+			maintenance.scheduleWithFixedDelay(new MaintenanceScheduler.Task() {
+				public void run() throws IOException {
+					compactIndexes();
+				}
+			}, indexCompactionInterval);
+		}
+	}
+
+	/**
+	 * メタデータに保存された元の URI から URI のインデックスを作り直す。
+	 * インデックスのファイルがない場合に1回だけ行う。
+	 */
+	// 途中で閉じられると次回はファイルがあるので作り直されない。そのため開く処理の中で終わらせる。
+	private void rebuildUriIndex() throws IOException {
+		for (final CachedEntryIterator i = entries(); i.hasNext();) {
+			final CachedEntryInfo info = i.next();
+			uriIndex.put(info.getKey(), info.getUri());
+		}
+	}
+
+	/**
+	 * 保存されているエントリのメタデータから、鮮度の期限、Variant のまとまり、ホストごとの使用量を作り直す。
+	 * 以前のセッションで保存され、読み込まれないままのエントリも掃除の対象になる。
+	 */
+	// エントリの数に比例して読み込むので、開いた呼び出し元を待たせないようにバックグラウンドで行う。
+	// 作り直しの間に書き込みか削除されたキーは、読み込んだメタデータが古い可能性があるので飛ばす。
+	// 列挙の順序はディレクトリの順序なので、ホスト内の LRU の順序は次の参照から正確になる。
+	private void rebuildIndexes() {
+		try {
+			for (final String key : store.keys()) {
+				if (Thread.currentThread().isInterrupted()) {
+					// 閉じられた
+					return;
+				}
+				final EntryMetadata metadata = peekMetadata(key);
+				if (metadata != null) {
+					maintenance.acquireIo(metadata.length);
+				}
+				synchronized (rebuildLock) {
+					if (changedDuringRebuild.contains(key)) {
+						continue;
+					}
+					variantGroups.add(key);
+					if (metadata == null) {
+						// 列挙中に削除されたか壊れている。壊れたエントリは読み込み時に削除される。
+						continue;
+					}
+					// 鮮度の計算はヘッダだけを使う
+					indexExpiry(key, metadata.toEntry(null));
+					if (quotas != null) {
+						enforceQuotas(key, metadata.uri, metadata.length
+								+ metadata.bodyLength);
+					}
+				}
+			}
+		} catch (IOException e) {
+			// 中断されたか、追い出したエントリを削除できなかった。
+			// 残りのエントリは書き込みか刈り込みの時点でインデックスに反映される。
+		} finally {
+			finishIndexRebuild();
+		}
+	}
+
+	private void finishIndexRebuild() {
+		synchronized (rebuildLock) {
+			changedDuringRebuild = null;
+		}
+		indexesRebuilt.countDown();
+	}
+
+	/**
+	 * 作り直し中のインデックスに、key の書き込みか削除があったことを記録する。
+	 * EntryStore への反映の後、インデックスの更新の前に呼び出す。
+	 */
+	private void markChanged(final String key) {
+		synchronized (rebuildLock) {
+			if (changedDuringRebuild != null) {
+				changedDuringRebuild.add(key);
+			}
+		}
+	}
+
+	/**
+	 * 開いたときのインデックスの作り直しが終わるまで待つ。
+	 */
+	void awaitIndexRebuild() throws InterruptedIOException {
+		try {
+			indexesRebuilt.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	/**
+	 * LRU の順序を変えずにメタデータを読み込む。
+	 * 
+	 * @return エントリが存在しないか読み込めない場合は null
+	 */
+	private EntryMetadata peekMetadata(final String key) {
+		final EntryFiles files = store.peek(key);
+		if (files == null) {
+			return null;
+		}
+		try {
+			return readMetadata(files);
+		} catch (IOException e) {
+			return null;
+		} finally {
+			files.close();
+		}
+	}
+
+	/**
+	 * DiskLruCache が容量超過で削除したエントリは通知されないので、
+	 * 書き込みが {@link #PRUNE_INTERVAL} 回あるごとにメモリ上のインデックスから取り除く。
+	 */
+	private void onWritten() {
+		if (writesSincePrune.incrementAndGet() < PRUNE_INTERVAL) {
+			return;
+		}
+		writesSincePrune.set(0);
+		maintenance.schedule(new Runnable() {
+			public void run() {
+				pruneIndexes();
+			}
+		}, 0);
+	}
+
+	private void pruneIndexes() {
+		expiryIndex.prune(storedKeys);
+		variantGroups.prune(storedKeys);
+		if (quotas != null) {
+			quotas.prune(storedKeys);
+		}
 	}
 
 	public void flush() throws IOException {
-		diskLruCache.flush();
+		store.flush();
+		if (uriIndex != null) {
+			uriIndex.flush();
+		}
+		if (tagIndex != null) {
+			tagIndex.flush();
+		}
 	}
 
 	public void delete() throws IOException {
-		diskLruCache.delete();
+		shutdownMaintenance();
+		closeIndexes();
+		store.delete();
 	}
 
 	public void close() throws IOException {
-		diskLruCache.close();
+		shutdownMaintenance();
+		if (durability == Durability.PERIODIC) {
+			syncUnsynced();
+		}
+		closeIndexes();
+		store.close();
+	}
+
+	private void closeIndexes() throws IOException {
+		if (uriIndex != null) {
+			uriIndex.close();
+		}
+		if (tagIndex != null) {
+			tagIndex.close();
+		}
+	}
+
+	private void shutdownMaintenance() {
+		maintenance.shutdown();
+		// 始まる前に取り消された場合も、待っている呼び出し元を戻す
+		finishIndexRebuild();
+		if (revalidations != null) {
+			revalidations.shutdown();
+		}
 	}
 
 	public HttpCacheEntry getEntry(String key) throws IOException {
+		final String uri = key;
 		key = uriToKey(key);
 		// TODO entryのrequest headerの値を利用側でチェックしているか確認し、
 		// チェックしていない場合、こちらでチェックする。
-		Snapshot snapshot = null;
+		if (recentWrites != null) {
+			final HttpCacheEntry recent = recentWrites.get(key, uri);
+			if (recent != null) {
+				// DiskLruCache の LRU の順序は更新しない。書き込んだときに最も新しくなっていて、
+				// 保持する期間の間はディスク (ジャーナル) に触れずに返すのがこの経路の目的のため。
+				if (quotas != null) {
+					quotas.touch(key);
+				}
+				scheduleRevalidationIfStale(uri, recent);
+				return recent;
+			}
+		}
+		final EntryFiles snapshot = store.get(key);
+		if (snapshot == null) {
+			return null;
+		}
 		try {
-			snapshot = diskLruCache.get(key);
-			if (snapshot == null) {
+			final HttpCacheEntry entry;
+			try {
+				entry = readFrom(key, uri, snapshot);
+			} catch (CorruptedEntryException e) {
+				// 壊れたエントリは再び読み込まれないように削除して、キャッシュミスとして扱う
+				snapshot.close();
+				removeHashedKey(key);
+				return null;
+			}
+			if (entry == null) {
+				// ハッシュが衝突した別の URI のエントリ
+				snapshot.close();
 				return null;
 			}
-			final HttpCacheEntry entry = readFrom(snapshot);
+			if (uriIndex != null && !uriIndex.contains(key)) {
+				uriIndex.put(key, uri);
+			}
+			if (tagIndex != null && !tagIndex.contains(key)) {
+				tagIndex.put(key, TagIndex.extractTags(entry, tagHeaders));
+			}
+			if (quotas != null) {
+				if (quotas.contains(key)) {
+					quotas.touch(key);
+				} else {
+					enforceQuotas(key, uri, snapshot.getLength(ENTRY_METADATA)
+							+ snapshot.getLength(ENTRY_BODY));
+				}
+			}
+			scheduleRevalidationIfStale(uri, entry);
 			return entry;
 		} catch (IOException e) {
 			snapshot.close();
@@ -89,18 +440,117 @@ public class DiskLruHttpCacheStorage implements HttpCacheStorage {
 		}
 	}
 
-	public void putEntry(String key, HttpCacheEntry entry) throws IOException {
-		key = uriToKey(key);
-		Editor editor = diskLruCache.edit(key);
+	private void scheduleRevalidationIfStale(final String uri,
+			final HttpCacheEntry entry) {
+		if (revalidations != null
+				&& isWithinStaleWindow(entry,
+						FreshnessPolicy.STALE_WHILE_REVALIDATE)) {
+			// 再検証を待たずに古いエントリを返す
+			revalidations.schedule(uri);
+		}
+	}
+
+	public void putEntry(final String key, final HttpCacheEntry entry)
+			throws IOException {
+		putEntry(key, entry, WritePriority.FOREGROUND);
+	}
+
+	/**
+	 * 優先度を指定してエントリを書き込む。ボディは優先度ごとに設定された速度の上限
+	 * ({@link CacheStorageConfig#setForegroundWriteRate(long)}、
+	 * {@link CacheStorageConfig#setPrefetchWriteRate(long)}) に従って書き込む。
+	 */
+	public void putEntry(final String key, final HttpCacheEntry entry,
+			final WritePriority priority) throws IOException {
+		if (priority == null) {
+			throw new NullPointerException("priority");
+		}
+		// 同じ URI への同時の書き込みは、最新のエントリを書き込む1回にまとめる。
+		entryWrites.write(key, new PendingWrite(entry, priority),
+				new WriteCoalescer.Writer<PendingWrite>() {
+					public void write(final PendingWrite value)
+							throws IOException {
+						writeEntry(key, value.entry, value.priority);
+					}
+				});
+	}
+
+	private void writeEntry(final String uri, HttpCacheEntry entry,
+			final WritePriority priority) throws IOException {
+		final String key = uriToKey(uri);
+		final long maxEntrySize = config.getMaxEntrySize();
+		if (maxEntrySize > 0 && entry.getResource().length() > maxEntrySize) {
+			// 古いレスポンスが残らないように、以前のエントリは削除する
+			removeHashedKey(key);
+			return;
+		}
+		// 保持するコピーを作る場合は、呼び出し元の Resource の代わりにコピーを書き込む
+		final HttpCacheEntry copy = recentWrites != null ? recentWrites
+				.copy(entry) : null;
+		if (copy != null) {
+			entry = copy;
+		}
+		final EntryStore.Editor editor = store.edit(key);
 		if (editor == null) {
 			return;
 		}
-		writeTo(editor, entry);
+		if (copy != null) {
+			// 公開より前に登録しておけば、並行する削除の後に古い内容が残ることはない。
+			// 公開前に読み込まれても、書き込み中の内容を返すだけになる。
+			recentWrites.put(key, uri, copy);
+		}
+		final long size;
+		try {
+			size = writeTo(editor, key, uri, entry,
+					priority == WritePriority.PREFETCH ? prefetchWrites
+							: foregroundWrites);
+		} catch (EntryTooLargeException e) {
+			// Resource.length() より長いボディだった
+			removeHashedKey(key);
+			return;
+		} catch (IOException e) {
+			if (recentWrites != null) {
+				recentWrites.remove(key);
+			}
+			throw e;
+		}
+		onCommitted(key);
+		markChanged(key);
+		if (offHeapBodies != null) {
+			offHeapBodies.remove(key);
+		}
+		indexExpiry(key, entry);
+		variantGroups.add(key);
+		if (uriIndex != null) {
+			uriIndex.put(key, uri);
+		}
+		if (tagIndex != null) {
+			tagIndex.put(key, TagIndex.extractTags(entry, tagHeaders));
+		}
+		if (quotas != null) {
+			enforceQuotas(key, uri, size);
+		}
+		onWritten();
 	}
 
 	public void removeEntry(String key) throws IOException {
-		key = uriToKey(key);
-		diskLruCache.remove(key);
+		final String hashedKey = uriToKey(key);
+		if (CacheKeys.getVariantPrefix(key) != null) {
+			removeHashedKey(hashedKey);
+			return;
+		}
+
+		// URL を無効化する場合は、同じ接頭辞を持つ Variant もまとめて削除する。
+		// メモリ上のまとまりはこのセッションで見たものだけなので、親エントリの variantMap と合わせる。
+		final Set<String> variants = readVariantKeys(hashedKey, key);
+		final Set<String> group = variantGroups.removeGroup(hashedKey);
+		if (group != null) {
+			variants.addAll(group);
+		}
+		removeHashedKey(hashedKey);
+		for (final String variant : variants) {
+			removeHashedKey(variant);
+		}
 	}
 
 	public void updateEntry(String key, HttpCacheUpdateCallback callback)
@@ -110,7 +560,252 @@ public class DiskLruHttpCacheStorage implements HttpCacheStorage {
 		putEntry(key, updating);
 	}
 
+	/**
+	 * 鮮度の期限が猶予期間 ({@link CacheStorageConfig#getExpiredEntryGracePeriod()})
+	 * を超えて過ぎていて、再検証に使える ETag も Last-Modified も持たないエントリを削除する。
+	 * LRU の順序に関係なく削除するので、よく参照されるエントリを追い出さずに容量を空けられる。
+	 * 開いた直後は、以前のセッションのエントリの期限をバックグラウンドで読み終えるまで待つ。
+	 * 
+	 * @return 削除したエントリの数
+	 */
+	public int sweepExpiredEntries() throws IOException {
+		awaitIndexRebuild();
+		return sweepExpiredEntries(false);
+	}
+
+	/**
+	 * @param throttled
+	 *            バックグラウンドの読み書きの上限に従うかどうか
+	 */
+	private int sweepExpiredEntries(final boolean throttled)
+			throws IOException {
+		final long deadline = System.currentTimeMillis()
+				- config.getExpiredEntryGracePeriod();
+		int removed = 0;
+		for (final String key : expiryIndex.pollExpired(deadline)) {
+			if (throttled) {
+				maintenance.acquireIo(REMOVE_IO_COST);
+			}
+			// 編集中のエントリは削除されないが、編集の完了時にインデックスに再登録される。
+			if (removeHashedKey(key)) {
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * エントリを削除し、各インデックスからも取り除く。
+	 * 
+	 * @param key
+	 *            ハッシュ化されたキー
+	 * @return EntryStore からエントリが削除されたかどうか
+	 */
+	private boolean removeHashedKey(final String key) throws IOException {
+		final boolean removed = store.remove(key);
+		markChanged(key);
+		if (recentWrites != null) {
+			recentWrites.remove(key);
+		}
+		if (offHeapBodies != null) {
+			offHeapBodies.remove(key);
+		}
+		expiryIndex.remove(key);
+		variantGroups.remove(key);
+		if (quotas != null) {
+			quotas.remove(key);
+		}
+		if (uriIndex != null) {
+			uriIndex.remove(key);
+		}
+		if (tagIndex != null) {
+			tagIndex.remove(key);
+		}
+		return removed;
+	}
+
+	/**
+	 * Variant を除いた URI が uriPrefix で始まるエントリをすべて削除する。
+	 * {@link CacheStorageConfig#setUriIndexEnabled(boolean)} で有効にしたインデックスを使うので、
+	 * 一致したエントリの数に比例する時間で終わる。
+	 * 
+	 * @param uriPrefix
+	 *            CachingHttpClient が正規化した形式の URI の接頭辞 (例:
+	 *            "http://example.com:80/api/v2/users/")
+	 * @return 削除したエントリの数
+	 * @throws IllegalStateException
+	 *             インデックスが有効でない場合
+	 */
+	public int removeByPrefix(final String uriPrefix) throws IOException {
+		checkUriIndexEnabled();
+		return removeHashedKeys(uriIndex.getKeysByPrefix(uriPrefix));
+	}
+
+	/**
+	 * ホストに属するエントリをすべて削除する。
+	 * 
+	 * @param host
+	 *            ポート番号を含まないホスト名。大文字と小文字は区別しない。
+	 * @return 削除したエントリの数
+	 * @throws IllegalStateException
+	 *             インデックスが有効でない場合
+	 */
+	public int removeByHost(final String host) throws IOException {
+		checkUriIndexEnabled();
+		return removeHashedKeys(uriIndex.getKeysByHost(host));
+	}
+
+	/**
+	 * キャッシュされているエントリを列挙する。
+	 * 呼び出した時点のエントリのキーだけを保持し、メタデータは列挙しながら1件ずつ読み込む。
+	 * 列挙は LRU の順序に影響しない。
+	 */
+	public CachedEntryIterator entries() {
+		final List<String> stored = store.keys();
+		final String[] keys = stored.toArray(new String[stored.size()]);
+		return new CachedEntryIterator(new CachedEntryIterator.Reader() {
+			public CachedEntryInfo read(final String key) {
+				return readInfo(key);
+			}
+		}, keys, 0, keys.length);
+	}
+
+	/**
+	 * {@link CacheStorageConfig#setTagHeaders(String...)} で指定したヘッダに tag を含むエントリをすべて削除する。
+	 * 
+	 * @return 削除したエントリの数
+	 * @throws IllegalStateException
+	 *             タグのヘッダが設定されていない場合
+	 */
+	public int invalidateTag(final String tag) throws IOException {
+		if (tagIndex == null) {
+			throw new IllegalStateException("tag headers are not configured");
+		}
+		return removeHashedKeys(tagIndex.getKeys(tag));
+	}
+
+	private int removeHashedKeys(final List<String> keys) throws IOException {
+		int removed = 0;
+		for (final String key : keys) {
+			if (removeHashedKey(key)) {
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * 不要になった行が多いインデックスのファイルを詰め直す。
+	 */
+	private void compactIndexes() throws IOException {
+		// 詰め直す間はインデックスのロックを保持するので、待つのはロックを取る前にする。
+		// 書き直すファイルは今のファイルより小さいので、今の大きさの分を見込む。
+		if (uriIndex != null && uriIndex.needsCompaction()) {
+			maintenance.acquireIo(new File(directory, URI_INDEX_FILE).length());
+			uriIndex.compact(storedKeys);
+		}
+		if (tagIndex != null && tagIndex.needsCompaction()) {
+			maintenance.acquireIo(new File(directory, TAG_INDEX_FILE).length());
+			tagIndex.compact(storedKeys);
+		}
+	}
+
+	private void checkUriIndexEnabled() {
+		if (uriIndex == null) {
+			throw new IllegalStateException("uri index is not enabled");
+		}
+	}
+
+	private Set<String> readVariantKeys(final String parentKey,
+			final String parentUri) throws IOException {
+		final Set<String> variants = new HashSet<String>();
+		final EntryFiles snapshot = store.get(parentKey);
+		if (snapshot == null) {
+			return variants;
+		}
+		try {
+			final HttpCacheEntry parent = readFrom(parentKey, parentUri,
+					snapshot);
+			if (parent != null) {
+				for (final String variant : parent.getVariantMap().values()) {
+					variants.add(uriToKey(variant));
+				}
+				parent.getResource().dispose();
+			}
+		} catch (CorruptedEntryException e) {
+			// 親エントリとともに削除されるので、ここでは何もしない
+		} finally {
+			snapshot.close();
+		}
+		return variants;
+	}
+
+	private void enforceQuotas(final String key, final String uri,
+			final long size) throws IOException {
+		for (final String victim : quotas.put(key, CacheKeys.getHost(uri),
+				size)) {
+			removeHashedKey(victim);
+		}
+	}
+
+	private void indexExpiry(final String key, final HttpCacheEntry entry) {
+		long expiresAt = ExpiryIndex.NEVER;
+		if (!FreshnessPolicy.isRevalidatable(entry)) {
+			final long explicit = FreshnessPolicy.getExpiresAt(entry);
+			if (explicit != FreshnessPolicy.UNKNOWN) {
+				// 古いエントリを使える期間が過ぎるまでは掃除しない
+				// 溢れる場合は ExpiryIndex.NEVER (Long.MAX_VALUE) になる
+				expiresAt = FreshnessPolicy.addSaturated(explicit, Math.max(
+						FreshnessPolicy.getStaleWindow(entry,
+								FreshnessPolicy.STALE_WHILE_REVALIDATE),
+						FreshnessPolicy.getStaleWindow(entry,
+								FreshnessPolicy.STALE_IF_ERROR)));
+			}
+		}
+		expiryIndex.put(key, expiresAt);
+	}
+
+	/**
+	 * エントリの鮮度の期限が過ぎていて、Cache-Control の stale-if-error の期間内かどうか。
+	 * 再検証に失敗した場合に古いエントリを使ってよいかの判断に使う。
+	 */
+	public boolean isUsableIfError(final HttpCacheEntry entry) {
+		return isWithinStaleWindow(entry, FreshnessPolicy.STALE_IF_ERROR);
+	}
+
+	/**
+	 * エントリの鮮度の期限が過ぎていて、directive で指定された期間内かどうか。
+	 */
+	private static boolean isWithinStaleWindow(final HttpCacheEntry entry,
+			final String directive) {
+		final long window = FreshnessPolicy.getStaleWindow(entry, directive);
+		if (window == 0) {
+			return false;
+		}
+		final long expiresAt = FreshnessPolicy.getExpiresAt(entry);
+		if (expiresAt == FreshnessPolicy.UNKNOWN) {
+			return false;
+		}
+		final long now = System.currentTimeMillis();
+		return now >= expiresAt
+				&& now < FreshnessPolicy.addSaturated(expiresAt, window);
+	}
+
+	/**
+	 * URI を DiskLruCache のキーに変換する。Variant の URI は親の URI のハッシュを接頭辞にもち、
+	 * "&lt;親の URI の MD5&gt;-&lt;Variant の接頭辞の MD5 の先頭16桁&gt;" になる。
+	 */
 	private String uriToKey(final String uri) {
+		final String parentKey = md5Hex(CacheKeys.stripVariant(uri));
+		final String variantPrefix = CacheKeys.getVariantPrefix(uri);
+		if (variantPrefix == null) {
+			return parentKey;
+		}
+		return parentKey + '-'
+				+ md5Hex(variantPrefix).substring(0, VARIANT_HASH_LENGTH);
+	}
+
+	private String md5Hex(final String uri) {
 		// try {
 		// MessageDigest.getInstance(String) isn't thread safe, but it should
 		// be.
@@ -130,221 +825,416 @@ public class DiskLruHttpCacheStorage implements HttpCacheStorage {
 		// }
 	}
 
-	// ====== DiskLruCacheからの読込 ===== //
+	// ====== EntryStore からの読込 ===== //
 
-	private HttpCacheEntry readFrom(final Snapshot snapshot) throws IOException {
-		final Date requestDate;
-		final Date responseDate;
-		final StatusLine statusLine;
-		final Header[] responseHeaders;
-		final Map<String, String> variantMap;
-		StrictLineReader in = null;
-		try {
-			in = new StrictLineReader(snapshot.getInputStream(ENTRY_METADATA),
-					Charsets.US_ASCII);
-			requestDate = new Date(Long.valueOf(in.readLine()));
-			responseDate = new Date(Long.valueOf(in.readLine()));
-			statusLine = readStatusLine(in);
-			responseHeaders = readResponseHeaders(in);
-			variantMap = readVariantMap(in);
-		} finally {
-			if (in != null) {
-				in.close();
-			}
+	/**
+	 * @param uri
+	 *            読み込むエントリの元の URI
+	 * @return 保存されている元の URI が uri と異なる場合は null
+	 * @throws CorruptedEntryException
+	 *             メタデータを解釈できないか、チェックサムが一致しない場合
+	 */
+	private HttpCacheEntry readFrom(final String key, final String uri,
+			final EntryFiles snapshot) throws IOException {
+		final EntryMetadata metadata = readSharedMetadata(key, snapshot);
+		if (!uri.equals(metadata.uri)) {
+			return null;
+		}
+		if (metadata.bodyLength != snapshot.getLength(ENTRY_BODY)) {
+			throw new CorruptedEntryException("body length mismatch");
 		}
 
-		final Resource resource = readResource(snapshot);
+		final Resource resource = readResource(key, snapshot,
+				metadata.bodyChecksum);
 
-		return new HttpCacheEntry(requestDate, responseDate, statusLine,
-				responseHeaders, resource, variantMap);
+		return metadata.toEntry(resource);
 	}
 
-	private StatusLine readStatusLine(final StrictLineReader in) throws IOException {
-		final ProtocolVersion version = readProtocolVersion(in);
-		final int statusCode = Integer.valueOf(in.readLine());
-		final String reasonPhrase = in.readLine();
-		return new BasicStatusLine(version, statusCode, reasonPhrase);
+	/**
+	 * 同じキーを同時に読み込む場合は、メタデータの解析を1回にまとめる。
+	 * 
+	 * @throws CorruptedEntryException
+	 *             メタデータを解釈できないか、チェックサムが一致しない場合
+	 */
+	// 各呼び出し元は自身の Snapshot を開いていて、解析中に書き換えられると別の内容を指しうる。
+	// 他の呼び出し元の解析結果は、自身の Snapshot の最終行のチェックサムが一致する場合だけ使う。
+	// 長さが同じでも内容が違えば、ヘッダやボディのチェックサムを取り違えることになるため。
+	private EntryMetadata readSharedMetadata(final String key,
+			final EntryFiles snapshot) throws IOException {
+		final EntryMetadata[] own = new EntryMetadata[1];
+		final EntryMetadata shared = metadataReads.execute(key,
+				new SingleFlight.Call<EntryMetadata>() {
+					public EntryMetadata call() throws IOException {
+						own[0] = readMetadata(snapshot);
+						return own[0];
+					}
+				});
+		if (shared == own[0]) {
+			return shared;
+		}
+		final long length = snapshot.getLength(ENTRY_METADATA);
+		final InputStream in = snapshot.getInputStream(ENTRY_METADATA);
+		if (shared.length == length
+				&& in instanceof FileInputStream
+				&& shared.checksum == EntryCodec.readStoredChecksum(
+						((FileInputStream) in).getChannel(), length)) {
+			return shared;
+		}
+		// 解析中に書き換えられたか、比べられない EntryStore
+		return readMetadata(snapshot);
 	}
 
-	private ProtocolVersion readProtocolVersion(final StrictLineReader in)
+	/**
+	 * @throws CorruptedEntryException
+	 *             メタデータを解釈できないか、チェックサムが一致しない場合
+	 */
+	private EntryMetadata readMetadata(final EntryFiles snapshot)
 			throws IOException {
-		final String protocol = in.readLine();
-		final int majorProtocolVersion = Integer.valueOf(in.readLine());
-		final int minorProtocolVersion = Integer.valueOf(in.readLine());
-		return new ProtocolVersion(protocol, majorProtocolVersion,
-				minorProtocolVersion);
+		return EntryCodec.readMetadata(
+				snapshot.getInputStream(ENTRY_METADATA),
+				snapshot.getLength(ENTRY_METADATA));
 	}
 
-	private Header[] readResponseHeaders(final StrictLineReader in)
-			throws IOException {
-		final int headerCount = Integer.valueOf(in.readLine());
-		final Header[] headers = new Header[headerCount];
-		for (int i = 0; i < headerCount; i++) {
-			final String key = in.readLine();
-			final String value = in.readLine();
-			headers[i] = new BasicHeader(key, value);
+	/**
+	 * エントリの概要を読み込む。LRU の順序は変わらない。
+	 * 
+	 * @return エントリが存在しないか読み込めない場合は null
+	 */
+	private CachedEntryInfo readInfo(final String key) {
+		final EntryFiles files = store.peek(key);
+		if (files == null) {
+			return null;
 		}
-
-		return headers;
-	}
-
-	private Map<String, String> readVariantMap(final StrictLineReader in)
-			throws IOException {
-		final int mapSize = Integer.valueOf(in.readLine());
-		final Map<String, String> map = new HashMap<String, String>(mapSize * 2);
-		for (int i = 0; i < mapSize; i++) {
-			final String key = in.readLine();
-			final String value = in.readLine();
-			map.put(key, value);
+		try {
+			final StrictLineReader in = new StrictLineReader(
+					files.getInputStream(ENTRY_METADATA), Charsets.UTF_8);
+			final String uri = in.readLine();
+			final Date requestDate = new Date(in.readLong());
+			final Date responseDate = new Date(in.readLong());
+			EntryCodec.readProtocolVersion(in);
+			final int statusCode = in.readInt();
+			return new CachedEntryInfo(uri, key,
+					files.getLength(ENTRY_METADATA),
+					files.getLength(ENTRY_BODY), requestDate, responseDate,
+					statusCode);
+		} catch (IOException e) {
+			// 列挙中に削除されたか、書き込み途中で壊れている
+			return null;
+		} finally {
+			files.close();
 		}
-
-		return map;
 	}
 
-	private Resource readResource(final Snapshot snapshot) {
-		return new Resource() {
-			private static final long serialVersionUID = -3869776330328527339L;
-
-			public long length() {
-				return snapshot.getLength(ENTRY_BODY);
-			}
-
-			public InputStream getInputStream() throws IOException {
-				// FileResourceやHeapResourceは呼び出し毎にStreamを生成しているので
-				// データをすべてbyte[]にはき出して保持しておく必要があるかも。
-				return snapshot.getInputStream(ENTRY_BODY);
+	private Resource readResource(final String key, final EntryFiles snapshot,
+			final long bodyChecksum) throws IOException {
+		final long bodyLength = snapshot.getLength(ENTRY_BODY);
+		if (offHeapBodies != null && offHeapBodies.accepts(bodyLength)) {
+			Resource resource = offHeapBodies.get(key, bodyLength, bodyChecksum);
+			if (resource == null) {
+				// 読み込み時にチェックサムを検証するので、保持したボディは検証済みになる
+				resource = offHeapBodies.load(key,
+						snapshot.getInputStream(ENTRY_BODY), bodyLength,
+						bodyChecksum);
 			}
-
-			public void dispose() {
+			if (resource != null) {
+				// ボディのファイルはもう読まない
 				snapshot.close();
+				return resource;
 			}
-		};
+		}
+		final InputStream body = snapshot.getInputStream(ENTRY_BODY);
+		if (body instanceof FileInputStream) {
+			return new FileBodyResource(key, snapshot, bodyChecksum,
+					((FileInputStream) body).getChannel());
+		}
+		return new BodyResource(key, snapshot, bodyChecksum);
 	}
 
-	// ===== DiskLruCache への書き込み ===== //
+	// ===== EntryStore への書き込み ===== //
 
-	private void writeTo(final Editor editor, final HttpCacheEntry entry)
-			throws IOException {
+	/**
+	 * @param rateLimiter
+	 *            ボディの書き込みの速度を制限しない場合は null
+	 * @return 書き込んだバイト数
+	 */
+	private long writeTo(final EntryStore.Editor editor, final String key,
+			final String uri, final HttpCacheEntry entry,
+			final IoRateLimiter rateLimiter) throws IOException {
 		try {
-			writeMetadataTo(editor, entry);
-			writeBodyTo(editor, entry.getResource());
+			// メタデータにボディのチェックサムを含めるため、ボディを先に書き込む
+			final CRC32 bodyChecksum = new CRC32();
+			final long bodySize = writeBodyTo(editor, entry.getResource(),
+					bodyChecksum, rateLimiter, config.getMaxEntrySize());
+			final long metadataSize = EntryCodec.writeMetadata(
+					editor.newOutputStream(ENTRY_METADATA), uri, entry,
+					bodySize, bodyChecksum.getValue());
 			editor.commit();
+			return metadataSize + bodySize;
 		} catch (IOException e) {
 			editor.abort();
 			throw e;
 		}
 	}
 
-	private void writeMetadataTo(final Editor editor, final HttpCacheEntry entry)
+	/**
+	 * @param maxSize
+	 *            0 以下の場合は制限しない
+	 * @throws EntryTooLargeException
+	 *             maxSize を超えた場合。超えた時点で書き込みをやめる。
+	 */
+	private long writeBodyTo(final EntryStore.Editor editor,
+			final Resource resource, final Checksum checksum,
+			final IoRateLimiter rateLimiter, final long maxSize)
 			throws IOException {
-		OutputStream stream = null;
-		Writer writer = null;
-		Writer bufferedWriter = null;
+		long count = 0;
+		OutputStream out = null;
+		InputStream in = null;
 		try {
-			stream = editor.newOutputStream(ENTRY_METADATA);
-			writer = new OutputStreamWriter(stream, Charsets.UTF_8);
-			bufferedWriter = new BufferedWriter(writer);
-
-			bufferedWriter.write(Long
-					.toString(entry.getRequestDate().getTime()));
-			bufferedWriter.write('\n');
-			bufferedWriter.write(Long.toString(entry.getResponseDate()
-					.getTime()));
-			bufferedWriter.write('\n');
-			writeStatusLine(bufferedWriter, entry.getStatusLine());
-			writeResponseHeaders(bufferedWriter, entry.getAllHeaders());
-			writeVariantMap(bufferedWriter, entry.getVariantMap());
+			out = editor.newOutputStream(ENTRY_BODY);
+			in = resource.getInputStream();
+
+			final byte[] buffer = new byte[BODY_BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				if (maxSize > 0 && count + read > maxSize) {
+					throw new EntryTooLargeException("body exceeds " + maxSize
+							+ " bytes");
+				}
+				if (rateLimiter != null) {
+					rateLimiter.acquire(read);
+				}
+				out.write(buffer, 0, read);
+				checksum.update(buffer, 0, read);
+				count += read;
+			}
+			return count;
 		} finally {
-			if (bufferedWriter != null) {
-				bufferedWriter.close();
+			if (out != null) {
+				out.close();
 			}
 
-			if (writer != null) {
-				writer.close();
+			if (in != null) {
+				in.close();
 			}
+		}
+	}
+
+	private class BodyResource implements Resource {
+		private static final long serialVersionUID = -3869776330328527339L;
+
+		final String key;
+		final transient EntryFiles snapshot;
+		final long bodyChecksum;
+
+		BodyResource(final String key, final EntryFiles snapshot,
+				final long bodyChecksum) {
+			this.key = key;
+			this.snapshot = snapshot;
+			this.bodyChecksum = bodyChecksum;
+		}
+
+		public long length() {
+			return snapshot.getLength(ENTRY_BODY);
+		}
 
-			if (stream != null) {
-				stream.close();
+		public InputStream getInputStream() throws IOException {
+			// FileResourceやHeapResourceは呼び出し毎にStreamを生成しているので
+			// データをすべてbyte[]にはき出して保持しておく必要があるかも。
+			final InputStream in = snapshot.getInputStream(ENTRY_BODY);
+			if (!config.isVerifyBodyChecksum()) {
+				return in;
 			}
+			return new VerifyingInputStream(in, key, length(), bodyChecksum);
 		}
-	}
 
-	private void writeStatusLine(final Writer writer,
-			final StatusLine statusLine) throws IOException {
-		writeProtocolVersion(writer, statusLine.getProtocolVersion());
-		writer.write(Integer.toString(statusLine.getStatusCode()));
-		writer.write('\n');
-		writer.write(statusLine.getReasonPhrase());
-		writer.write('\n');
+		public void dispose() {
+			snapshot.close();
+		}
 	}
 
-	private void writeProtocolVersion(final Writer writer,
-			final ProtocolVersion protocolVersion) throws IOException {
-		writer.write(protocolVersion.getProtocol());
-		writer.write('\n');
-		writer.write(Integer.toString(protocolVersion.getMajor()));
-		writer.write('\n');
-		writer.write(Integer.toString(protocolVersion.getMinor()));
-		writer.write('\n');
-	}
+	/**
+	 * ボディのファイルを位置を指定して読む。
+	 */
+	// FileChannel の位置指定の読み込みと transferTo はストリームの位置を動かさないので、
+	// getInputStream で返したストリームと並行して使える。
+	// 位置を指定した読み込みは一部だけを読んだり順序を問わず読んだりするので、途中のチェックサムでは検証できない。
+	// チェックサムを検証する場合は、最初の読み込みの前にボディ全体を一度読んで検証する。
+	private final class FileBodyResource extends BodyResource implements
+			ChannelResource {
+		private static final long serialVersionUID = 6218553093402718251L;
+
+		private final transient FileChannel channel;
+		/* チェックサムを検証しない場合は最初から true */
+		private transient volatile boolean verified;
 
-	private void writeResponseHeaders(final Writer writer,
-			final Header[] headers) throws IOException {
-		writer.write(Integer.toString(headers.length));
-		writer.write('\n');
-		for (final Header header : headers) {
-			writer.write(header.getName());
-			writer.write('\n');
-			writer.write(header.getValue());
-			writer.write('\n');
+		FileBodyResource(final String key, final EntryFiles snapshot,
+				final long bodyChecksum, final FileChannel channel) {
+			super(key, snapshot, bodyChecksum);
+			this.channel = channel;
+			this.verified = !config.isVerifyBodyChecksum();
 		}
-	}
 
-	private void writeVariantMap(final Writer writer,
-			final Map<String, String> variantMap) throws IOException {
-		writer.write(Integer.toString(variantMap.size()));
-		writer.write('\n');
-		for (Entry<String, String> entry : variantMap.entrySet()) {
-			writer.write(entry.getKey());
-			writer.write('\n');
-			writer.write(entry.getValue());
-			writer.write('\n');
+		public int read(final ByteBuffer dst, final long position)
+				throws IOException {
+			verifyOnce();
+			return channel.read(dst, position);
 		}
-	}
 
-	private void writeBodyTo(final Editor editor, final Resource resource)
-			throws IOException {
-		OutputStream out = null;
-		BufferedOutputStream bout = null;
-		InputStream in = null;
-		BufferedInputStream bin = null;
-		try {
-			out = editor.newOutputStream(ENTRY_BODY);
-			bout = new BufferedOutputStream(out);
-			in = resource.getInputStream();
-			bin = new BufferedInputStream(in);
+		public long transferTo(final long position, final long count,
+				final WritableByteChannel target) throws IOException {
+			verifyOnce();
+			return channel.transferTo(position, count, target);
+		}
 
-			int data = 0;
-			while ((data = bin.read()) != -1) {
-				bout.write(data);
+		/**
+		 * @throws CorruptedEntryException
+		 *             ボディが壊れていた場合。エントリは削除され、以降の読み込みも失敗する。
+		 */
+		private void verifyOnce() throws IOException {
+			if (verified) {
+				return;
 			}
-		} finally {
-			if (bout != null) {
-				bout.close();
+			synchronized (this) {
+				if (verified) {
+					return;
+				}
+				final CRC32 checksum = new CRC32();
+				final ByteBuffer buffer = ByteBuffer.allocate(BODY_BUFFER_SIZE);
+				long position = 0;
+				int read;
+				while ((read = channel.read(buffer, position)) != -1) {
+					checksum.update(buffer.array(), 0, read);
+					position += read;
+					buffer.clear();
+				}
+				if (position != length()
+						|| checksum.getValue() != bodyChecksum) {
+					removeHashedKey(key);
+					throw new CorruptedEntryException("body checksum mismatch");
+				}
+				verified = true;
 			}
+		}
+	}
 
-			if (out != null) {
-				out.close();
+	/**
+	 * 読み込んだボディの長さとチェックサムを終端で検証し、一致しなければエントリを削除する。
+	 */
+	private class VerifyingInputStream extends FilterInputStream {
+		private final String key;
+		private final long expectedLength;
+		private final long expectedChecksum;
+		private final CRC32 checksum = new CRC32();
+		private long length;
+		private boolean verified;
+
+		VerifyingInputStream(final InputStream in, final String key,
+				final long expectedLength, final long expectedChecksum) {
+			super(in);
+			this.key = key;
+			this.expectedLength = expectedLength;
+			this.expectedChecksum = expectedChecksum;
+		}
+
+		@Override
+		public int read() throws IOException {
+			final int b = in.read();
+			if (b == -1) {
+				verify();
+			} else {
+				checksum.update(b);
+				length++;
 			}
+			return b;
+		}
 
-			if (bin != null) {
-				bin.close();
+		@Override
+		public int read(final byte[] b, final int off, final int len)
+				throws IOException {
+			final int read = in.read(b, off, len);
+			if (read == -1) {
+				verify();
+			} else {
+				checksum.update(b, off, read);
+				length += read;
 			}
+			return read;
+		}
 
-			if (in != null) {
-				in.close();
+		@Override
+		public long skip(final long n) throws IOException {
+			// 読み飛ばしたバイトもチェックサムに含める必要があるので実際に読み込む
+			final byte[] buffer = new byte[(int) Math.min(n, BODY_BUFFER_SIZE)];
+			final int read = read(buffer, 0, buffer.length);
+			return read == -1 ? 0 : read;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		private void verify() throws IOException {
+			if (verified) {
+				return;
+			}
+			verified = true;
+			if (length != expectedLength
+					|| checksum.getValue() != expectedChecksum) {
+				removeHashedKey(key);
+				throw new CorruptedEntryException("body checksum mismatch");
 			}
 		}
+	}
+
+	private static final class PendingWrite {
+		final HttpCacheEntry entry;
+		final WritePriority priority;
+
+		PendingWrite(final HttpCacheEntry entry, final WritePriority priority) {
+			this.entry = entry;
+			this.priority = priority;
+		}
+	}
+
+	// ===== fsync ===== //
 
+	private void onCommitted(final String key) throws IOException {
+		switch (durability) {
+		case COMMIT:
+			// エントリのファイルは書き込んだスレッドごとに並行して fsync し、
+			// 全エントリで共有するジャーナルの fsync だけをまとめる
+			store.syncEntry(key);
+			journalCommit.sync();
+			break;
+		case PERIODIC:
+			synchronized (unsyncedKeys) {
+				unsyncedKeys.add(key);
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * 前回から書き込まれたエントリ、ジャーナル、インデックスをまとめて fsync する。
+	 */
+	private void syncUnsynced() throws IOException {
+		final List<String> keys;
+		synchronized (unsyncedKeys) {
+			keys = new ArrayList<String>(unsyncedKeys);
+			unsyncedKeys.clear();
+		}
+		store.flush();
+		if (uriIndex != null) {
+			uriIndex.flush();
+			DiskLruEntryStore.sync(new File(directory, URI_INDEX_FILE));
+		}
+		if (tagIndex != null) {
+			tagIndex.flush();
+			DiskLruEntryStore.sync(new File(directory, TAG_INDEX_FILE));
+		}
+		store.sync(keys);
 	}
 }
@@ -0,0 +1,26 @@
+package com.lisb.utils.http.disklrustorage;
+
+/**
+ * 書き込んだエントリをどこまで確実にストレージに残すか。
+ * 
+ * @see CacheStorageConfig#setDurability(Durability)
+ */
+public enum Durability {
+
+	/**
+	 * fsync しない。異常終了や電源断の直前に書き込んだエントリは失われうる。
+	 * 失われたエントリや途中まで書かれたファイルは、次回の起動時か読み込み時に取り除かれる。
+	 */
+	NONE,
+
+	/**
+	 * バックグラウンドで一定間隔ごとに、その間に書き込んだエントリとジャーナルをまとめて fsync する。
+	 * 電源断で失われるのは最大で1間隔分の書き込みになる。
+	 */
+	PERIODIC,
+
+	/**
+	 * エントリを書き込むたびに、そのファイルとジャーナルを fsync してから putEntry を返す。
+	 */
+	COMMIT
+}
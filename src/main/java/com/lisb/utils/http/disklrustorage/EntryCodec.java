@@ -0,0 +1,241 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.CRC32;
+
+import ch.boye.httpclientandroidlib.Header;
+import ch.boye.httpclientandroidlib.ProtocolVersion;
+import ch.boye.httpclientandroidlib.StatusLine;
+import ch.boye.httpclientandroidlib.client.cache.HttpCacheEntry;
+import ch.boye.httpclientandroidlib.message.BasicStatusLine;
+
+import com.lisb.utils.http.disklrustorage.StrictLineReader.MalformedLineException;
+import com.lisb.utils.http.disklrustorage.compat.Charsets;
+
+/**
+ * エントリのメタデータ (ボディ以外のすべて) の読み書き。
+ * {@link DiskLruHttpCacheStorage} と {@link SegmentHttpCacheStorage} で同じ形式を使う。
+ */
+// 形式は UTF-8 の1行1値で、次の順に並ぶ。
+// 元の URI / リクエスト日時 / レスポンス日時 / プロトコル / メジャー / マイナー /
+// ステータスコード / 理由句 / ヘッダ数と各ヘッダの名前・値 / Variant 数と各キー・値 /
+// ボディの長さ / ボディの CRC32 / それまでのすべての行の CRC32
+final class EntryCodec {
+
+	private EntryCodec() {
+	}
+
+	/**
+	 * メタデータを書き込み、out を閉じる。
+	 * 
+	 * @return 書き込んだバイト数
+	 */
+	static long writeMetadata(final OutputStream out, final String uri,
+			final HttpCacheEntry entry, final long bodyLength,
+			final long bodyChecksum) throws IOException {
+		StrictLineWriter writer = null;
+		try {
+			writer = new StrictLineWriter(out, new CRC32());
+			writer.writeLine(uri);
+			writer.writeLine(entry.getRequestDate().getTime());
+			writer.writeLine(entry.getResponseDate().getTime());
+			writeStatusLine(writer, entry.getStatusLine());
+			writeResponseHeaders(writer, entry.getAllHeaders());
+			writeVariantMap(writer, entry.getVariantMap());
+			writer.writeLine(bodyLength);
+			writer.writeLine(bodyChecksum);
+			// 最終行はそれまでのすべての行のチェックサム
+			writer.writeLine(writer.getChecksumValue());
+			return writer.getWrittenBytes();
+		} finally {
+			if (writer != null) {
+				writer.close();
+			}
+		}
+	}
+
+	private static void writeStatusLine(final StrictLineWriter writer,
+			final StatusLine statusLine) throws IOException {
+		writeProtocolVersion(writer, statusLine.getProtocolVersion());
+		writer.writeLine(statusLine.getStatusCode());
+		writer.writeLine(statusLine.getReasonPhrase());
+	}
+
+	private static void writeProtocolVersion(final StrictLineWriter writer,
+			final ProtocolVersion protocolVersion) throws IOException {
+		writer.writeLine(protocolVersion.getProtocol());
+		writer.writeLine(protocolVersion.getMajor());
+		writer.writeLine(protocolVersion.getMinor());
+	}
+
+	private static void writeResponseHeaders(final StrictLineWriter writer,
+			final Header[] headers) throws IOException {
+		writer.writeLine(headers.length);
+		for (final Header header : headers) {
+			writer.writeLine(header.getName());
+			writer.writeLine(header.getValue());
+		}
+	}
+
+	private static void writeVariantMap(final StrictLineWriter writer,
+			final Map<String, String> variantMap) throws IOException {
+		writer.writeLine(variantMap.size());
+		for (Entry<String, String> entry : variantMap.entrySet()) {
+			writer.writeLine(entry.getKey());
+			writer.writeLine(entry.getValue());
+		}
+	}
+
+	/**
+	 * メタデータを読み込み、in を閉じる。
+	 * 
+	 * @param length
+	 *            メタデータのバイト数
+	 * @throws CorruptedEntryException
+	 *             メタデータを解釈できないか、チェックサムが一致しない場合
+	 * @throws IOException
+	 *             in の読み込みに失敗した場合。エントリが壊れているとは限らないので、そのまま投げる
+	 */
+	static EntryMetadata readMetadata(final InputStream in, final long length)
+			throws IOException {
+		final String uri;
+		final Date requestDate;
+		final Date responseDate;
+		final StatusLine statusLine;
+		final RawHeaders responseHeaders;
+		final Map<String, String> variantMap;
+		final long bodyLength;
+		final long bodyChecksum;
+		final long metadataChecksum;
+		final CRC32 checksum = new CRC32();
+		StrictLineReader reader = null;
+		try {
+			reader = new StrictLineReader(in, Charsets.UTF_8, checksum);
+			uri = reader.readLine();
+			requestDate = new Date(reader.readLong());
+			responseDate = new Date(reader.readLong());
+			statusLine = readStatusLine(reader);
+			// ヘッダはバイト列のまま保持し、参照されたときに文字列にする
+			responseHeaders = RawHeaders.read(reader,
+					readCount(reader, length));
+			variantMap = readVariantMap(reader, length);
+			bodyLength = reader.readLong();
+			bodyChecksum = reader.readLong();
+			metadataChecksum = checksum.getValue();
+			if (reader.readLong() != metadataChecksum) {
+				throw new CorruptedEntryException("metadata checksum mismatch");
+			}
+		} catch (EOFException e) {
+			// 途中で切れたファイル
+			throw new CorruptedEntryException("truncated metadata", e);
+		} catch (MalformedLineException e) {
+			throw new CorruptedEntryException("unreadable metadata", e);
+		} finally {
+			if (reader != null) {
+				reader.close();
+			} else {
+				in.close();
+			}
+		}
+		return new EntryMetadata(length, uri, requestDate, responseDate,
+				statusLine, responseHeaders, variantMap, bodyLength,
+				bodyChecksum, metadataChecksum);
+	}
+
+	/**
+	 * メタデータの最終行に記録されたチェックサムだけを、チャネルの位置を動かさずに読み込む。
+	 * メタデータ全体を解釈せずに、読み込み済みの {@link EntryMetadata} と同じ内容かを確かめるのに使う。
+	 * 
+	 * @param length
+	 *            メタデータのバイト数
+	 * @throws CorruptedEntryException
+	 *             最終行が数値の行でない場合
+	 */
+	static long readStoredChecksum(final FileChannel channel, final long length)
+			throws IOException {
+		// CRC32 の10進表記は最大10桁なので、前の行の改行を含めて末尾の12バイトに収まる
+		final ByteBuffer tail = ByteBuffer.allocate((int) Math.min(length, 12));
+		long position = length - tail.capacity();
+		while (tail.hasRemaining()) {
+			final int read = channel.read(tail, position);
+			if (read == -1) {
+				throw new CorruptedEntryException("truncated metadata");
+			}
+			position += read;
+		}
+		final byte[] bytes = tail.array();
+		int end = bytes.length - 1;
+		if (end < 0 || bytes[end] != '\n') {
+			throw new CorruptedEntryException("truncated metadata");
+		}
+		int start = end;
+		while (start > 0 && bytes[start - 1] != '\n') {
+			start--;
+		}
+		if (start == 0 || start == end) {
+			throw new CorruptedEntryException("unreadable metadata checksum");
+		}
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			if (bytes[i] < '0' || bytes[i] > '9') {
+				throw new CorruptedEntryException(
+						"unreadable metadata checksum");
+			}
+			value = value * 10 + (bytes[i] - '0');
+		}
+		return value;
+	}
+
+	private static StatusLine readStatusLine(final StrictLineReader in) throws IOException {
+		final ProtocolVersion version = readProtocolVersion(in);
+		final int statusCode = in.readInt();
+		final String reasonPhrase = in.readLine(KnownHeaders.VALUES);
+		return new BasicStatusLine(version, statusCode, reasonPhrase);
+	}
+
+	static ProtocolVersion readProtocolVersion(final StrictLineReader in)
+			throws IOException {
+		final String protocol = in.readLine(KnownHeaders.VALUES);
+		final int majorProtocolVersion = in.readInt();
+		final int minorProtocolVersion = in.readInt();
+		return new ProtocolVersion(protocol, majorProtocolVersion,
+				minorProtocolVersion);
+	}
+
+	/**
+	 * ヘッダや Variant の数を読み込む。
+	 * 
+	 * @throws CorruptedEntryException
+	 *             負の数か、1組に少なくとも2バイト (2つの改行) を使うのにメタデータに収まらない数の場合
+	 */
+	private static int readCount(final StrictLineReader in, final long length)
+			throws IOException {
+		final int count = in.readInt();
+		if (count < 0 || count > length / 2) {
+			throw new CorruptedEntryException("bad count: " + count);
+		}
+		return count;
+	}
+
+	private static Map<String, String> readVariantMap(
+			final StrictLineReader in, final long length) throws IOException {
+		final int mapSize = readCount(in, length);
+		final Map<String, String> map = new HashMap<String, String>(mapSize * 2);
+		for (int i = 0; i < mapSize; i++) {
+			final String key = in.readLine();
+			final String value = in.readLine();
+			map.put(key, value);
+		}
+
+		return map;
+	}
+}
@@ -0,0 +1,16 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.io.InputStream;
+
+/**
+ * 読み込み中のエントリのファイル。{@link com.jakewharton.disklrucache.DiskLruCache.Snapshot}
+ * と同じく、開いた時点の内容を読み、閉じるまでファイルを保持する。
+ */
+interface EntryFiles {
+
+	InputStream getInputStream(int index);
+
+	long getLength(int index);
+
+	void close();
+}
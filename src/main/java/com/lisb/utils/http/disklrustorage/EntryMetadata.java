@@ -0,0 +1,48 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.util.Date;
+import java.util.Map;
+
+import ch.boye.httpclientandroidlib.StatusLine;
+import ch.boye.httpclientandroidlib.client.cache.HttpCacheEntry;
+import ch.boye.httpclientandroidlib.client.cache.Resource;
+
+/**
+ * ボディを除いたエントリの内容。同時に読み込む呼び出し元の間で共有するので変更しない。
+ */
+final class EntryMetadata {
+	final long length;
+	final String uri;
+	final Date requestDate;
+	final Date responseDate;
+	final StatusLine statusLine;
+	final RawHeaders responseHeaders;
+	final Map<String, String> variantMap;
+	final long bodyLength;
+	final long bodyChecksum;
+	/* メタデータの最終行に記録されたチェックサム */
+	final long checksum;
+
+	EntryMetadata(final long length, final String uri,
+			final Date requestDate, final Date responseDate,
+			final StatusLine statusLine, final RawHeaders responseHeaders,
+			final Map<String, String> variantMap, final long bodyLength,
+			final long bodyChecksum, final long checksum) {
+		this.length = length;
+		this.uri = uri;
+		this.requestDate = requestDate;
+		this.responseDate = responseDate;
+		this.statusLine = statusLine;
+		this.responseHeaders = responseHeaders;
+		this.variantMap = variantMap;
+		this.bodyLength = bodyLength;
+		this.bodyChecksum = bodyChecksum;
+		this.checksum = checksum;
+	}
+
+	HttpCacheEntry toEntry(final Resource resource) {
+		// ヘッダは参照されたときに文字列にする
+		return new LazyHttpCacheEntry(requestDate, responseDate, statusLine,
+				responseHeaders, resource, variantMap);
+	}
+}
@@ -0,0 +1,160 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * エントリ数とホストごとの容量・エントリ数の上限を管理する。
+ */
+// 全体とホストごとにアクセス順の LinkedHashMap を持つことで、
+// 記録・参照・追い出し対象の選択をいずれも O(1) で行う。
+// DiskLruCache が容量超過で削除したエントリは通知されないため記録に残るが、
+// 追い出し対象に選ばれた時点か prune の時点で記録から取り除かれる。
+final class EntryQuotas {
+
+	private final int maxEntryCount;
+	private final long maxHostBytes;
+	private final int maxHostEntryCount;
+
+	private final LinkedHashMap<String, Record> records = new LinkedHashMap<String, Record>(
+			16, 0.75f, true);
+	private final Map<String, HostUsage> hosts = new HashMap<String, HostUsage>();
+
+	EntryQuotas(final int maxEntryCount, final long maxHostBytes,
+			final int maxHostEntryCount) {
+		this.maxEntryCount = maxEntryCount;
+		this.maxHostBytes = maxHostBytes;
+		this.maxHostEntryCount = maxHostEntryCount;
+	}
+
+	/**
+	 * いずれかの上限が設定されているかどうか。
+	 */
+	static boolean isEnabled(final CacheStorageConfig config) {
+		return config.getMaxEntryCount() > 0 || config.getMaxHostBytes() > 0
+				|| config.getMaxHostEntryCount() > 0;
+	}
+
+	synchronized boolean contains(final String key) {
+		return records.containsKey(key);
+	}
+
+	/**
+	 * エントリの書き込みを記録し、上限を超えた場合に追い出すべきキーを返す。
+	 * 
+	 * @param key
+	 *            ハッシュ化されたキー
+	 * @param host
+	 *            元の URI のホスト名
+	 * @param size
+	 *            エントリのバイト数
+	 * @return 追い出すべきキー。これらはすでに記録から取り除かれている。
+	 */
+	synchronized List<String> put(final String key, final String host,
+			final long size) {
+		remove(key);
+		HostUsage usage = hosts.get(host);
+		if (usage == null) {
+			usage = new HostUsage();
+			hosts.put(host, usage);
+		}
+		final Record record = new Record(key, host, size);
+		records.put(key, record);
+		usage.records.put(key, record);
+		usage.bytes += size;
+
+		List<String> victims = null;
+		while ((maxHostBytes > 0 && usage.bytes > maxHostBytes)
+				|| (maxHostEntryCount > 0 && usage.records.size() > maxHostEntryCount)) {
+			victims = evict(usage.records.values().iterator().next(), victims);
+		}
+		while (maxEntryCount > 0 && records.size() > maxEntryCount) {
+			victims = evict(records.values().iterator().next(), victims);
+		}
+		return victims != null ? victims : new ArrayList<String>(0);
+	}
+
+	/**
+	 * エントリの参照を記録する。
+	 */
+	synchronized void touch(final String key) {
+		final Record record = records.get(key);
+		if (record != null) {
+			hosts.get(record.host).records.get(key);
+		}
+	}
+
+	synchronized void remove(final String key) {
+		final Record record = records.remove(key);
+		if (record == null) {
+			return;
+		}
+		final HostUsage usage = hosts.get(record.host);
+		usage.records.remove(key);
+		usage.bytes -= record.size;
+		if (usage.records.isEmpty()) {
+			hosts.remove(record.host);
+		}
+	}
+
+	/**
+	 * stored が受け付けないキーの記録を取り除く。
+	 */
+	void prune(final IndexJournal.KeyFilter stored) {
+		final List<String> keys;
+		synchronized (this) {
+			keys = new ArrayList<String>(records.keySet());
+		}
+		for (final String key : keys) {
+			synchronized (this) {
+				if (!stored.accept(key)) {
+					remove(key);
+				}
+			}
+		}
+	}
+
+	synchronized long getHostBytes(final String host) {
+		final HostUsage usage = hosts.get(host);
+		return usage != null ? usage.bytes : 0;
+	}
+
+	synchronized int getHostEntryCount(final String host) {
+		final HostUsage usage = hosts.get(host);
+		return usage != null ? usage.records.size() : 0;
+	}
+
+	synchronized int getEntryCount() {
+		return records.size();
+	}
+
+	private List<String> evict(final Record record, List<String> victims) {
+		remove(record.key);
+		if (victims == null) {
+			victims = new ArrayList<String>();
+		}
+		victims.add(record.key);
+		return victims;
+	}
+
+	private static class Record {
+		final String key;
+		final String host;
+		final long size;
+
+		Record(final String key, final String host, final long size) {
+			this.key = key;
+			this.host = host;
+			this.size = size;
+		}
+	}
+
+	private static class HostUsage {
+		final LinkedHashMap<String, Record> records = new LinkedHashMap<String, Record>(
+				16, 0.75f, true);
+		long bytes;
+	}
+}
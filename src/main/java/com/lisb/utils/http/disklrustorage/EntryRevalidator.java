@@ -0,0 +1,24 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.io.IOException;
+
+/**
+ * stale-while-revalidate の期間内に参照された古いエントリを、バックグラウンドで再検証する。
+ * 
+ * @see CacheStorageConfig#setEntryRevalidator(EntryRevalidator)
+ */
+public interface EntryRevalidator {
+
+	/**
+	 * uri のエントリを再検証する。通常はオリジンサーバに条件付きリクエストを送り、
+	 * 結果を {@link DiskLruHttpCacheStorage#putEntry(String, ch.boye.httpclientandroidlib.client.cache.HttpCacheEntry)}
+	 * などでストレージに反映する。
+	 * バックグラウンドのスレッドから呼ばれ、同じ uri の再検証は同時に1つだけ実行される。
+	 * 
+	 * @param uri
+	 *            CachingHttpClient が正規化した形式の URI
+	 * @throws IOException
+	 *             再検証に失敗した場合。古いエントリはそのまま残り、次の参照で再び再検証される。
+	 */
+	void revalidate(String uri) throws IOException;
+}
@@ -0,0 +1,85 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * {@link DiskLruHttpCacheStorage} がエントリのファイルを保存する先。
+ * キーごとに決まった数のファイル (メタデータとボディ) を持ち、容量を超えると LRU の順に追い出す。
+ */
+// エントリの直列化や各インデックスは DiskLruHttpCacheStorage が持ち、
+// ここではファイルの読み書きと追い出し、永続化だけを扱う。
+// 標準の実装は DiskLruCache を使う DiskLruEntryStore。
+interface EntryStore {
+
+	/**
+	 * @return エントリが存在しない場合は null。LRU の順序を更新する。
+	 */
+	EntryFiles get(String key) throws IOException;
+
+	/**
+	 * LRU の順序を変えずにエントリを開く。
+	 *
+	 * @return エントリが存在しないか開けない場合は null
+	 */
+	EntryFiles peek(String key);
+
+	/**
+	 * @return 同じキーを編集中の場合は null
+	 */
+	Editor edit(String key) throws IOException;
+
+	/**
+	 * @return エントリが削除されたかどうか。編集中のエントリは削除されない。
+	 */
+	boolean remove(String key) throws IOException;
+
+	boolean contains(String key);
+
+	/**
+	 * @return 呼び出した時点で保存されているエントリのキー。書き込み中のエントリは含まない。
+	 */
+	List<String> keys();
+
+	/**
+	 * @return 保存されているエントリの合計バイト数
+	 */
+	long size();
+
+	/**
+	 * バッファしている変更をファイルに書き出す。
+	 */
+	void flush() throws IOException;
+
+	/**
+	 * keys のエントリのファイルと、エントリの一覧を管理するファイルをストレージに書き出す (fsync)。
+	 */
+	void sync(Collection<String> keys) throws IOException;
+
+	/**
+	 * key のエントリのファイルだけをストレージに書き出す (fsync)。
+	 * エントリの一覧を管理するファイルは書き出さないので、続けて {@link #sync(Collection)} を呼ぶ。
+	 */
+	void syncEntry(String key) throws IOException;
+
+	void close() throws IOException;
+
+	/**
+	 * 閉じて、保存しているファイルをすべて削除する。
+	 */
+	void delete() throws IOException;
+
+	interface Editor {
+
+		OutputStream newOutputStream(int index) throws IOException;
+
+		/**
+		 * 書き込んだファイルを公開する。
+		 */
+		void commit() throws IOException;
+
+		void abort() throws IOException;
+	}
+}
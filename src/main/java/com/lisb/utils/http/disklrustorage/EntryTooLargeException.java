@@ -0,0 +1,15 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.io.IOException;
+
+/**
+ * 書き込もうとしたボディが {@link CacheStorageConfig#setMaxEntrySize(long)} の上限を超えたことを表す。
+ */
+class EntryTooLargeException extends IOException {
+
+	private static final long serialVersionUID = -5306421937467180925L;
+
+	EntryTooLargeException(final String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,113 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * キャッシュのキーを鮮度の期限の順に保持するインデックス。
+ */
+// 期限を resolution 単位のバケットにまとめることで、
+// 同じ時間帯に期限を迎える大量のエントリを TreeMap の1ノードで扱う。
+final class ExpiryIndex {
+
+	/** 掃除の対象にならないエントリの期限。 */
+	static final long NEVER = Long.MAX_VALUE;
+
+	private final long resolution;
+	private final TreeMap<Long, Set<String>> buckets = new TreeMap<Long, Set<String>>();
+	private final Map<String, Long> expiries = new HashMap<String, Long>();
+
+	ExpiryIndex(final long resolution) {
+		if (resolution <= 0) {
+			throw new IllegalArgumentException("resolution <= 0");
+		}
+		this.resolution = resolution;
+	}
+
+	/**
+	 * キーの期限を登録する。すでに登録されている場合は置き換える。
+	 * 
+	 * @param expiresAt
+	 *            エポックミリ秒。{@link #NEVER} の場合は掃除の対象にしないので、登録を取り除く。
+	 */
+	synchronized void put(final String key, final long expiresAt) {
+		remove(key);
+		if (expiresAt == NEVER) {
+			return;
+		}
+		expiries.put(key, expiresAt);
+		final Long bucket = expiresAt / resolution;
+		Set<String> keys = buckets.get(bucket);
+		if (keys == null) {
+			keys = new HashSet<String>();
+			buckets.put(bucket, keys);
+		}
+		keys.add(key);
+	}
+
+	synchronized void remove(final String key) {
+		final Long expiresAt = expiries.remove(key);
+		if (expiresAt == null) {
+			return;
+		}
+		final Long bucket = expiresAt / resolution;
+		final Set<String> keys = buckets.get(bucket);
+		if (keys != null) {
+			keys.remove(key);
+			if (keys.isEmpty()) {
+				buckets.remove(bucket);
+			}
+		}
+	}
+
+	/**
+	 * 期限が deadline 以前のキーをインデックスから取り除いて返す。
+	 */
+	synchronized List<String> pollExpired(final long deadline) {
+		final List<String> expired = new ArrayList<String>();
+		final SortedMap<Long, Set<String>> candidates = buckets
+				.headMap(deadline / resolution + 1);
+		for (final Iterator<Set<String>> i = candidates.values().iterator(); i
+				.hasNext();) {
+			final Set<String> keys = i.next();
+			for (final Iterator<String> j = keys.iterator(); j.hasNext();) {
+				final String key = j.next();
+				if (expiries.get(key) <= deadline) {
+					expiries.remove(key);
+					j.remove();
+					expired.add(key);
+				}
+			}
+			if (keys.isEmpty()) {
+				i.remove();
+			}
+		}
+		return expired;
+	}
+
+	/**
+	 * stored が受け付けないキー (LRU で追い出されたエントリなど) を取り除く。
+	 */
+	// ファイルの存在の確認はキーごとにロックを取り直して行う。確認と削除の間に同じキーが
+	// 書き込まれても、書き込み側の登録は確認より後になるので取り除かれない。
+	void prune(final IndexJournal.KeyFilter stored) {
+		final List<String> keys;
+		synchronized (this) {
+			keys = new ArrayList<String>(expiries.keySet());
+		}
+		for (final String key : keys) {
+			synchronized (this) {
+				if (!stored.accept(key)) {
+					remove(key);
+				}
+			}
+		}
+	}
+}
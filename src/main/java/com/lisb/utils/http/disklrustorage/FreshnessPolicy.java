@@ -0,0 +1,165 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.util.Date;
+
+import ch.boye.httpclientandroidlib.Header;
+import ch.boye.httpclientandroidlib.HeaderElement;
+import ch.boye.httpclientandroidlib.client.cache.HeaderConstants;
+import ch.boye.httpclientandroidlib.client.cache.HttpCacheEntry;
+import ch.boye.httpclientandroidlib.impl.cookie.DateParseException;
+import ch.boye.httpclientandroidlib.impl.cookie.DateUtils;
+
+/**
+ * 保存済みのレスポンスヘッダから鮮度に関する情報を求める。
+ */
+// CachingHttpClient の CacheValidityPolicy と同じ考え方で計算しているが、
+// ヒューリスティックな鮮度は扱わない。
+final class FreshnessPolicy {
+
+	/** 明示的な鮮度の期限を持たないことを表す。 */
+	static final long UNKNOWN = -1;
+
+	/* RFC5861 の Cache-Control の拡張 */
+	static final String STALE_WHILE_REVALIDATE = "stale-while-revalidate";
+	static final String STALE_IF_ERROR = "stale-if-error";
+
+	private FreshnessPolicy() {
+	}
+
+	/**
+	 * 鮮度の期限(エポックミリ秒)を求める。
+	 * 
+	 * @return max-age も Expires も持たない場合は {@link #UNKNOWN}
+	 */
+	static long getExpiresAt(final HttpCacheEntry entry) {
+		final long lifetime = getFreshnessLifetime(entry);
+		if (lifetime < 0) {
+			return UNKNOWN;
+		}
+		return addSaturated(entry.getResponseDate().getTime()
+				- getCorrectedInitialAge(entry), lifetime);
+	}
+
+	/**
+	 * 鮮度の期限が過ぎてから、Cache-Control の directive (stale-while-revalidate か
+	 * stale-if-error) で古いエントリを使える期間(ミリ秒)を求める。
+	 * 
+	 * @return 指定がない場合は 0
+	 */
+	static long getStaleWindow(final HttpCacheEntry entry,
+			final String directive) {
+		return Math.max(0, toMillis(getCacheControlSeconds(entry, directive)));
+	}
+
+	/**
+	 * 条件付きリクエストで再検証できるかどうか。
+	 */
+	static boolean isRevalidatable(final HttpCacheEntry entry) {
+		return entry.getFirstHeader(HeaderConstants.ETAG) != null
+				|| entry.getFirstHeader(HeaderConstants.LAST_MODIFIED) != null;
+	}
+
+	private static long getFreshnessLifetime(final HttpCacheEntry entry) {
+		final long maxAge = getCacheControlSeconds(entry,
+				HeaderConstants.CACHE_CONTROL_MAX_AGE);
+		if (maxAge >= 0) {
+			return toMillis(maxAge);
+		}
+
+		final Header expiresHeader = entry
+				.getFirstHeader(HeaderConstants.EXPIRES);
+		if (expiresHeader == null) {
+			return UNKNOWN;
+		}
+		final Date expires = parseDate(expiresHeader);
+		final Date date = parseDate(entry.getFirstHeader("Date"));
+		if (expires == null) {
+			// 解釈できない Expires はすでに期限切れとして扱う (RFC2616 14.21)
+			return 0;
+		}
+		if (date == null) {
+			return UNKNOWN;
+		}
+		return Math.max(0, expires.getTime() - date.getTime());
+	}
+
+	/**
+	 * Cache-Control の指定された項目の値(秒)を返す。
+	 * 
+	 * @return 項目がないか値が不正な場合は {@link #UNKNOWN}
+	 */
+	static long getCacheControlSeconds(final HttpCacheEntry entry,
+			final String directive) {
+		for (final Header header : entry
+				.getHeaders(HeaderConstants.CACHE_CONTROL)) {
+			for (final HeaderElement element : header.getElements()) {
+				if (directive.equalsIgnoreCase(element.getName())) {
+					try {
+						return Math.max(0, Long.parseLong(element.getValue()));
+					} catch (NumberFormatException e) {
+						return UNKNOWN;
+					}
+				}
+			}
+		}
+		return UNKNOWN;
+	}
+
+	/**
+	 * レスポンスを受け取った時点での経過時間(ミリ秒)。RFC2616 13.2.3 の corrected_initial_age
+	 * からリクエストの往復時間を除いたもの。
+	 */
+	private static long getCorrectedInitialAge(final HttpCacheEntry entry) {
+		long apparentAge = 0;
+		final Date date = parseDate(entry.getFirstHeader("Date"));
+		if (date != null) {
+			apparentAge = Math.max(0, entry.getResponseDate().getTime()
+					- date.getTime());
+		}
+		return Math.max(apparentAge, toMillis(getAgeValue(entry)));
+	}
+
+	private static long getAgeValue(final HttpCacheEntry entry) {
+		long ageValue = 0;
+		for (final Header header : entry.getHeaders(HeaderConstants.AGE)) {
+			try {
+				ageValue = Math.max(ageValue, Long.parseLong(header.getValue()));
+			} catch (NumberFormatException e) {
+				// 不正な Age は無視する
+			}
+		}
+		return ageValue;
+	}
+
+	/**
+	 * 秒をミリ秒に変換する。ヘッダの値は任意に大きくできるので、溢れる場合は Long.MAX_VALUE にする。
+	 */
+	private static long toMillis(final long seconds) {
+		if (seconds > Long.MAX_VALUE / 1000L) {
+			return Long.MAX_VALUE;
+		}
+		return seconds * 1000L;
+	}
+
+	/**
+	 * time に duration (0 以上) を足す。溢れる場合は Long.MAX_VALUE にする。
+	 * 溢れて負の時刻になると、すぐに期限切れとして扱われてしまうため。
+	 */
+	static long addSaturated(final long time, final long duration) {
+		if (time > Long.MAX_VALUE - duration) {
+			return Long.MAX_VALUE;
+		}
+		return time + duration;
+	}
+
+	private static Date parseDate(final Header header) {
+		if (header == null) {
+			return null;
+		}
+		try {
+			return DateUtils.parseDate(header.getValue());
+		} catch (DateParseException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * 複数のスレッドが同時に求めた共有ファイルの fsync を1回にまとめる (グループコミット)。
+ * {@link Durability#COMMIT} で、エントリを書き込むたびにジャーナルを fsync するのを避ける。
+ */
+// 最初に sync を呼んだスレッドがリーダーになり、delay だけ待ってから fsync する。
+// fsync の実行中に sync を呼んだスレッドは次のまとまりに入り、実行中の fsync が終わると
+// その中の1つのスレッドが次のリーダーになる。どのスレッドも、呼び出した後に始まった fsync が
+// 終わってから戻るので、それまでに書き込んだ内容は永続化されている。
+abstract class GroupCommit {
+
+	private final long delay;
+
+	/* 参加を受け付けている、まだ fsync を始めていないまとまり */
+	private Batch open = new Batch();
+	private boolean syncing;
+
+	/**
+	 * @param delay
+	 *            リーダーが fsync を始める前に、他のスレッドの参加を待つ時間 (ミリ秒)。
+	 *            0 以下の場合は待たず、実行中の fsync の間に呼ばれた分だけをまとめる。
+	 */
+	GroupCommit(final long delay) {
+		this.delay = delay;
+	}
+
+	/**
+	 * 共有ファイルを fsync する。同時に1つのスレッドからしか呼ばれない。
+	 */
+	abstract void syncShared() throws IOException;
+
+	/**
+	 * 呼び出した後に始まった fsync が終わるまで待つ。
+	 *
+	 * @throws IOException
+	 *             その fsync に失敗した場合
+	 */
+	void sync() throws IOException {
+		final Batch batch;
+		synchronized (this) {
+			batch = open;
+			try {
+				while (syncing && !batch.done) {
+					wait();
+				}
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException(e.toString());
+			}
+			if (batch.done) {
+				batch.throwIfFailed();
+				return;
+			}
+			syncing = true;
+		}
+		try {
+			if (delay > 0) {
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					// 待たずに fsync する
+					Thread.currentThread().interrupt();
+				}
+			}
+			synchronized (this) {
+				open = new Batch();
+			}
+			syncShared();
+		} catch (IOException e) {
+			batch.failure = e;
+		} catch (RuntimeException e) {
+			batch.failure = new IOException(e.toString());
+		} finally {
+			synchronized (this) {
+				if (open == batch) {
+					open = new Batch();
+				}
+				batch.done = true;
+				syncing = false;
+				notifyAll();
+			}
+		}
+		batch.throwIfFailed();
+	}
+
+	private static final class Batch {
+		boolean done;
+		IOException failure;
+
+		void throwIfFailed() throws IOException {
+			if (failure != null) {
+				final IOException e = new IOException("group commit failed");
+				e.initCause(failure);
+				throw e;
+			}
+		}
+	}
+}
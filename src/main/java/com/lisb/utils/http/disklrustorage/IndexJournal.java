@@ -0,0 +1,221 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import com.lisb.utils.http.disklrustorage.compat.Charsets;
+
+/**
+ * キャッシュのキーに値を対応づけるインデックスの変更を記録する、追記型のファイル。
+ */
+// ファイルの各行は次のいずれか。
+// "+ <キー> <値>" : 登録 (値は空白を含みうるので行末に置く)
+// "- <キー>" : 削除
+// 途中で切れた最終行は StrictLineReader が読み飛ばし、追記を始める前にファイルから取り除く。
+// その他の壊れた行は無視する。
+final class IndexJournal implements Closeable {
+
+	/**
+	 * ファイルに記録された変更を受け取る。
+	 */
+	interface Replayer {
+		void put(String key, String value);
+
+		void remove(String key);
+	}
+
+	/**
+	 * インデックスを詰め直すときに残すキーを判定する。
+	 */
+	interface KeyFilter {
+		boolean accept(String key);
+	}
+
+	private final File file;
+	/* 追記ごとに書き出す場合は null */
+	private final JournalFlusher flusher;
+	private StrictLineWriter writer;
+	/* まとめて書き出したときの失敗。次の追記で投げる。 */
+	private IOException flushFailure;
+
+	/**
+	 * @param flusher
+	 *            追記をまとめて書き出す場合に指定する。null の場合は追記ごとに書き出す。
+	 */
+	IndexJournal(final File file, final JournalFlusher flusher) {
+		this.file = file;
+		this.flusher = flusher;
+	}
+
+	/**
+	 * ファイルに記録された変更を順に replayer に渡し、追記できる状態にする。
+	 */
+	synchronized void replay(final Replayer replayer) throws IOException {
+		StrictLineReader in = null;
+		try {
+			in = new StrictLineReader(new FileInputStream(file),
+					Charsets.UTF_8);
+			while (true) {
+				final String line = in.readLine();
+				final int keyEnd = line.indexOf(' ', 2);
+				if (line.startsWith("+ ") && keyEnd > 2) {
+					replayer.put(line.substring(2, keyEnd),
+							line.substring(keyEnd + 1));
+				} else if (line.startsWith("- ") && line.length() > 2) {
+					replayer.remove(line.substring(2));
+				}
+			}
+		} catch (FileNotFoundException e) {
+			// まだ記録がない
+		} catch (EOFException e) {
+			// 終端
+		} finally {
+			if (in != null) {
+				in.close();
+			}
+		}
+		truncateTornLine();
+		openWriter();
+	}
+
+	/**
+	 * 改行で終わっていない最終行 (異常終了で途中まで書かれた行) をファイルから取り除く。
+	 * 残したままだと次の追記がその行に続けて書かれ、追記した記録も読めなくなる。
+	 */
+	private void truncateTornLine() throws IOException {
+		if (!file.exists()) {
+			return;
+		}
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			final long length = raf.length();
+			long end = length;
+			// 途中で切れるのは最後の1行だけなので、末尾から改行を探す
+			while (end > 0) {
+				raf.seek(end - 1);
+				if (raf.read() == '\n') {
+					break;
+				}
+				end--;
+			}
+			if (end < length) {
+				raf.setLength(end);
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	synchronized void put(final String key, final String value)
+			throws IOException {
+		checkNotClosed();
+		writer.writeLine("+ " + key + " " + value);
+		flushOrSchedule();
+	}
+
+	synchronized void remove(final String key) throws IOException {
+		checkNotClosed();
+		writer.writeLine("- " + key);
+		flushOrSchedule();
+	}
+
+	private void flushOrSchedule() throws IOException {
+		if (flusher == null) {
+			writer.flush();
+		} else {
+			flusher.markDirty(this);
+		}
+	}
+
+	synchronized void flush() throws IOException {
+		checkNotClosed();
+		writer.flush();
+	}
+
+	/**
+	 * バッファされた追記を書き出す。{@link JournalFlusher} のスレッドから呼ばれる。
+	 */
+	synchronized void flushBuffered() {
+		if (writer == null) {
+			// close で書き出し済み
+			return;
+		}
+		try {
+			writer.flush();
+		} catch (IOException e) {
+			flushFailure = e;
+		}
+	}
+
+	/**
+	 * ファイルを現在の内容だけで書き直す。{@link Rewriter#commit()} するまで元のファイルは変わらない。
+	 */
+	synchronized Rewriter rewrite() throws IOException {
+		return new Rewriter();
+	}
+
+	public synchronized void close() throws IOException {
+		if (writer != null) {
+			writer.close();
+			writer = null;
+		}
+	}
+
+	private void openWriter() throws IOException {
+		writer = new StrictLineWriter(new FileOutputStream(file, true));
+	}
+
+	private void checkNotClosed() throws IOException {
+		if (writer == null) {
+			throw new IOException("IndexJournal is closed");
+		}
+		if (flushFailure != null) {
+			final IOException e = flushFailure;
+			flushFailure = null;
+			throw e;
+		}
+	}
+
+	final class Rewriter {
+		private final File tmp = new File(file.getPath() + ".tmp");
+		private final StrictLineWriter tmpWriter = new StrictLineWriter(
+				new FileOutputStream(tmp));
+
+		private Rewriter() throws IOException {
+		}
+
+		void put(final String key, final String value) throws IOException {
+			tmpWriter.writeLine("+ " + key + " " + value);
+		}
+
+		void commit() throws IOException {
+			tmpWriter.close();
+			synchronized (IndexJournal.this) {
+				close();
+				if (!tmp.renameTo(file)) {
+					// Windows では既存のファイルに rename できない
+					file.delete();
+					if (!tmp.renameTo(file)) {
+						throw new IOException("failed to rename " + tmp);
+					}
+				}
+				openWriter();
+			}
+		}
+
+		void abort() {
+			try {
+				tmpWriter.close();
+			} catch (IOException e) {
+				// 削除するので無視する
+			}
+			tmp.delete();
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.io.InterruptedIOException;
+
+/**
+ * 読み書きするバイト数を、1秒あたりの上限に抑える (トークンバケット)。
+ */
+// トークンは1秒分まで貯まり、足りない分は前借りして、借りた分を返し終わるまで呼び出し元を待たせる。
+// 前借りを許すので、1秒分より大きな処理も分割せずに扱える。
+final class IoRateLimiter {
+
+	private static final long NANOS_PER_SECOND = 1000L * 1000 * 1000;
+
+	private final long bytesPerSecond;
+	private final Ticker ticker;
+	private double tokens;
+	private long refilledAt;
+
+	IoRateLimiter(final long bytesPerSecond) {
+		this(bytesPerSecond, Ticker.SYSTEM);
+	}
+
+	IoRateLimiter(final long bytesPerSecond, final Ticker ticker) {
+		if (bytesPerSecond <= 0) {
+			throw new IllegalArgumentException("bytesPerSecond <= 0");
+		}
+		this.bytesPerSecond = bytesPerSecond;
+		this.ticker = ticker;
+		this.tokens = bytesPerSecond;
+		this.refilledAt = ticker.read();
+	}
+
+	/**
+	 * bytes を読み書きしてよくなるまで待つ。
+	 */
+	void acquire(final long bytes) throws InterruptedIOException {
+		final long waitNanos;
+		synchronized (this) {
+			final long now = ticker.read();
+			tokens = Math.min(bytesPerSecond, tokens + (double) (now - refilledAt)
+					* bytesPerSecond / NANOS_PER_SECOND);
+			refilledAt = now;
+			tokens -= bytes;
+			waitNanos = tokens < 0 ? (long) (-tokens * NANOS_PER_SECOND / bytesPerSecond)
+					: 0;
+		}
+		if (waitNanos > 0) {
+			try {
+				ticker.sleep(waitNanos);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * {@link IndexJournal} への追記を、一定時間ごとにまとめてファイルに書き出す (グループコミット)。
+ */
+// 追記した行は各 IndexJournal のバッファに貯まり、最初の追記から delay 後に
+// 1つのスレッドがその間に追記されたすべてのジャーナルをまとめて書き出す。
+// 書き出す前にプロセスが終了すると、最大 delay の間の変更が失われる。
+final class JournalFlusher {
+
+	private final MaintenanceScheduler scheduler;
+	private final long delay;
+
+	private final Set<IndexJournal> dirty = new LinkedHashSet<IndexJournal>();
+	private boolean scheduled;
+
+	private final Runnable flushTask = new Runnable() {
+		public void run() {
+			final List<IndexJournal> journals;
+			synchronized (JournalFlusher.this) {
+				journals = new ArrayList<IndexJournal>(dirty);
+				dirty.clear();
+				scheduled = false;
+			}
+			for (final IndexJournal journal : journals) {
+				journal.flushBuffered();
+			}
+		}
+	};
+
+	/**
+	 * @param delay
+	 *            追記からファイルに書き出すまでの最大の遅延 (ミリ秒)
+	 */
+	JournalFlusher(final MaintenanceScheduler scheduler, final long delay) {
+		this.scheduler = scheduler;
+		this.delay = delay;
+	}
+
+	/**
+	 * journal にバッファされた追記があることを通知する。
+	 */
+	synchronized void markDirty(final IndexJournal journal) {
+		dirty.add(journal);
+		if (!scheduled) {
+			scheduled = true;
+			scheduler.schedule(flushTask, delay);
+		}
+	}
+}
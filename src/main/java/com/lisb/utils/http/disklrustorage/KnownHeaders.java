@@ -0,0 +1,98 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import ch.boye.httpclientandroidlib.Header;
+import ch.boye.httpclientandroidlib.message.BasicHeader;
+
+/**
+ * メタデータの読み込み時に共有する、よく使われるヘッダ名・値と {@link Header} のテーブル。
+ */
+// ここにない文字列も読み込めるので、追加・削除してもキャッシュの互換性には影響しない。
+final class KnownHeaders {
+
+	/** ヘッダ名 */
+	static final StringTable NAMES = new StringTable("Accept-Ranges", "Age",
+			"Access-Control-Allow-Origin", "Allow", "Cache-Control",
+			"Connection", "Content-Disposition", "Content-Encoding",
+			"Content-Language", "Content-Length", "Content-Location",
+			"Content-MD5", "Content-Range", "Content-Security-Policy",
+			"Content-Type", "Date", "ETag", "Expires", "Keep-Alive",
+			"Last-Modified", "Link", "Location", "P3P", "Pragma",
+			"Proxy-Authenticate", "Retry-After", "Server", "Set-Cookie",
+			"Strict-Transport-Security", "Trailer", "Transfer-Encoding",
+			"Vary", "Via", "Warning", "WWW-Authenticate", "X-Cache",
+			"X-Content-Type-Options", "X-Frame-Options", "X-Powered-By",
+			"X-XSS-Protection", "accept-ranges", "age", "cache-control",
+			"connection", "content-encoding", "content-length",
+			"content-type", "date", "etag", "expires", "last-modified",
+			"server", "vary", "via");
+
+	/** ヘッダの値と、ステータス行に現れる値 */
+	static final StringTable VALUES = new StringTable("", "*", "0", "bytes",
+			"no-cache", "no-store", "no-transform", "must-revalidate",
+			"private", "public", "max-age=0", "gzip", "deflate", "identity",
+			"chunked", "keep-alive", "close", "Accept-Encoding", "Origin",
+			"Cookie", "User-Agent", "nosniff", "SAMEORIGIN", "DENY",
+			"1; mode=block", "text/html", "text/html; charset=utf-8",
+			"text/html; charset=UTF-8", "text/plain",
+			"text/plain; charset=utf-8", "text/css", "text/javascript",
+			"application/javascript", "application/x-javascript",
+			"application/json", "application/json; charset=utf-8",
+			"application/xml", "application/octet-stream", "image/gif",
+			"image/jpeg", "image/png", "image/webp", "image/svg+xml",
+			"Apache", "nginx", "HIT", "MISS", "HTTP", "1", "OK",
+			"Not Modified", "Moved Permanently", "Found", "Not Found");
+
+	private static final Map<String, Map<String, Header>> HEADERS = new HashMap<String, Map<String, Header>>();
+
+	static {
+		addHeader("Accept-Ranges", "bytes");
+		addHeader("Cache-Control", "no-cache");
+		addHeader("Cache-Control", "private");
+		addHeader("Cache-Control", "public");
+		addHeader("Cache-Control", "max-age=0");
+		addHeader("Connection", "keep-alive");
+		addHeader("Connection", "close");
+		addHeader("Content-Encoding", "gzip");
+		addHeader("Content-Encoding", "deflate");
+		addHeader("Pragma", "no-cache");
+		addHeader("Transfer-Encoding", "chunked");
+		addHeader("Vary", "Accept-Encoding");
+		addHeader("Vary", "Origin");
+		addHeader("X-Content-Type-Options", "nosniff");
+		addHeader("X-Frame-Options", "SAMEORIGIN");
+		addHeader("X-XSS-Protection", "1; mode=block");
+		addHeader("Access-Control-Allow-Origin", "*");
+		addHeader("accept-ranges", "bytes");
+		addHeader("content-encoding", "gzip");
+		addHeader("vary", "Accept-Encoding");
+	}
+
+	private KnownHeaders() {
+	}
+
+	private static void addHeader(final String name, final String value) {
+		Map<String, Header> values = HEADERS.get(name);
+		if (values == null) {
+			values = new HashMap<String, Header>();
+			HEADERS.put(name, values);
+		}
+		values.put(value, new BasicHeader(name, value));
+	}
+
+	/**
+	 * 共有している {@link Header} があればそれを、なければ新しい {@link Header} を返す。
+	 */
+	static Header getHeader(final String name, final String value) {
+		final Map<String, Header> values = HEADERS.get(name);
+		if (values != null) {
+			final Header header = values.get(value);
+			if (header != null) {
+				return header;
+			}
+		}
+		return new BasicHeader(name, value);
+	}
+}
@@ -0,0 +1,53 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.io.ObjectStreamException;
+import java.util.Date;
+import java.util.Map;
+
+import ch.boye.httpclientandroidlib.Header;
+import ch.boye.httpclientandroidlib.StatusLine;
+import ch.boye.httpclientandroidlib.client.cache.HttpCacheEntry;
+import ch.boye.httpclientandroidlib.client.cache.Resource;
+
+/**
+ * レスポンスヘッダを参照されたときに初めて文字列にする {@link HttpCacheEntry}。
+ * CachingHttpClient は一部のヘッダ (Cache-Control、Date、ETag、Vary など) しか見ないことが多いので、
+ * Set-Cookie や Content-Security-Policy など多くのヘッダを持つエントリの読み込みの負荷を減らす。
+ */
+// HttpCacheEntry のヘッダは空にして、ヘッダを返すメソッドだけを RawHeaders で置き換える。
+class LazyHttpCacheEntry extends HttpCacheEntry {
+
+	private static final long serialVersionUID = 7652370926387536412L;
+
+	/* シリアライズ時は writeReplace で通常の HttpCacheEntry に置き換える */
+	private final transient RawHeaders headers;
+
+	LazyHttpCacheEntry(final Date requestDate, final Date responseDate,
+			final StatusLine statusLine, final RawHeaders headers,
+			final Resource resource, final Map<String, String> variantMap) {
+		super(requestDate, responseDate, statusLine, new Header[0], resource,
+				variantMap);
+		this.headers = headers;
+	}
+
+	@Override
+	public Header[] getAllHeaders() {
+		return headers.getAll();
+	}
+
+	@Override
+	public Header getFirstHeader(final String name) {
+		return headers.getFirst(name);
+	}
+
+	@Override
+	public Header[] getHeaders(final String name) {
+		return headers.get(name);
+	}
+
+	private Object writeReplace() throws ObjectStreamException {
+		return new HttpCacheEntry(getRequestDate(), getResponseDate(),
+				getStatusLine(), getAllHeaders(), getResource(),
+				getVariantMap());
+	}
+}
@@ -0,0 +1,165 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * DiskLruCache のロックを取らずにエントリのファイルを開く。
+ */
+// DiskLruCache.get は edit や commit、ジャーナルへの追記と同じモニタを取るので、
+// 大きなエントリの書き込みや掃除と読み込みが競合する。
+// ここではキーのハッシュで分けたストライプごとに、公開 (commit と remove) の開始数と終了数を持ち、
+// 読み込みの前後でどちらも変わっていない場合だけ、直接開いたファイルを使う (seqlock と同じ考え方)。
+// 公開中か、開いている間に公開が始まった場合は null を返し、呼び出し元は DiskLruCache.get で読み直す。
+// DiskLruCache が容量超過で削除したファイルは開けないので、同じく null になる。
+// ロックを取らない読み込みは DiskLruCache の LRU の順序を更新しないので、
+// 読み込んだキーを貯めておき、まとめて DiskLruCache.get に渡して順序に反映する。
+final class LockFreeReads {
+
+	private static final int STRIPES = 256;
+	/* LRU の順序に反映するまでに貯める読み込みの数 */
+	private static final int READ_BUFFER_THRESHOLD = 64;
+
+	private final File directory;
+	private final int valueCount;
+	private final AtomicLongArray started = new AtomicLongArray(STRIPES);
+	private final AtomicLongArray finished = new AtomicLongArray(STRIPES);
+
+	private final ConcurrentLinkedQueue<String> reads = new ConcurrentLinkedQueue<String>();
+	private final AtomicInteger bufferedReads = new AtomicInteger();
+	private final ReentrantLock drainLock = new ReentrantLock();
+
+	LockFreeReads(final File directory, final int valueCount) {
+		this.directory = directory;
+		this.valueCount = valueCount;
+	}
+
+	/**
+	 * key のファイルを置き換えるか削除する直前に呼ぶ。
+	 */
+	void beginPublish(final String key) {
+		started.incrementAndGet(stripe(key));
+	}
+
+	/**
+	 * {@link #beginPublish(String)} の後、成否に関わらず必ず呼ぶ。
+	 */
+	void endPublish(final String key) {
+		finished.incrementAndGet(stripe(key));
+	}
+
+	/**
+	 * @return 開いたファイル。ファイルがないか、公開と重なった場合は null
+	 */
+	EntryFiles open(final String key) {
+		final int stripe = stripe(key);
+		final long before = started.get(stripe);
+		if (finished.get(stripe) != before) {
+			return null;
+		}
+		final EntryFiles files = openFiles(directory, key, valueCount);
+		if (files == null) {
+			return null;
+		}
+		if (started.get(stripe) != before) {
+			files.close();
+			return null;
+		}
+		return files;
+	}
+
+	/**
+	 * DiskLruCache を通さずにエントリのファイルを開く。
+	 * 
+	 * @return いずれかのファイルが開けない場合は null
+	 */
+	static EntryFiles openFiles(final File directory, final String key,
+			final int valueCount) {
+		final FileInputStream[] ins = new FileInputStream[valueCount];
+		final long[] lengths = new long[valueCount];
+		try {
+			for (int i = 0; i < valueCount; i++) {
+				ins[i] = new FileInputStream(new File(directory, key + "." + i));
+				// 開いたファイルの長さ。後から置き換えられても変わらない。
+				lengths[i] = ins[i].getChannel().size();
+			}
+		} catch (IOException e) {
+			closeQuietly(ins);
+			return null;
+		}
+		return new OpenedFiles(ins, lengths);
+	}
+
+	/**
+	 * 読み込んだキーを記録する。
+	 * 
+	 * @return LRU の順序に反映すべきキー。他のスレッドが反映中か、まだ貯まっていない場合は空。
+	 */
+	List<String> recordRead(final String key) {
+		reads.offer(key);
+		if (bufferedReads.incrementAndGet() < READ_BUFFER_THRESHOLD
+				|| !drainLock.tryLock()) {
+			return new ArrayList<String>(0);
+		}
+		try {
+			// 同じキーは最後の読み込みの位置だけ反映すれば十分
+			final Set<String> keys = new LinkedHashSet<String>();
+			String read;
+			while ((read = reads.poll()) != null) {
+				bufferedReads.decrementAndGet();
+				keys.remove(read);
+				keys.add(read);
+			}
+			return new ArrayList<String>(keys);
+		} finally {
+			drainLock.unlock();
+		}
+	}
+
+	private static int stripe(final String key) {
+		return (key.hashCode() & 0x7fffffff) % STRIPES;
+	}
+
+	private static void closeQuietly(final InputStream[] ins) {
+		for (final InputStream in : ins) {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException ignored) {
+				}
+			}
+		}
+	}
+
+	private static final class OpenedFiles implements EntryFiles {
+		private final InputStream[] ins;
+		private final long[] lengths;
+
+		OpenedFiles(final InputStream[] ins, final long[] lengths) {
+			this.ins = ins;
+			this.lengths = lengths;
+		}
+
+		public InputStream getInputStream(final int index) {
+			return ins[index];
+		}
+
+		public long getLength(final int index) {
+			return lengths[index];
+		}
+
+		public void close() {
+			closeQuietly(ins);
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link DiskLruHttpCacheStorage} のバックグラウンドの処理 (掃除、インデックスの書き出しと詰め直し、fsync)
+ * を実行するスレッドプール。
+ */
+// スレッド数は CacheStorageConfig で指定し、すべての定期的な処理で共有する。
+// 読み書きの量の多い処理は acquireIo で IoRateLimiter を通し、
+// リクエストを処理するスレッドの読み込みとディスクの帯域を奪い合わないようにする。
+//
+// 定期的な処理がない場合にスレッドを残さないように、スレッドプールは処理を登録したときに作り、
+// 1回限りの処理がすべて終わってから IDLE_TIMEOUT の間何も登録されなければ終了する。
+// Java 5 と Android の古い API では allowCoreThreadTimeOut が使えず、
+// コアスレッド数 0 の ScheduledThreadPoolExecutor は処理を実行しないため。
+final class MaintenanceScheduler {
+
+	/* 処理のないスレッドを終了するまでの秒数 */
+	private static final long IDLE_TIMEOUT = 60;
+
+	interface Task {
+		void run() throws IOException;
+	}
+
+	private final int threads;
+	/* 上限を設けない場合は null */
+	private final IoRateLimiter rateLimiter;
+
+	/* 以下は this のロックで保護する */
+	/* 処理がなく終了している場合は null */
+	private ScheduledThreadPoolExecutor executor;
+	/* 終わっていない1回限りの処理の数 */
+	private int pendingTasks;
+	private int periodicTasks;
+	/* 最後に処理がなくなった時刻 */
+	private long idleSince;
+	private boolean shutdown;
+
+	private final Runnable stopIfIdle = new Runnable() {
+		public void run() {
+			synchronized (MaintenanceScheduler.this) {
+				if (executor != null
+						&& isIdle()
+						&& System.currentTimeMillis() - idleSince >= TimeUnit.SECONDS
+								.toMillis(IDLE_TIMEOUT)) {
+					// 実行中のこの処理が終わるとスレッドは終了する
+					executor.shutdown();
+					executor = null;
+				}
+			}
+		}
+	};
+
+	/**
+	 * @param ioBytesPerSecond
+	 *            0 以下の場合は制限しない。
+	 */
+	MaintenanceScheduler(final int threads, final long ioBytesPerSecond) {
+		this.threads = threads;
+		rateLimiter = ioBytesPerSecond > 0 ? new IoRateLimiter(
+				ioBytesPerSecond) : null;
+	}
+
+	/* this のロックを保持して呼ぶ */
+	private ScheduledThreadPoolExecutor executor() {
+		if (shutdown) {
+			throw new RejectedExecutionException("shut down");
+		}
+		if (executor == null) {
+			executor = newExecutor();
+		}
+		return executor;
+	}
+
+	private ScheduledThreadPoolExecutor newExecutor() {
+		final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+				threads, new ThreadFactory() {
+					public Thread newThread(final Runnable r) {
+						final Thread thread = new Thread(r,
+								"DiskLruHttpCacheStorage-maintenance");
+						thread.setDaemon(true);
+						// リクエストを処理するスレッドを優先させる
+						thread.setPriority(Thread.MIN_PRIORITY);
+						return thread;
+					}
+				});
+		// 終了するときに、まだ時刻の来ていない stopIfIdle を待たない
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		return executor;
+	}
+
+	/* this のロックを保持して呼ぶ */
+	private boolean isIdle() {
+		return pendingTasks == 0 && periodicTasks == 0;
+	}
+
+	synchronized void schedule(final Runnable task, final long delay) {
+		executor().schedule(new Runnable() {
+			public void run() {
+				try {
+					task.run();
+				} finally {
+					finished();
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+		pendingTasks++;
+	}
+
+	private synchronized void finished() {
+		pendingTasks--;
+		if (isIdle() && executor != null) {
+			idleSince = System.currentTimeMillis();
+			executor.schedule(stopIfIdle, IDLE_TIMEOUT, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * task を interval ごとに実行する。失敗した場合は次回に再試行する。
+	 */
+	synchronized void scheduleWithFixedDelay(final Task task,
+			final long interval) {
+		periodicTasks++;
+		executor().scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					task.run();
+				} catch (IOException e) {
+					// 次回に再試行する
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * バックグラウンドの処理が bytes を読み書きしてよくなるまで待つ。
+	 */
+	void acquireIo(final long bytes) throws InterruptedIOException {
+		if (rateLimiter != null) {
+			rateLimiter.acquire(bytes);
+		}
+	}
+
+	/**
+	 * 待っている処理を取り消し、実行中の処理に割り込んで終了を待つ。
+	 * 戻った後は、閉じたファイルやインデックスにバックグラウンドの処理が触れない。
+	 */
+	void shutdown() {
+		final ScheduledThreadPoolExecutor current;
+		synchronized (this) {
+			shutdown = true;
+			current = executor;
+			executor = null;
+		}
+		if (current == null) {
+			return;
+		}
+		// 実行中の処理の終了時に this のロックを取るので、ロックを保持せずに待つ
+		current.shutdownNow();
+		try {
+			current.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,448 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import ch.boye.httpclientandroidlib.client.cache.Resource;
+
+/**
+ * よく参照されるレスポンスボディをヒープの外 (ダイレクトバッファ) に保持する。
+ */
+// 容量分のダイレクトバッファを1つ確保し、固定長のページに分けて使う。
+// ボディはページの並びとして保持するので断片化せず、追い出しはアクセス順の LinkedHashMap で LRU にする。
+// Resource と、そこから開いた SlabInputStream はそれぞれボディの参照を1つ持ち、
+// すべての参照が返却されるまでページを再利用しない。Resource が dispose された後も、
+// 開いているストリームは close されるまで同じ内容を読める。
+// CachingHttpClient はキャッシュから返した Resource を dispose せず、ストリームも close されないことがあるので、
+// 到達不能になった Resource とストリームは ReferenceQueue で検出し、ページを確保する前に返却する。
+final class OffHeapBodyCache {
+
+	static final int PAGE_SIZE = 4096;
+
+	private final ByteBuffer slab;
+	private final int maxBodySize;
+	private final int[] freePages;
+	private int freePageCount;
+
+	private final LinkedHashMap<String, Body> bodies = new LinkedHashMap<String, Body>(
+			16, 0.75f, true);
+	/* dispose されていない Resource と close されていないストリームの参照。参照自体が回収されないように保持する。 */
+	private final Set<BodyReference> liveReferences = new HashSet<BodyReference>();
+	private final ReferenceQueue<Object> unreachableReferences = new ReferenceQueue<Object>();
+
+	/**
+	 * @param capacity
+	 *            確保するバイト数。ページの大きさの倍数に切り捨てる。
+	 * @param maxBodySize
+	 *            保持するボディの最大バイト数
+	 */
+	OffHeapBodyCache(final long capacity, final int maxBodySize) {
+		final int pageCount = (int) Math.min(capacity / PAGE_SIZE,
+				Integer.MAX_VALUE / PAGE_SIZE);
+		this.slab = ByteBuffer.allocateDirect(pageCount * PAGE_SIZE);
+		this.maxBodySize = maxBodySize;
+		this.freePages = new int[pageCount];
+		for (int i = 0; i < pageCount; i++) {
+			freePages[i] = pageCount - 1 - i;
+		}
+		this.freePageCount = pageCount;
+	}
+
+	/**
+	 * 容量と最大サイズが設定されているかどうか。
+	 */
+	static boolean isEnabled(final CacheStorageConfig config) {
+		return config.getOffHeapCacheSize() >= PAGE_SIZE
+				&& config.getOffHeapMaxBodySize() > 0;
+	}
+
+	boolean accepts(final long length) {
+		return length <= maxBodySize
+				&& pagesFor(length) <= freePages.length;
+	}
+
+	/**
+	 * 長さとチェックサムが一致するボディを返す。返した Resource は dispose されるか到達不能になるまでページを保持する。
+	 *
+	 * @return 保持していないか、保存されているエントリと内容が異なる場合は null
+	 */
+	synchronized Resource get(final String key, final long length,
+			final long checksum) {
+		final Body body = bodies.get(key);
+		if (body == null) {
+			return null;
+		}
+		if (body.length != length || body.checksum != checksum) {
+			// 書き換えられる前のボディ
+			remove(key);
+			return null;
+		}
+		body.references++;
+		return newResource(body);
+	}
+
+	/**
+	 * in から length バイトを読み込んで保持する。
+	 *
+	 * @return 保持したボディを読む Resource。空きページを確保できない場合は null
+	 * @throws CorruptedEntryException
+	 *             読み込んだ長さかチェックサムが一致しない場合
+	 */
+	Resource load(final String key, final InputStream in, final long length,
+			final long checksum) throws IOException {
+		final Body body = allocate(length, checksum);
+		if (body == null) {
+			return null;
+		}
+		try {
+			fill(body, in);
+		} catch (IOException e) {
+			// 一覧に加えていないので、参照を返却した時点でページも返却する
+			synchronized (this) {
+				discard(body);
+				release(body);
+			}
+			throw e;
+		}
+		synchronized (this) {
+			final Body old = bodies.put(key, body);
+			if (old != null) {
+				discard(old);
+			}
+			// 確保したときの参照を Resource に引き継ぐ
+			return newResource(body);
+		}
+	}
+
+	synchronized void remove(final String key) {
+		final Body body = bodies.remove(key);
+		if (body != null) {
+			discard(body);
+		}
+	}
+
+	synchronized long getUsedBytes() {
+		releaseUnreachable();
+		return (long) (freePages.length - freePageCount) * PAGE_SIZE;
+	}
+
+	private synchronized Body allocate(final long length, final long checksum) {
+		releaseUnreachable();
+		final int pageCount = pagesFor(length);
+		final Iterator<Body> lru = bodies.values().iterator();
+		while (freePageCount < pageCount && lru.hasNext()) {
+			final Body victim = lru.next();
+			lru.remove();
+			discard(victim);
+		}
+		if (freePageCount < pageCount) {
+			// 残りはすべて読み込み中
+			return null;
+		}
+		final int[] pages = new int[pageCount];
+		for (int i = 0; i < pageCount; i++) {
+			pages[i] = freePages[--freePageCount];
+		}
+		final Body body = new Body(pages, length, checksum);
+		body.references = 1;
+		return body;
+	}
+
+	private void fill(final Body body, final InputStream in)
+			throws IOException {
+		final CRC32 crc = new CRC32();
+		final byte[] buffer = new byte[PAGE_SIZE];
+		long offset = 0;
+		for (final int page : body.pages) {
+			final int size = (int) Math.min(PAGE_SIZE, body.length - offset);
+			int filled = 0;
+			while (filled < size) {
+				final int read = in.read(buffer, filled, size - filled);
+				if (read == -1) {
+					throw new CorruptedEntryException("body length mismatch");
+				}
+				filled += read;
+			}
+			crc.update(buffer, 0, size);
+			final ByteBuffer dst = slab.duplicate();
+			dst.position(page * PAGE_SIZE);
+			dst.put(buffer, 0, size);
+			offset += size;
+		}
+		if (crc.getValue() != body.checksum) {
+			throw new CorruptedEntryException("body checksum mismatch");
+		}
+	}
+
+	/* 一覧から外したボディのページを、参照がなくなった時点で返却する */
+	private void discard(final Body body) {
+		body.discarded = true;
+		if (body.references == 0) {
+			freePages(body);
+		}
+	}
+
+	/**
+	 * body の参照を1つ持つ Resource を作る。呼び出し元は参照を数え終えていること。
+	 */
+	private SlabResource newResource(final Body body) {
+		final SlabResource resource = new SlabResource(body);
+		resource.reference = register(resource, body);
+		return resource;
+	}
+
+	/**
+	 * body の参照を新たに1つ持つストリームを作る。
+	 */
+	private synchronized SlabInputStream newInputStream(final Body body) {
+		body.references++;
+		final SlabInputStream in = new SlabInputStream(body);
+		in.reference = register(in, body);
+		return in;
+	}
+
+	private BodyReference register(final Object holder, final Body body) {
+		final BodyReference reference = new BodyReference(holder, body,
+				unreachableReferences);
+		liveReferences.add(reference);
+		return reference;
+	}
+
+	/**
+	 * dispose か close されないまま到達不能になった Resource とストリームの参照を返却する。
+	 */
+	private void releaseUnreachable() {
+		Reference<?> reference;
+		while ((reference = unreachableReferences.poll()) != null) {
+			release((BodyReference) reference);
+		}
+	}
+
+	/**
+	 * 参照を返却する。dispose (close) と到達不能の検出のどちらから呼ばれても1回だけ返却する。
+	 */
+	private synchronized void release(final BodyReference reference) {
+		if (liveReferences.remove(reference)) {
+			release(reference.body);
+		}
+	}
+
+	private synchronized void release(final Body body) {
+		body.references--;
+		if (body.references == 0 && body.discarded) {
+			freePages(body);
+		}
+	}
+
+	private void freePages(final Body body) {
+		for (final int page : body.pages) {
+			freePages[freePageCount++] = page;
+		}
+	}
+
+	private static int pagesFor(final long length) {
+		return (int) ((length + PAGE_SIZE - 1) / PAGE_SIZE);
+	}
+
+	private static final class Body {
+		final int[] pages;
+		final long length;
+		final long checksum;
+		/* 保持している Resource とストリームの数。OffHeapBodyCache のロックで保護する。 */
+		int references;
+		boolean discarded;
+
+		Body(final int[] pages, final long length, final long checksum) {
+			this.pages = pages;
+			this.length = length;
+			this.checksum = checksum;
+		}
+
+		/**
+		 * @return ボディの position バイト目のスラブ上の位置
+		 */
+		int offsetOf(final long position) {
+			return pages[(int) (position / PAGE_SIZE)] * PAGE_SIZE
+					+ (int) (position % PAGE_SIZE);
+		}
+	}
+
+	/**
+	 * ボディの参照を持つ Resource かストリームが、到達不能になったことを検出するための参照。
+	 */
+	private static final class BodyReference extends WeakReference<Object> {
+		final Body body;
+
+		BodyReference(final Object holder, final Body body,
+				final ReferenceQueue<Object> queue) {
+			super(holder, queue);
+			this.body = body;
+		}
+	}
+
+	private final class SlabResource implements ChannelResource {
+		private static final long serialVersionUID = 2907301569245128437L;
+
+		private final transient Body body;
+		/* newResource で設定する */
+		private transient BodyReference reference;
+		/* dispose した後はページが再利用されうるので読まない */
+		private transient volatile boolean disposed;
+
+		SlabResource(final Body body) {
+			this.body = body;
+		}
+
+		public long length() {
+			return body.length;
+		}
+
+		public InputStream getInputStream() throws IOException {
+			checkNotDisposed();
+			return newInputStream(body);
+		}
+
+		public int read(final ByteBuffer dst, final long position)
+				throws IOException {
+			checkNotDisposed();
+			if (position >= body.length) {
+				return -1;
+			}
+			long current = position;
+			while (dst.hasRemaining() && current < body.length) {
+				final ByteBuffer page = pageView(body, current,
+						dst.remaining());
+				current += page.remaining();
+				dst.put(page);
+			}
+			return (int) (current - position);
+		}
+
+		public long transferTo(final long position, final long count,
+				final WritableByteChannel target) throws IOException {
+			checkNotDisposed();
+			final long end = Math.min(body.length, position + count);
+			long current = position;
+			while (current < end) {
+				final ByteBuffer page = pageView(body, current, end - current);
+				final int written = target.write(page);
+				current += written;
+				if (page.hasRemaining()) {
+					// ノンブロッキングのチャネルが書き込みを受け付けなかった
+					break;
+				}
+			}
+			return Math.max(0, current - position);
+		}
+
+		public void dispose() {
+			disposed = true;
+			release(reference);
+		}
+
+		private void checkNotDisposed() throws IOException {
+			if (disposed) {
+				throw new IOException("resource disposed");
+			}
+		}
+	}
+
+	/**
+	 * ボディの position バイト目から、同じページに収まる最大 max バイトを指すバッファを返す。
+	 */
+	private ByteBuffer pageView(final Body body, final long position,
+			final long max) {
+		final int inPage = (int) (position % PAGE_SIZE);
+		final int size = (int) Math.min(Math.min(max, PAGE_SIZE - inPage),
+				body.length - position);
+		final ByteBuffer view = slab.duplicate();
+		final int offset = body.offsetOf(position);
+		view.limit(offset + size);
+		view.position(offset);
+		return view;
+	}
+
+	/**
+	 * ページから呼び出し側の配列へ直接コピーする。close されるまでボディの参照を持つ。
+	 */
+	private final class SlabInputStream extends InputStream {
+		private final Body body;
+		private final ByteBuffer view = slab.duplicate();
+		/* newInputStream で設定する */
+		private BodyReference reference;
+		private boolean closed;
+		private long position;
+
+		SlabInputStream(final Body body) {
+			this.body = body;
+		}
+
+		@Override
+		public int read() throws IOException {
+			checkNotClosed();
+			if (position >= body.length) {
+				return -1;
+			}
+			final int b = view.get(body.offsetOf(position)) & 0xff;
+			position++;
+			return b;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len)
+				throws IOException {
+			checkNotClosed();
+			if (len == 0) {
+				return 0;
+			}
+			if (position >= body.length) {
+				return -1;
+			}
+			final int inPage = (int) (position % PAGE_SIZE);
+			final int size = (int) Math.min(Math.min(len, PAGE_SIZE - inPage),
+					body.length - position);
+			view.position(body.offsetOf(position));
+			view.get(b, off, size);
+			position += size;
+			return size;
+		}
+
+		@Override
+		public long skip(final long n) {
+			final long skipped = Math.max(0,
+					Math.min(n, body.length - position));
+			position += skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(Integer.MAX_VALUE, body.length - position);
+		}
+
+		@Override
+		public void close() {
+			if (!closed) {
+				closed = true;
+				release(reference);
+			}
+		}
+
+		/* close した後はページが再利用されうるので読まない */
+		private void checkNotClosed() throws IOException {
+			if (closed) {
+				throw new IOException("stream closed");
+			}
+		}
+	}
+}
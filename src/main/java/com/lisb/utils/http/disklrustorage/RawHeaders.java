@@ -0,0 +1,131 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.boye.httpclientandroidlib.Header;
+
+/**
+ * メタデータから読み込んだレスポンスヘッダを、バイト列のまま保持する。
+ * 各ヘッダは最初に参照されたときに {@link Header} にする。
+ */
+// 名前と値のバイト列を1つの配列に連結し、境界の位置を offsets に持つ。
+// i 番目のヘッダの名前は [offsets[2i], offsets[2i+1])、値は [offsets[2i+1], offsets[2i+2])。
+// 名前での検索はバイト列のまま比べるので、一致しなかったヘッダは文字列にしない。
+// 同じインスタンスを同時に読み込む呼び出し元の間で共有する。
+// decoded への書き込みは競合しうるが、同じ内容の不変な Header で上書きするだけになる。
+final class RawHeaders {
+
+	private final byte[] bytes;
+	private final int[] offsets;
+	private final Header[] decoded;
+
+	private RawHeaders(final byte[] bytes, final int[] offsets) {
+		this.bytes = bytes;
+		this.offsets = offsets;
+		this.decoded = new Header[offsets.length / 2];
+	}
+
+	/**
+	 * 名前と値を1行ずつ交互に count 個読み込む。
+	 */
+	static RawHeaders read(final StrictLineReader in, final int count)
+			throws IOException {
+		if (count < 0) {
+			throw new IOException("negative header count: " + count);
+		}
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(count * 32);
+		final int[] offsets = new int[count * 2 + 1];
+		for (int i = 1; i < offsets.length; i++) {
+			in.readLineBytes(out);
+			offsets[i] = out.size();
+		}
+		return new RawHeaders(out.toByteArray(), offsets);
+	}
+
+	int size() {
+		return decoded.length;
+	}
+
+	Header[] getAll() {
+		final Header[] headers = new Header[decoded.length];
+		for (int i = 0; i < headers.length; i++) {
+			headers[i] = get(i);
+		}
+		return headers;
+	}
+
+	/**
+	 * @param name
+	 *            大文字と小文字は区別しない
+	 * @return 見つからない場合は null
+	 */
+	Header getFirst(final String name) {
+		for (int i = 0; i < decoded.length; i++) {
+			if (nameEquals(i, name)) {
+				return get(i);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param name
+	 *            大文字と小文字は区別しない
+	 */
+	Header[] get(final String name) {
+		final List<Header> headers = new ArrayList<Header>(2);
+		for (int i = 0; i < decoded.length; i++) {
+			if (nameEquals(i, name)) {
+				headers.add(get(i));
+			}
+		}
+		return headers.toArray(new Header[headers.size()]);
+	}
+
+	private Header get(final int index) {
+		Header header = decoded[index];
+		if (header == null) {
+			header = KnownHeaders.getHeader(
+					decode(KnownHeaders.NAMES, offsets[index * 2],
+							offsets[index * 2 + 1]),
+					decode(KnownHeaders.VALUES, offsets[index * 2 + 1],
+							offsets[index * 2 + 2]));
+			decoded[index] = header;
+		}
+		return header;
+	}
+
+	private String decode(final StringTable table, final int start,
+			final int end) {
+		// よく使われるヘッダ名・値は共有のインスタンスを使う
+		final String shared = table.lookup(bytes, start, end - start);
+		return shared != null ? shared : StrictLineReader.decodeUtf8(bytes,
+				start, end - start);
+	}
+
+	private boolean nameEquals(final int index, final String name) {
+		final int start = offsets[index * 2];
+		final int length = offsets[index * 2 + 1] - start;
+		for (int i = start; i < start + length; i++) {
+			if (bytes[i] < 0) {
+				// ASCII 以外を含む名前は文字列にして比べる
+				return get(index).getName().equalsIgnoreCase(name);
+			}
+		}
+		if (length != name.length()) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			final char a = (char) bytes[start + i];
+			final char b = name.charAt(i);
+			if (a != b && Character.toUpperCase(a) != Character.toUpperCase(b)
+					&& Character.toLowerCase(a) != Character.toLowerCase(b)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
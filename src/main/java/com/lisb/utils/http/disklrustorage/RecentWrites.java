@@ -0,0 +1,141 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import ch.boye.httpclientandroidlib.client.cache.HttpCacheEntry;
+import ch.boye.httpclientandroidlib.impl.client.cache.HeapResource;
+
+/**
+ * 書き込んだ直後のエントリをヒープに保持し、続く読み込みでディスクを読まずに返す。
+ */
+// CachingHttpClient はレスポンスを保存した直後に同じエントリを読み直すことが多い。
+// 保持する期間 (ttl) と合計バイト数 (capacity) の両方で制限し、書き込みの順に追い出す。
+// ボディは呼び出し元の Resource ではなく、ヒープに読み込んだコピーを保持する
+// (呼び出し元は putEntry の後に Resource を dispose しうる)。
+// DiskLruCache が容量超過で削除したエントリは通知されないので、ttl の間は返しうる。
+final class RecentWrites {
+
+	private final long capacity;
+	private final long ttlNanos;
+	private final Ticker ticker;
+	private final LinkedHashMap<String, Written> entries = new LinkedHashMap<String, Written>();
+	private long size;
+
+	/**
+	 * @param capacity
+	 *            保持するボディの合計バイト数
+	 * @param ttl
+	 *            保持する期間(ミリ秒)
+	 */
+	RecentWrites(final long capacity, final long ttl, final Ticker ticker) {
+		this.capacity = capacity;
+		this.ttlNanos = ttl * 1000 * 1000;
+		this.ticker = ticker;
+	}
+
+	static boolean isEnabled(final CacheStorageConfig config) {
+		return config.getRecentWritesSize() > 0
+				&& config.getRecentWritesTtl() > 0;
+	}
+
+	/**
+	 * ボディをヒープに読み込んだ、保持できるエントリのコピーを作る。
+	 * 
+	 * @return ボディが大きすぎて保持できない場合は null
+	 */
+	HttpCacheEntry copy(final HttpCacheEntry entry) throws IOException {
+		if (entry.getResource().length() > capacity) {
+			return null;
+		}
+		final InputStream in = entry.getResource().getInputStream();
+		try {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream(
+					(int) entry.getResource().length());
+			final byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				if (out.size() + read > capacity) {
+					// Resource.length() より長い
+					return null;
+				}
+				out.write(buffer, 0, read);
+			}
+			return new HttpCacheEntry(entry.getRequestDate(),
+					entry.getResponseDate(), entry.getStatusLine(),
+					entry.getAllHeaders(), new HeapResource(out.toByteArray()),
+					entry.getVariantMap());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @param entry
+	 *            {@link #copy(HttpCacheEntry)} で作ったコピー
+	 */
+	synchronized void put(final String key, final String uri,
+			final HttpCacheEntry entry) {
+		remove(key);
+		// 容量はボディのバイト数で数える
+		final long size = entry.getResource().length();
+		final long now = ticker.read();
+		entries.put(key, new Written(uri, entry, size, now));
+		this.size += size;
+		for (final Iterator<Written> i = entries.values().iterator(); i
+				.hasNext();) {
+			final Written oldest = i.next();
+			if (this.size <= capacity && !oldest.isExpired(now, ttlNanos)) {
+				break;
+			}
+			i.remove();
+			this.size -= oldest.size;
+		}
+	}
+
+	/**
+	 * @return 保持していないか、期間が過ぎたか、uri が異なる場合は null
+	 */
+	synchronized HttpCacheEntry get(final String key, final String uri) {
+		final Written written = entries.get(key);
+		if (written == null) {
+			return null;
+		}
+		if (written.isExpired(ticker.read(), ttlNanos)) {
+			remove(key);
+			return null;
+		}
+		// ハッシュが衝突した別の URI のエントリは返さない
+		return written.uri.equals(uri) ? written.entry : null;
+	}
+
+	synchronized void remove(final String key) {
+		final Written removed = entries.remove(key);
+		if (removed != null) {
+			size -= removed.size;
+		}
+	}
+
+	private static final class Written {
+		final String uri;
+		/* ボディは HeapResource なので、複数の呼び出し元に同じインスタンスを返せる */
+		final HttpCacheEntry entry;
+		final long size;
+		final long writtenAt;
+
+		Written(final String uri, final HttpCacheEntry entry, final long size,
+				final long writtenAt) {
+			this.uri = uri;
+			this.entry = entry;
+			this.size = size;
+			this.writtenAt = writtenAt;
+		}
+
+		boolean isExpired(final long now, final long ttlNanos) {
+			return now - writtenAt >= ttlNanos;
+		}
+	}
+}
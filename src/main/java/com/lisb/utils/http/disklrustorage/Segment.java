@@ -0,0 +1,316 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * {@link SegmentHttpCacheStorage} のセグメントファイル。
+ */
+// 追記は SegmentHttpCacheStorage の追記用のロックを持つスレッドだけが行い、
+// 読み込みは位置を指定して FileChannel から読むので、追記と並行して行える。
+// FileChannel は読み込み中のスレッドが割り込まれると閉じてしまうので、読み込みには追記とは別のファイルを開き、
+// 他のスレッドの割り込みで閉じられていたら開き直して読み直す。追記は割り込みで閉じない RandomAccessFile で行う。
+// コンパクションで不要になったセグメントは、先に "<ファイル名>.retired" というマーカーを作ってから、
+// 読み込み中の Resource がすべて手放されたあとで削除する。マーカーのあるセグメントは、
+// 削除される前にプロセスが終了しても起動時に読まずに削除する。
+final class Segment {
+
+	static final String RETIRED_SUFFIX = ".retired";
+
+	final long id;
+	final File file;
+	private final File retiredMarker;
+	/* 追記用 */
+	private final RandomAccessFile raf;
+	/* 読み込み用。割り込みで閉じられたら開き直す。Segment のロックで保護する。 */
+	private FileChannel channel;
+	private boolean closed;
+
+	/* 以下は SegmentHttpCacheStorage のロックで保護する */
+	/* 書き込みが完了したバイト数 */
+	long length;
+	/* インデックスから参照されているレコードのバイト数 */
+	long liveBytes;
+	private int references;
+	private boolean retired;
+
+	Segment(final long id, final File file) throws IOException {
+		this.id = id;
+		this.file = file;
+		this.retiredMarker = retiredMarker(file);
+		this.raf = new RandomAccessFile(file, "rw");
+	}
+
+	private synchronized FileChannel channel() throws IOException {
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+		if (channel == null || !channel.isOpen()) {
+			channel = new RandomAccessFile(file, "r").getChannel();
+		}
+		return channel;
+	}
+
+	/**
+	 * 読み込み用のチャネルで ClosedChannelException が起きたときに呼ぶ。
+	 * 
+	 * @return 他のスレッドの割り込みでチャネルが閉じられただけで、開き直して読み直せる場合は true
+	 */
+	private static boolean isClosedByOthers(final FileChannel reader) {
+		// 自分が割り込まれた場合と、転送先のチャネルが閉じている場合は読み直さない
+		return !reader.isOpen() && !Thread.currentThread().isInterrupted();
+	}
+
+	private int readAt(final ByteBuffer dst, final long position)
+			throws IOException {
+		while (true) {
+			final FileChannel reader = channel();
+			try {
+				return reader.read(dst, position);
+			} catch (ClosedChannelException e) {
+				if (!isClosedByOthers(reader)) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * position から buffer がいっぱいになるまで読み込む。
+	 */
+	void read(final ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			final int read = readAt(buffer, position);
+			if (read == -1) {
+				throw new EOFException();
+			}
+			position += read;
+		}
+	}
+
+	/**
+	 * position から end (レコードの終端) を超えない範囲で dst に読み込む。
+	 * 
+	 * @return 読み込んだバイト数。position が end 以降の場合は -1
+	 */
+	int read(final ByteBuffer dst, final long position, final long end)
+			throws IOException {
+		if (position >= end) {
+			return -1;
+		}
+		final int limit = dst.limit();
+		if (dst.remaining() > end - position) {
+			dst.limit(dst.position() + (int) (end - position));
+		}
+		try {
+			final int read = readAt(dst, position);
+			if (read == -1) {
+				throw new EOFException("segment truncated");
+			}
+			return read;
+		} finally {
+			dst.limit(limit);
+		}
+	}
+
+	/**
+	 * position から end (レコードの終端) を超えない範囲で最大 count バイトを target に転送する。
+	 */
+	long transferTo(final long position, final long count, final long end,
+			final WritableByteChannel target) throws IOException {
+		if (position >= end) {
+			return 0;
+		}
+		while (true) {
+			final FileChannel reader = channel();
+			try {
+				return reader.transferTo(position,
+						Math.min(count, end - position), target);
+			} catch (ClosedChannelException e) {
+				if (!isClosedByOthers(reader)) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param owner
+	 *            読み込み中に回収されないようにストリームから参照しておくオブジェクト
+	 */
+	InputStream newInputStream(final long position, final long length,
+			final Object owner) {
+		return new SegmentInputStream(position, length, owner);
+	}
+
+	/**
+	 * 末尾 ({@link #length}) から書き込む OutputStream を返す。書き込んだ分だけ {@link #length}
+	 * は進まないので、レコードを書き終えたら呼び出し元が更新する。
+	 */
+	OutputStream newAppender() throws IOException {
+		raf.seek(length);
+		return new OutputStream() {
+			@Override
+			public void write(final int b) throws IOException {
+				raf.write(b);
+			}
+
+			@Override
+			public void write(final byte[] b, final int off, final int len)
+					throws IOException {
+				raf.write(b, off, len);
+			}
+		};
+	}
+
+	/**
+	 * position に long を書き込む。レコードの先頭に置いた長さを後から埋めるのに使う。
+	 */
+	void writeLongAt(final long position, final long value) throws IOException {
+		final long current = raf.getFilePointer();
+		raf.seek(position);
+		raf.writeLong(value);
+		raf.seek(current);
+	}
+
+	/**
+	 * 書きかけのレコードを捨てる。
+	 */
+	void truncate(final long length) throws IOException {
+		raf.setLength(length);
+		raf.seek(length);
+	}
+
+	void acquire() {
+		references++;
+	}
+
+	/**
+	 * @return セグメントを削除したかどうか
+	 */
+	boolean release() {
+		references--;
+		return deleteIfUnused();
+	}
+
+	/**
+	 * 以降の読み込みがないセグメントとして扱い、参照がなくなった時点で削除する。
+	 * 
+	 * @throws IOException
+	 *             マーカーを作れなかった場合。セグメントは退役していない。
+	 */
+	boolean retire() throws IOException {
+		if (!retiredMarker.createNewFile() && !retiredMarker.exists()) {
+			throw new IOException("failed to retire " + file);
+		}
+		retired = true;
+		return deleteIfUnused();
+	}
+
+	/**
+	 * 退役済みのマーカーがあるかどうか。
+	 */
+	static boolean isRetired(final File file) {
+		return retiredMarker(file).exists();
+	}
+
+	/**
+	 * 退役済みのセグメントファイルを削除し、削除できたらマーカーも削除する。
+	 */
+	static void deleteRetired(final File file) {
+		if (file.delete() || !file.exists()) {
+			retiredMarker(file).delete();
+		}
+	}
+
+	private static File retiredMarker(final File file) {
+		return new File(file.getPath() + RETIRED_SUFFIX);
+	}
+
+	void close() throws IOException {
+		closeChannel();
+		raf.close();
+	}
+
+	private synchronized void closeChannel() throws IOException {
+		closed = true;
+		if (channel != null) {
+			channel.close();
+		}
+	}
+
+	private boolean deleteIfUnused() {
+		if (!retired || references > 0) {
+			return false;
+		}
+		try {
+			close();
+		} catch (IOException e) {
+			// 削除するので無視する
+		}
+		if (!file.delete()) {
+			// マーカーが残るので、次の起動時に削除される
+			return false;
+		}
+		retiredMarker.delete();
+		return true;
+	}
+
+	private final class SegmentInputStream extends InputStream {
+		private long position;
+		private final long end;
+		@SuppressWarnings("unused")
+		private final Object owner;
+
+		SegmentInputStream(final long position, final long length,
+				final Object owner) {
+			this.position = position;
+			this.end = position + length;
+			this.owner = owner;
+		}
+
+		@Override
+		public int read() throws IOException {
+			final byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len)
+				throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (position >= end) {
+				return -1;
+			}
+			final int size = (int) Math.min(len, end - position);
+			final int read = readAt(ByteBuffer.wrap(b, off, size), position);
+			if (read == -1) {
+				throw new EOFException("segment truncated");
+			}
+			position += read;
+			return read;
+		}
+
+		@Override
+		public long skip(final long n) {
+			final long skipped = Math.max(0, Math.min(n, end - position));
+			position += skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(Integer.MAX_VALUE, end - position);
+		}
+	}
+}
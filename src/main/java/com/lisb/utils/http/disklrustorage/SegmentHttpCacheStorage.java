@@ -0,0 +1,769 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+import ch.boye.httpclientandroidlib.annotation.ThreadSafe;
+import ch.boye.httpclientandroidlib.client.cache.HttpCacheEntry;
+import ch.boye.httpclientandroidlib.client.cache.HttpCacheStorage;
+import ch.boye.httpclientandroidlib.client.cache.HttpCacheUpdateCallback;
+import ch.boye.httpclientandroidlib.client.cache.HttpCacheUpdateException;
+
+import com.lisb.utils.http.disklrustorage.compat.Charsets;
+
+/**
+ * エントリを大きなセグメントファイルに追記していく {@link HttpCacheStorage}。
+ * エントリごとにファイルを作らないので、小さなレスポンスを大量に保存してもファイル数が増えない。
+ * メタデータの形式は {@link DiskLruHttpCacheStorage} と同じ。
+ */
+// ディレクトリには "segment-<番号>" というファイルが並び、番号の最も大きいものにだけ追記する。
+// レコードの形式 (DataOutputStream と同じビッグエンディアン):
+// PUT : 'P' / ボディの長さ (long) / ボディ / メタデータの長さ (int) / メタデータ (EntryCodec)
+// REMOVE : 'R' / URI の長さ (int) / URI (UTF-8) / URI の CRC32 (long)
+// 起動時にすべてのセグメントを古い順に読み、URI → 最新の PUT の位置のインデックスをメモリ上に作る。
+// 途中で切れたレコードや壊れたレコードに出会ったら、そのセグメントの残りは読まない。
+//
+// 上書き・削除されたレコードはゴミになり、ゴミの割合が増えたらバックグラウンドで
+// 最も古いセグメントの生きているレコードを現在のセグメントに書き写し、古いセグメントを削除する。
+// 最も古いセグメントから処理するので、そこにある REMOVE が打ち消すべきより古いレコードはなく、捨ててよい。
+// 書き写し終えたセグメントには退役のマーカーを作り、起動時にはマーカーのあるセグメントを読まずに削除する。
+// 読み込み中で削除できずに残っているセグメントの古い PUT が、捨てた REMOVE の代わりに復活することはない。
+//
+// getEntry が返した Resource はセグメントを参照し続ける。CachingHttpClient は Resource を dispose しないので、
+// dispose されるか、Resource が回収されたことを ReferenceQueue で検出した時点で参照を外す。
+// ストリームは元の Resource を参照するので、読み込み中のストリームがある間は Resource も到達可能なままになる。
+//
+// 追記 (putEntry, removeEntry, コンパクション) は appendLock で1つずつ行い、
+// インデックスは this のロックで保護する。ロックの順序は appendLock → this。
+// getEntry は this のロックでインデックスを引くだけで、読み込みは追記と並行して行う。
+@ThreadSafe
+public class SegmentHttpCacheStorage implements HttpCacheStorage {
+
+	/** セグメントファイルの大きさのデフォルト値。 */
+	public static final long DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final byte PUT = 'P';
+	private static final byte REMOVE = 'R';
+	/* ゴミがこの割合を超えたらコンパクションする */
+	private static final double GARBAGE_RATIO = 0.5;
+	private static final int BODY_BUFFER_SIZE = 8192;
+
+	private final File directory;
+	private final long maxSize;
+	private final long segmentSize;
+	private final ExecutorService compactionExecutor = Executors
+			.newSingleThreadExecutor(new CompactionThreadFactory());
+
+	private final Object appendLock = new Object();
+	private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+	private Segment active;
+	/* 削除できずに残った退役済みのセグメントとも重ならない、次のセグメントの番号 */
+	private long nextSegmentId;
+	/* URI → 最新のレコードの位置。LRU の順序で並ぶ。 */
+	private final LinkedHashMap<String, Location> index = new LinkedHashMap<String, Location>(
+			16, 0.75f, true);
+	/* Variant を除いた URI → Variant の URI */
+	private final Map<String, Set<String>> variants = new HashMap<String, Set<String>>();
+	private long liveBytes;
+	private long totalBytes;
+	private boolean compactionScheduled;
+	/* getEntry が返してまだセグメントを手放していない Resource */
+	private final Set<ResourceReference> liveResources = new HashSet<ResourceReference>();
+	private final ReferenceQueue<SegmentResource> unreachableResources = new ReferenceQueue<SegmentResource>();
+
+	public SegmentHttpCacheStorage(final File directory, final long maxSize)
+			throws IOException {
+		this(directory, maxSize, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * @param maxSize
+	 *            保持するエントリの合計バイト数の上限。
+	 *            コンパクションまでの間、ディスク上のファイルはこの2倍程度まで大きくなりうる。
+	 * @param segmentSize
+	 *            これを超えたら次のセグメントファイルに追記する
+	 */
+	public SegmentHttpCacheStorage(final File directory, final long maxSize,
+			final long segmentSize) throws IOException {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		if (segmentSize <= 0) {
+			throw new IllegalArgumentException("segmentSize <= 0");
+		}
+		this.directory = directory;
+		this.maxSize = maxSize;
+		this.segmentSize = segmentSize;
+		directory.mkdirs();
+		replaySegments();
+	}
+
+	public HttpCacheEntry getEntry(final String key) throws IOException {
+		final Location location;
+		final SegmentResource resource;
+		synchronized (this) {
+			releaseUnreachable();
+			location = index.get(key);
+			if (location == null) {
+				return null;
+			}
+			resource = newResource(location);
+		}
+		try {
+			final byte[] metadata = new byte[location.metadataLength];
+			location.segment.read(ByteBuffer.wrap(metadata),
+					location.metadataOffset);
+			final EntryMetadata parsed = EntryCodec.readMetadata(
+					new ByteArrayInputStream(metadata), metadata.length);
+			if (!key.equals(parsed.uri)
+					|| parsed.bodyLength != location.bodyLength) {
+				throw new CorruptedEntryException("record mismatch");
+			}
+			return parsed.toEntry(resource);
+		} catch (CorruptedEntryException e) {
+			// 壊れたレコードは再び読み込まれないように削除して、キャッシュミスとして扱う
+			resource.dispose();
+			synchronized (appendLock) {
+				final boolean removed;
+				synchronized (this) {
+					removed = index.get(key) == location && removeFromIndex(key);
+				}
+				if (removed) {
+					appendRemove(key);
+				}
+			}
+			return null;
+		} catch (IOException e) {
+			resource.dispose();
+			throw e;
+		}
+	}
+
+	public void putEntry(final String key, final HttpCacheEntry entry)
+			throws IOException {
+		synchronized (appendLock) {
+			final Segment segment = activeSegment();
+			final long start = segment.length;
+			final Location location;
+			try {
+				location = appendPut(segment, key, entry);
+			} catch (IOException e) {
+				segment.truncate(start);
+				throw e;
+			}
+			synchronized (this) {
+				segment.length = location.offset + location.recordLength;
+				totalBytes += location.recordLength;
+				unlink(index.put(key, location));
+				link(key, location);
+			}
+			evictIfNeeded(key);
+			scheduleCompactionIfNeeded();
+		}
+	}
+
+	public void removeEntry(final String key) throws IOException {
+		synchronized (appendLock) {
+			final List<String> removed = new ArrayList<String>();
+			synchronized (this) {
+				if (removeFromIndex(key)) {
+					removed.add(key);
+				}
+				if (CacheKeys.getVariantPrefix(key) == null) {
+					// URL を無効化する場合は、同じ URL の Variant もまとめて削除する。
+					final Set<String> group = variants.get(key);
+					if (group != null) {
+						for (final String variant : new ArrayList<String>(group)) {
+							if (removeFromIndex(variant)) {
+								removed.add(variant);
+							}
+						}
+					}
+				}
+			}
+			for (final String uri : removed) {
+				appendRemove(uri);
+			}
+			scheduleCompactionIfNeeded();
+		}
+	}
+
+	public void updateEntry(final String key,
+			final HttpCacheUpdateCallback callback) throws IOException,
+			HttpCacheUpdateException {
+		final HttpCacheEntry existing = getEntry(key);
+		final HttpCacheEntry updating = callback.update(existing);
+		putEntry(key, updating);
+	}
+
+	/**
+	 * 保持しているエントリの合計バイト数。
+	 */
+	public synchronized long size() {
+		return liveBytes;
+	}
+
+	public void close() throws IOException {
+		compactionExecutor.shutdownNow();
+		synchronized (appendLock) {
+			synchronized (this) {
+				for (final Segment segment : segments.values()) {
+					segment.close();
+				}
+				// 読み込み中で削除を待っている退役済みのセグメント
+				for (final ResourceReference reference : liveResources) {
+					reference.segment.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * ストレージを閉じて、すべてのセグメントファイルを削除する。
+	 */
+	public void delete() throws IOException {
+		close();
+		final File[] files = directory.listFiles(new FilenameFilter() {
+			public boolean accept(final File dir, final String name) {
+				// 退役のマーカーも含める
+				return name.startsWith(SEGMENT_PREFIX);
+			}
+		});
+		if (files != null) {
+			for (final File file : files) {
+				file.delete();
+			}
+		}
+	}
+
+	// ===== 追記 ===== //
+
+	/* appendLock を保持して呼ぶ */
+	private Segment activeSegment() throws IOException {
+		if (active == null || active.length >= segmentSize) {
+			final long id = nextSegmentId++;
+			final File file = new File(directory, SEGMENT_PREFIX + id);
+			// 削除しきれずに残っていた同じ番号のマーカーで、新しいセグメントが退役済みとして扱われないようにする
+			Segment.deleteRetired(file);
+			final Segment segment = new Segment(id, file);
+			synchronized (this) {
+				segments.put(id, segment);
+				active = segment;
+			}
+		}
+		return active;
+	}
+
+	/* appendLock を保持して呼ぶ */
+	private Location appendPut(final Segment segment, final String uri,
+			final HttpCacheEntry entry) throws IOException {
+		final long start = segment.length;
+		final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(segment.newAppender(),
+						BODY_BUFFER_SIZE));
+		out.writeByte(PUT);
+		// ボディの長さは書き終えてから埋める
+		out.writeLong(0);
+		final CRC32 bodyChecksum = new CRC32();
+		long bodyLength = 0;
+		final InputStream in = entry.getResource().getInputStream();
+		try {
+			final byte[] buffer = new byte[BODY_BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+				bodyChecksum.update(buffer, 0, read);
+				bodyLength += read;
+			}
+		} finally {
+			in.close();
+		}
+		final ByteArrayOutputStream metadata = new ByteArrayOutputStream();
+		EntryCodec.writeMetadata(metadata, uri, entry, bodyLength,
+				bodyChecksum.getValue());
+		out.writeInt(metadata.size());
+		metadata.writeTo(out);
+		out.flush();
+		segment.writeLongAt(start + 1, bodyLength);
+
+		final long bodyOffset = start + 1 + 8;
+		final long metadataOffset = bodyOffset + bodyLength + 4;
+		final long recordLength = metadataOffset + metadata.size() - start;
+		return new Location(segment, start, recordLength, metadataOffset,
+				metadata.size(), bodyOffset, bodyLength);
+	}
+
+	/* appendLock を保持して呼ぶ */
+	private void appendRemove(final String uri) throws IOException {
+		final Segment segment = activeSegment();
+		final long start = segment.length;
+		final byte[] bytes = uri.getBytes(Charsets.UTF_8.name());
+		final CRC32 crc = new CRC32();
+		crc.update(bytes);
+		try {
+			final DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(segment.newAppender()));
+			out.writeByte(REMOVE);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+			out.writeLong(crc.getValue());
+			out.flush();
+		} catch (IOException e) {
+			segment.truncate(start);
+			throw e;
+		}
+		synchronized (this) {
+			final long recordLength = 1 + 4 + bytes.length + 8;
+			segment.length = start + recordLength;
+			totalBytes += recordLength;
+		}
+	}
+
+	/* appendLock を保持して呼ぶ */
+	private void evictIfNeeded(final String justPut) throws IOException {
+		final List<String> victims = new ArrayList<String>();
+		synchronized (this) {
+			final Iterator<Map.Entry<String, Location>> i = index.entrySet()
+					.iterator();
+			long remaining = liveBytes;
+			while (remaining > maxSize && i.hasNext()) {
+				final Map.Entry<String, Location> eldest = i.next();
+				if (eldest.getKey().equals(justPut)) {
+					continue;
+				}
+				remaining -= eldest.getValue().recordLength;
+				victims.add(eldest.getKey());
+			}
+			for (final String victim : victims) {
+				removeFromIndex(victim);
+			}
+		}
+		for (final String victim : victims) {
+			appendRemove(victim);
+		}
+	}
+
+	// ===== インデックス ===== //
+
+	/* this のロックを保持して呼ぶ */
+	private boolean removeFromIndex(final String uri) {
+		final Location location = index.remove(uri);
+		if (location == null) {
+			return false;
+		}
+		unlink(location);
+		if (CacheKeys.getVariantPrefix(uri) != null) {
+			final String base = CacheKeys.stripVariant(uri);
+			final Set<String> group = variants.get(base);
+			if (group != null) {
+				group.remove(uri);
+				if (group.isEmpty()) {
+					variants.remove(base);
+				}
+			}
+		}
+		return true;
+	}
+
+	/* インデックスに登録したレコードを生きているレコードとして数える。this のロックを保持して呼ぶ。 */
+	private void link(final String uri, final Location location) {
+		location.segment.liveBytes += location.recordLength;
+		liveBytes += location.recordLength;
+		if (CacheKeys.getVariantPrefix(uri) != null) {
+			final String base = CacheKeys.stripVariant(uri);
+			Set<String> group = variants.get(base);
+			if (group == null) {
+				group = new HashSet<String>();
+				variants.put(base, group);
+			}
+			group.add(uri);
+		}
+	}
+
+	/* インデックスから外れたレコードをゴミとして数える。this のロックを保持して呼ぶ。 */
+	private void unlink(final Location location) {
+		if (location != null) {
+			location.segment.liveBytes -= location.recordLength;
+			liveBytes -= location.recordLength;
+		}
+	}
+
+	/* this のロックを保持して呼ぶ */
+	private SegmentResource newResource(final Location location) {
+		location.segment.acquire();
+		final SegmentResource resource = new SegmentResource(location);
+		resource.reference = new ResourceReference(resource,
+				location.segment, unreachableResources);
+		liveResources.add(resource.reference);
+		return resource;
+	}
+
+	/**
+	 * dispose されずに回収された Resource が参照していたセグメントを手放す。this のロックを保持して呼ぶ。
+	 */
+	private void releaseUnreachable() {
+		Reference<? extends SegmentResource> reference;
+		while ((reference = unreachableResources.poll()) != null) {
+			release((ResourceReference) reference);
+		}
+	}
+
+	/**
+	 * dispose と回収のどちらが先でも、セグメントを手放すのは1回だけにする。
+	 */
+	private synchronized void release(final ResourceReference reference) {
+		if (liveResources.remove(reference)) {
+			reference.segment.release();
+		}
+	}
+
+	// ===== コンパクション ===== //
+
+	/* appendLock を保持して呼ぶ */
+	private synchronized void scheduleCompactionIfNeeded() {
+		releaseUnreachable();
+		if (!compactionScheduled && needsCompaction()) {
+			compactionScheduled = true;
+			compactionExecutor.execute(new Runnable() {
+				public void run() {
+					try {
+						compact();
+					} catch (IOException e) {
+						// 次の書き込みで再試行する
+					} finally {
+						synchronized (SegmentHttpCacheStorage.this) {
+							compactionScheduled = false;
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/* this のロックを保持して呼ぶ */
+	private boolean needsCompaction() {
+		return segments.size() > 1 && totalBytes > segmentSize
+				&& totalBytes - liveBytes > totalBytes * GARBAGE_RATIO;
+	}
+
+	/**
+	 * ゴミの割合が閾値を下回るまで、最も古いセグメントから順に書き写して削除する。
+	 */
+	void compact() throws IOException {
+		while (!Thread.currentThread().isInterrupted()) {
+			synchronized (appendLock) {
+				final Segment oldest;
+				final List<Map.Entry<String, Location>> live = new ArrayList<Map.Entry<String, Location>>();
+				synchronized (this) {
+					if (!needsCompaction()) {
+						return;
+					}
+					oldest = segments.get(segments.firstKey());
+					if (oldest == active) {
+						return;
+					}
+					for (final Map.Entry<String, Location> e : index.entrySet()) {
+						if (e.getValue().segment == oldest) {
+							live.add(e);
+						}
+					}
+				}
+				final Map<String, Location> moved = new HashMap<String, Location>();
+				for (final Map.Entry<String, Location> e : live) {
+					moved.put(e.getKey(), copyRecord(e.getValue()));
+				}
+				synchronized (this) {
+					// マーカーを作れなければ、書き写したレコードはゴミとして残し、インデックスは元のままにする
+					oldest.retire();
+					// 書き写している間にインデックスは変わらない (追記は appendLock で止まっている)。
+					// LRU の順序を変えないように、get や put ではなく既存のエントリの値を差し替える。
+					for (final Map.Entry<String, Location> e : index.entrySet()) {
+						final Location location = moved.get(e.getKey());
+						if (location != null) {
+							unlink(e.getValue());
+							e.setValue(location);
+							location.segment.liveBytes += location.recordLength;
+							liveBytes += location.recordLength;
+						}
+					}
+					segments.remove(oldest.id);
+					totalBytes -= oldest.length;
+				}
+			}
+		}
+	}
+
+	/* appendLock を保持して呼ぶ */
+	private Location copyRecord(final Location from) throws IOException {
+		final Segment segment = activeSegment();
+		final long start = segment.length;
+		try {
+			final OutputStream out = segment.newAppender();
+			final byte[] buffer = new byte[BODY_BUFFER_SIZE];
+			long position = from.offset;
+			final long end = from.offset + from.recordLength;
+			while (position < end) {
+				final int size = (int) Math.min(buffer.length, end - position);
+				from.segment.read(ByteBuffer.wrap(buffer, 0, size), position);
+				out.write(buffer, 0, size);
+				position += size;
+			}
+		} catch (IOException e) {
+			segment.truncate(start);
+			throw e;
+		}
+		final long shift = start - from.offset;
+		synchronized (this) {
+			segment.length = start + from.recordLength;
+			totalBytes += from.recordLength;
+		}
+		return new Location(segment, start, from.recordLength,
+				from.metadataOffset + shift, from.metadataLength,
+				from.bodyOffset + shift, from.bodyLength);
+	}
+
+	// ===== 起動時の読み込み ===== //
+
+	private File[] listSegmentFiles() {
+		final File[] files = directory.listFiles(new FilenameFilter() {
+			public boolean accept(final File dir, final String name) {
+				return name.startsWith(SEGMENT_PREFIX)
+						&& parseSegmentId(name) >= 0;
+			}
+		});
+		return files != null ? files : new File[0];
+	}
+
+	private static long parseSegmentId(final String name) {
+		try {
+			return Long.parseLong(name.substring(SEGMENT_PREFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private void replaySegments() throws IOException {
+		final TreeMap<Long, File> files = new TreeMap<Long, File>();
+		for (final File file : listSegmentFiles()) {
+			files.put(parseSegmentId(file.getName()), file);
+		}
+		for (final Map.Entry<Long, File> e : files.entrySet()) {
+			nextSegmentId = e.getKey() + 1;
+			if (Segment.isRetired(e.getValue())) {
+				// コンパクションで書き写し終えたあと、削除される前に終了したセグメント
+				Segment.deleteRetired(e.getValue());
+				continue;
+			}
+			final Segment segment = new Segment(e.getKey(), e.getValue());
+			segments.put(segment.id, segment);
+			replay(segment);
+			totalBytes += segment.length;
+			active = segment;
+		}
+		if (active != null) {
+			// 途中で切れた最後のレコードを捨ててから追記する
+			active.truncate(active.length);
+		}
+	}
+
+	private void replay(final Segment segment) throws IOException {
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(segment.file), BODY_BUFFER_SIZE));
+		try {
+			long position = 0;
+			while (true) {
+				final int type = in.read();
+				if (type == PUT) {
+					final long bodyLength = in.readLong();
+					if (bodyLength < 0) {
+						break;
+					}
+					skipFully(in, bodyLength);
+					final int metadataLength = in.readInt();
+					if (metadataLength < 0) {
+						break;
+					}
+					final byte[] metadata = new byte[metadataLength];
+					in.readFully(metadata);
+					final EntryMetadata parsed;
+					try {
+						parsed = EntryCodec.readMetadata(
+								new ByteArrayInputStream(metadata),
+								metadataLength);
+					} catch (CorruptedEntryException e) {
+						break;
+					}
+					if (parsed.bodyLength != bodyLength) {
+						break;
+					}
+					final long bodyOffset = position + 1 + 8;
+					final long metadataOffset = bodyOffset + bodyLength + 4;
+					final Location location = new Location(segment, position,
+							metadataOffset + metadataLength - position,
+							metadataOffset, metadataLength, bodyOffset,
+							bodyLength);
+					unlink(index.put(parsed.uri, location));
+					link(parsed.uri, location);
+					position += location.recordLength;
+				} else if (type == REMOVE) {
+					final int length = in.readInt();
+					if (length < 0) {
+						break;
+					}
+					final byte[] bytes = new byte[length];
+					in.readFully(bytes);
+					final CRC32 crc = new CRC32();
+					crc.update(bytes);
+					if (in.readLong() != crc.getValue()) {
+						break;
+					}
+					removeFromIndex(new String(bytes, Charsets.UTF_8.name()));
+					position += 1 + 4 + length + 8;
+				} else {
+					// 終端か、壊れたレコード
+					break;
+				}
+				segment.length = position;
+			}
+		} catch (EOFException e) {
+			// 途中で切れたレコード
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void skipFully(final InputStream in, long n)
+			throws IOException {
+		while (n > 0) {
+			final long skipped = in.skip(n);
+			if (skipped <= 0) {
+				if (in.read() == -1) {
+					throw new EOFException();
+				}
+				n--;
+			} else {
+				n -= skipped;
+			}
+		}
+	}
+
+	/**
+	 * インデックスが指すレコードの位置。
+	 */
+	private static final class Location {
+		final Segment segment;
+		final long offset;
+		final long recordLength;
+		final long metadataOffset;
+		final int metadataLength;
+		final long bodyOffset;
+		final long bodyLength;
+
+		Location(final Segment segment, final long offset,
+				final long recordLength, final long metadataOffset,
+				final int metadataLength, final long bodyOffset,
+				final long bodyLength) {
+			this.segment = segment;
+			this.offset = offset;
+			this.recordLength = recordLength;
+			this.metadataOffset = metadataOffset;
+			this.metadataLength = metadataLength;
+			this.bodyOffset = bodyOffset;
+			this.bodyLength = bodyLength;
+		}
+	}
+
+	private static final class ResourceReference extends
+			WeakReference<SegmentResource> {
+		final Segment segment;
+
+		ResourceReference(final SegmentResource resource,
+				final Segment segment,
+				final ReferenceQueue<SegmentResource> queue) {
+			super(resource, queue);
+			this.segment = segment;
+		}
+	}
+
+	/**
+	 * セグメントからボディを読む。dispose されるか回収されるまでセグメントは削除されない。
+	 */
+	private final class SegmentResource implements ChannelResource {
+		private static final long serialVersionUID = -4412781683095620957L;
+
+		private final transient Location location;
+		private transient ResourceReference reference;
+
+		SegmentResource(final Location location) {
+			this.location = location;
+		}
+
+		public long length() {
+			return location.bodyLength;
+		}
+
+		public InputStream getInputStream() {
+			return location.segment.newInputStream(location.bodyOffset,
+					location.bodyLength, this);
+		}
+
+		public int read(final ByteBuffer dst, final long position)
+				throws IOException {
+			return location.segment.read(dst, location.bodyOffset + position,
+					bodyEnd());
+		}
+
+		public long transferTo(final long position, final long count,
+				final WritableByteChannel target) throws IOException {
+			return location.segment.transferTo(location.bodyOffset + position,
+					count, bodyEnd(), target);
+		}
+
+		private long bodyEnd() {
+			return location.bodyOffset + location.bodyLength;
+		}
+
+		public void dispose() {
+			release(reference);
+		}
+	}
+
+	private static class CompactionThreadFactory implements ThreadFactory {
+		public Thread newThread(final Runnable r) {
+			final Thread thread = new Thread(r,
+					"SegmentHttpCacheStorage-compaction");
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
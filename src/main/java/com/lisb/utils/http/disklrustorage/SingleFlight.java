@@ -0,0 +1,83 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 同じキーに対する同時の呼び出しを1回の実行にまとめ、結果を共有する。
+ */
+// 実行中の呼び出しがある間に来た呼び出しは、その完了を待って同じ結果を受け取る。
+// 完了した呼び出しの結果は保持しないので、キャッシュではなく重複の排除だけを行う。
+final class SingleFlight<V> {
+
+	interface Call<V> {
+		V call() throws IOException;
+	}
+
+	private final Map<String, Flight<V>> flights = new HashMap<String, Flight<V>>();
+
+	/**
+	 * @return 同じキーで実行中の呼び出しがあればその結果、なければ call の結果。
+	 *         実行中の呼び出しが失敗した場合は call を自身で実行する。
+	 */
+	V execute(final String key, final Call<V> call) throws IOException {
+		final Flight<V> flight;
+		final boolean leader;
+		synchronized (flights) {
+			final Flight<V> running = flights.get(key);
+			leader = running == null;
+			if (leader) {
+				flight = new Flight<V>();
+				flights.put(key, flight);
+			} else {
+				flight = running;
+			}
+		}
+		if (!leader) {
+			if (flight.await()) {
+				return flight.result;
+			}
+			return call.call();
+		}
+
+		boolean succeeded = false;
+		try {
+			flight.result = call.call();
+			succeeded = true;
+			return flight.result;
+		} finally {
+			synchronized (flights) {
+				flights.remove(key);
+			}
+			flight.complete(succeeded);
+		}
+	}
+
+	private static final class Flight<V> {
+		private final CountDownLatch done = new CountDownLatch(1);
+		/* done を通じて待機側に公開される */
+		private V result;
+		private boolean succeeded;
+
+		void complete(final boolean succeeded) {
+			this.succeeded = succeeded;
+			done.countDown();
+		}
+
+		/**
+		 * @return 呼び出しが成功したかどうか
+		 */
+		boolean await() throws InterruptedIOException {
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+			return succeeded;
+		}
+	}
+}
@@ -21,10 +21,11 @@ import java.io.Closeable;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
+import java.util.zip.Checksum;
 
 import com.lisb.utils.http.disklrustorage.compat.Charsets;
+import com.lisb.utils.http.disklrustorage.compat.Strings;
 
 /**
  * Buffers input from an {@link java.io.InputStream} for reading lines.
@@ -43,13 +44,40 @@ import com.lisb.utils.http.disklrustorage.compat.Charsets;
  * and 10, respectively, and the representation of no other character contains these values.
  * We currently check in constructor that the charset is one of US-ASCII, UTF-8 and ISO-8859-1.
  * The default charset is US_ASCII.
+ *
+ * Lines are decoded directly from the buffered bytes without a charset lookup; for US-ASCII
+ * bytes outside of US-ASCII are decoded as ISO-8859-1. UTF-8 lines that consist only of ASCII
+ * take the same path, other UTF-8 lines are decoded by the platform decoder. Numeric lines can
+ * be parsed with {@link #readInt()} and {@link #readLong()} without creating an intermediate
+ * {@code String}. Buffers of the default capacity are borrowed from a per-thread pool and
+ * returned on {@link #close()}. A numeric line that cannot be converted is reported by throwing
+ * {@link MalformedLineException}, so that callers can tell it from an I/O error.
  */
 class StrictLineReader implements Closeable {
     private static final byte CR = (byte)'\r';
     private static final byte LF = (byte)'\n';
+    private static final int DEFAULT_CAPACITY = 8192;
+
+    /**
+     * Thrown when a line does not contain the decimal representation that was asked for.
+     */
+    static final class MalformedLineException extends IOException {
+        private static final long serialVersionUID = -2915837312045113069L;
+
+        MalformedLineException(String message) {
+            super(message);
+        }
+    }
+
+    /*
+     * One spare buffer per thread. A reader borrows it if it is free, so readers that are opened
+     * one after another on the same thread (the common case for cache hits) share a buffer.
+     */
+    private static final ThreadLocal<byte[]> BUFFER_POOL = new ThreadLocal<byte[]>();
 
     private final InputStream in;
-    private final Charset charset;
+    private final boolean utf8;
+    private final Checksum checksum;
 
     /*
      * Buffered data is stored in {@code buf}. As long as no exception occurs, 0 <= pos <= end
@@ -93,7 +121,7 @@ class StrictLineReader implements Closeable {
      * @throws IllegalArgumentException if the specified charset is not supported.
      */
     public StrictLineReader(InputStream in, Charset charset) {
-        this(in, 8192, charset);
+        this(in, DEFAULT_CAPACITY, charset);
     }
 
     /**
@@ -108,19 +136,52 @@ class StrictLineReader implements Closeable {
      *         or the specified charset is not supported.
      */
     public StrictLineReader(InputStream in, int capacity, Charset charset) {
+        this(in, capacity, charset, null);
+    }
+
+    /**
+     * Constructs a new {@code LineReader} with the specified charset and the default capacity
+     * that updates {@code checksum} with the raw bytes of every line it returns, including the
+     * end of line marker. Bytes that are buffered but not yet returned are not included.
+     *
+     * @param in the {@code InputStream} to read data from.
+     * @param charset the charset used to decode data.
+     *         Only US-ASCII, UTF-8 and ISO-8859-1 is supported.
+     * @param checksum the checksum to update, or null.
+     * @throws NullPointerException if {@code in} or {@code charset} is null.
+     * @throws IllegalArgumentException if the specified charset is not supported.
+     */
+    public StrictLineReader(InputStream in, Charset charset, Checksum checksum) {
+        this(in, DEFAULT_CAPACITY, charset, checksum);
+    }
+
+    private StrictLineReader(InputStream in, int capacity, Charset charset, Checksum checksum) {
         if (in == null || charset == null) {
             throw new NullPointerException();
         }
         if (capacity < 0) {
             throw new IllegalArgumentException("capacity <= 0");
         }
-        if (!(charset.equals(Charsets.US_ASCII))) {
+        if (!(charset.equals(Charsets.US_ASCII) || charset.equals(Charsets.UTF_8)
+                || charset.equals(Charsets.ISO_8859_1))) {
             throw new IllegalArgumentException("Unsupported encoding");
         }
 
         this.in = in;
-        this.charset = charset;
-        buf = new byte[capacity];
+        this.utf8 = charset.equals(Charsets.UTF_8);
+        this.checksum = checksum;
+        buf = borrowBuffer(capacity);
+    }
+
+    private static byte[] borrowBuffer(int capacity) {
+        if (capacity == DEFAULT_CAPACITY) {
+            byte[] pooled = BUFFER_POOL.get();
+            if (pooled != null) {
+                BUFFER_POOL.set(null);
+                return pooled;
+            }
+        }
+        return new byte[capacity];
     }
 
     /**
@@ -132,6 +193,9 @@ class StrictLineReader implements Closeable {
     public void close() throws IOException {
         synchronized (in) {
             if (buf != null) {
+                if (buf.length == DEFAULT_CAPACITY) {
+                    BUFFER_POOL.set(buf);
+                }
                 buf = null;
                 in.close();
             }
@@ -147,6 +211,20 @@ class StrictLineReader implements Closeable {
      * @throws java.io.EOFException for the end of source stream.
      */
     public String readLine() throws IOException {
+        return readLine(null);
+    }
+
+    /**
+     * Reads the next line like {@link #readLine()}, but returns the shared instance from
+     * {@code table} instead of allocating a new {@code String} when the line matches one of
+     * its entries.
+     *
+     * @param table the strings to share, or null.
+     * @return the next line from the input.
+     * @throws java.io.IOException for underlying {@code InputStream} errors.
+     * @throws java.io.EOFException for the end of source stream.
+     */
+    public String readLine(StringTable table) throws IOException {
         synchronized (in) {
             if (buf == null) {
                 throw new IOException("LineReader is closed");
@@ -162,8 +240,11 @@ class StrictLineReader implements Closeable {
             for (int i = pos; i != end; ++i) {
                 if (buf[i] == LF) {
                     int lineEnd = (i != pos && buf[i - 1] == CR) ? i - 1 : i;
-                    String res = new String(buf, pos, lineEnd - pos, charset.name());
-                    pos = i + 1;
+                    String res = table != null ? table.lookup(buf, pos, lineEnd - pos) : null;
+                    if (res == null) {
+                        res = decode(buf, pos, lineEnd - pos);
+                    }
+                    consume(i + 1);
                     return res;
                 }
             }
@@ -173,16 +254,13 @@ class StrictLineReader implements Closeable {
                 @Override
                 public String toString() {
                     int length = (count > 0 && buf[count - 1] == CR) ? count - 1 : count;
-                    try {
-                        return new String(buf, 0, length, charset.name());
-                    } catch (UnsupportedEncodingException e) {
-                        throw new AssertionError(e); // Since we control the charset this will never happen.
-                    }
+                    return decode(buf, 0, length);
                 }
             };
 
             while (true) {
                 out.write(buf, pos, end - pos);
+                consume(end);
                 // Mark unterminated line in case fillBuf throws EOFException or IOException.
                 end = -1;
                 fillBuf();
@@ -192,7 +270,7 @@ class StrictLineReader implements Closeable {
                         if (i != pos) {
                             out.write(buf, pos, i - pos);
                         }
-                        pos = i + 1;
+                        consume(i + 1);
                         return out.toString();
                     }
                 }
@@ -200,21 +278,158 @@ class StrictLineReader implements Closeable {
         }
     }
 
+    /**
+     * Reads the next line like {@link #readLine()}, but appends its bytes to {@code out}
+     * instead of decoding them, so that the caller can decode them later or not at all.
+     *
+     * @param out the buffer the line is appended to.
+     * @throws java.io.IOException for underlying {@code InputStream} errors.
+     * @throws java.io.EOFException for the end of source stream.
+     */
+    public void readLineBytes(ByteArrayOutputStream out) throws IOException {
+        synchronized (in) {
+            if (buf == null) {
+                throw new IOException("LineReader is closed");
+            }
+            if (pos >= end) {
+                fillBuf();
+            }
+            for (int i = pos; i != end; ++i) {
+                if (buf[i] == LF) {
+                    int lineEnd = (i != pos && buf[i - 1] == CR) ? i - 1 : i;
+                    out.write(buf, pos, lineEnd - pos);
+                    consume(i + 1);
+                    return;
+                }
+            }
+
+            // The line continues past the buffered data; collect it first so that a CR
+            // at the end of one buffer can still be dropped.
+            ByteArrayOutputStream line = new ByteArrayOutputStream(end - pos + 80);
+            while (true) {
+                line.write(buf, pos, end - pos);
+                consume(end);
+                // Mark unterminated line in case fillBuf throws EOFException or IOException.
+                end = -1;
+                fillBuf();
+                for (int i = pos; i != end; ++i) {
+                    if (buf[i] == LF) {
+                        if (i != pos) {
+                            line.write(buf, pos, i - pos);
+                        }
+                        consume(i + 1);
+                        byte[] bytes = line.toByteArray();
+                        int length = (bytes.length > 0 && bytes[bytes.length - 1] == CR)
+                                ? bytes.length - 1 : bytes.length;
+                        out.write(bytes, 0, length);
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Read an {@code int} from a line containing its decimal representation.
      *
      * @return the value of the {@code int} from the next line.
-     * @throws java.io.IOException for underlying {@code InputStream} errors or conversion error.
+     * @throws java.io.IOException for underlying {@code InputStream} errors.
+     * @throws MalformedLineException for conversion error.
      * @throws java.io.EOFException for the end of source stream.
      */
-    //public int readInt() throws IOException {
-    //    String intString = readLine();
-    //    try {
-    //        return Integer.parseInt(intString);
-    //    } catch (NumberFormatException e) {
-    //        throw new IOException("expected an int but was \"" + intString + "\"");
-    //    }
-    //}
+    public int readInt() throws IOException {
+        long value = readLong();
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new MalformedLineException("expected an int but was \"" + value + "\"");
+        }
+        return (int) value;
+    }
+
+    /**
+     * Read a {@code long} from a line containing its decimal representation.
+     *
+     * @return the value of the {@code long} from the next line.
+     * @throws java.io.IOException for underlying {@code InputStream} errors.
+     * @throws MalformedLineException for conversion error.
+     * @throws java.io.EOFException for the end of source stream.
+     */
+    public long readLong() throws IOException {
+        synchronized (in) {
+            if (buf == null) {
+                throw new IOException("LineReader is closed");
+            }
+            if (pos >= end) {
+                fillBuf();
+            }
+            // Parse directly from the buffer if the whole line is buffered.
+            for (int i = pos; i != end; ++i) {
+                if (buf[i] == LF) {
+                    int lineEnd = (i != pos && buf[i - 1] == CR) ? i - 1 : i;
+                    long value = parseLong(buf, pos, lineEnd);
+                    consume(i + 1);
+                    return value;
+                }
+            }
+        }
+        String longString = readLine();
+        try {
+            return Long.parseLong(longString);
+        } catch (NumberFormatException e) {
+            throw new MalformedLineException("expected a long but was \"" + longString + "\"");
+        }
+    }
+
+    private static long parseLong(byte[] bytes, int start, int end) throws IOException {
+        boolean negative = start < end && bytes[start] == '-';
+        int i = negative ? start + 1 : start;
+        if (i == end) {
+            throw new MalformedLineException("expected a long but was \""
+                    + decodeLatin1(bytes, start, end - start) + "\"");
+        }
+        // Accumulate negatively so that Long.MIN_VALUE can be represented.
+        long result = 0;
+        for (; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9 || result < (Long.MIN_VALUE + digit) / 10) {
+                throw new MalformedLineException("expected a long but was \""
+                        + decodeLatin1(bytes, start, end - start) + "\"");
+            }
+            result = result * 10 - digit;
+        }
+        if (!negative) {
+            if (result == Long.MIN_VALUE) {
+                throw new MalformedLineException("expected a long but was \""
+                        + decodeLatin1(bytes, start, end - start) + "\"");
+            }
+            result = -result;
+        }
+        return result;
+    }
+
+    private String decode(byte[] bytes, int offset, int length) {
+        return utf8 ? decodeUtf8(bytes, offset, length) : decodeLatin1(bytes, offset, length);
+    }
+
+    /**
+     * Decodes UTF-8 bytes, taking the ISO-8859-1 path when they consist only of ASCII.
+     */
+    static String decodeUtf8(byte[] bytes, int offset, int length) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            if (bytes[i] < 0) {
+                return Strings.construct(bytes, offset, length, Charsets.UTF_8);
+            }
+        }
+        return decodeLatin1(bytes, offset, length);
+    }
+
+    /**
+     * Decodes US-ASCII or ISO-8859-1 bytes. Every byte maps to the char with the same value,
+     * so no {@code Charset} lookup or decoder is needed.
+     */
+    @SuppressWarnings("deprecation")
+    private static String decodeLatin1(byte[] bytes, int offset, int length) {
+        return new String(bytes, 0, offset, length);
+    }
 
     /**
      * Check whether there was an unterminated line at end of input after the line reader reported
@@ -226,6 +441,16 @@ class StrictLineReader implements Closeable {
     //    return end == -1;
     //}
 
+    /**
+     * Marks the buffered data up to {@code newPos} as read.
+     */
+    private void consume(int newPos) {
+        if (checksum != null) {
+            checksum.update(buf, pos, newPos - pos);
+        }
+        pos = newPos;
+    }
+
     /**
      * Reads new input data into the buffer. Call only with pos == end or end == -1,
      * depending on the desired outcome if the function throws.
@@ -0,0 +1,197 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Checksum;
+
+/**
+ * {@link StrictLineReader} で読み込める行を UTF-8 で書き込む。
+ */
+// ASCII のみの文字列は1文字1バイトでそのままバッファに書き込み、
+// それ以外の文字だけをコードポイント単位で符号化する。
+// OutputStreamWriter + BufferedWriter の組み合わせと違い、CharsetEncoder や char[] を生成しない。
+class StrictLineWriter implements Closeable, Flushable {
+
+	private static final int DEFAULT_CAPACITY = 8192;
+
+	/* StrictLineReader と同様に、スレッドごとに1つのバッファを使い回す。 */
+	private static final ThreadLocal<byte[]> BUFFER_POOL = new ThreadLocal<byte[]>();
+
+	private final OutputStream out;
+	private final Checksum checksum;
+	private byte[] buf;
+	private int count;
+	private long written;
+
+	StrictLineWriter(final OutputStream out) {
+		this(out, null);
+	}
+
+	/**
+	 * @param checksum
+	 *            書き込んだバイト列で更新するチェックサム。null の場合は計算しない。
+	 */
+	StrictLineWriter(final OutputStream out, final Checksum checksum) {
+		if (out == null) {
+			throw new NullPointerException();
+		}
+		this.out = out;
+		this.checksum = checksum;
+		final byte[] pooled = BUFFER_POOL.get();
+		if (pooled != null) {
+			BUFFER_POOL.set(null);
+			buf = pooled;
+		} else {
+			buf = new byte[DEFAULT_CAPACITY];
+		}
+	}
+
+	/**
+	 * 文字列を1行として書き込む。
+	 * 
+	 * @throws IOException
+	 *             文字列が改行文字を含む場合
+	 */
+	void writeLine(final String line) throws IOException {
+		checkNotClosed();
+		final int length = line.length();
+		for (int i = 0; i < length; i++) {
+			final char c = line.charAt(i);
+			if (c < 0x80) {
+				if (c == '\n' || c == '\r') {
+					throw new IOException("line must not contain line breaks");
+				}
+				if (count == buf.length) {
+					flushBuffer();
+				}
+				buf[count++] = (byte) c;
+			} else {
+				i = writeNonAscii(line, i);
+			}
+		}
+		writeNewLine();
+	}
+
+	/**
+	 * 数値を10進数で1行として書き込む。
+	 */
+	void writeLine(final long value) throws IOException {
+		checkNotClosed();
+		if (buf.length - count < 21) {
+			flushBuffer();
+		}
+		if (value == Long.MIN_VALUE) {
+			// 符号を反転できないので通常の方法で書き込む
+			writeLine(Long.toString(value));
+			return;
+		}
+		long v = value;
+		if (v < 0) {
+			buf[count++] = '-';
+			v = -v;
+		}
+		int digits = 1;
+		for (long t = v / 10; t != 0; t /= 10) {
+			digits++;
+		}
+		for (int i = count + digits - 1; i >= count; i--) {
+			buf[i] = (byte) ('0' + v % 10);
+			v /= 10;
+		}
+		count += digits;
+		writeNewLine();
+	}
+
+	/**
+	 * これまでに書き込んだバイト列のチェックサム。
+	 */
+	long getChecksumValue() throws IOException {
+		checkNotClosed();
+		flushBuffer();
+		return checksum.getValue();
+	}
+
+	/**
+	 * これまでに書き込んだバイト数。
+	 */
+	long getWrittenBytes() {
+		return written + count;
+	}
+
+	public void flush() throws IOException {
+		checkNotClosed();
+		flushBuffer();
+		out.flush();
+	}
+
+	public void close() throws IOException {
+		if (buf == null) {
+			return;
+		}
+		try {
+			flushBuffer();
+		} finally {
+			BUFFER_POOL.set(buf);
+			buf = null;
+			out.close();
+		}
+	}
+
+	/**
+	 * index の位置から始まる ASCII 以外の1文字を符号化する。
+	 * 
+	 * @return 最後に処理した文字の位置
+	 */
+	private int writeNonAscii(final String line, int index) throws IOException {
+		if (buf.length - count < 4) {
+			flushBuffer();
+		}
+		final char c = line.charAt(index);
+		if (c < 0x800) {
+			buf[count++] = (byte) (0xc0 | (c >> 6));
+			buf[count++] = (byte) (0x80 | (c & 0x3f));
+		} else if (Character.isHighSurrogate(c) && index + 1 < line.length()
+				&& Character.isLowSurrogate(line.charAt(index + 1))) {
+			final int codePoint = Character.toCodePoint(c,
+					line.charAt(++index));
+			buf[count++] = (byte) (0xf0 | (codePoint >> 18));
+			buf[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+			buf[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+			buf[count++] = (byte) (0x80 | (codePoint & 0x3f));
+		} else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+			// 対になっていないサロゲートは String#getBytes と同様に '?' にする
+			buf[count++] = '?';
+		} else {
+			buf[count++] = (byte) (0xe0 | (c >> 12));
+			buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+			buf[count++] = (byte) (0x80 | (c & 0x3f));
+		}
+		return index;
+	}
+
+	private void writeNewLine() throws IOException {
+		if (count == buf.length) {
+			flushBuffer();
+		}
+		buf[count++] = '\n';
+	}
+
+	private void flushBuffer() throws IOException {
+		if (count > 0) {
+			if (checksum != null) {
+				checksum.update(buf, 0, count);
+			}
+			out.write(buf, 0, count);
+			written += count;
+			count = 0;
+		}
+	}
+
+	private void checkNotClosed() throws IOException {
+		if (buf == null) {
+			throw new IOException("StrictLineWriter is closed");
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package com.lisb.utils.http.disklrustorage;
+
+import com.lisb.utils.http.disklrustorage.compat.Charsets;
+import com.lisb.utils.http.disklrustorage.compat.Strings;
+
+/**
+ * 決まった文字列の集合を保持し、バイト列と一致する文字列を新しく生成せずに返す。
+ */
+// 生成後は変更しないのでスレッドセーフ。
+// オープンアドレス法のハッシュ表で、エントリ数の4倍以上のスロットを確保する。
+final class StringTable {
+
+	private final String[] strings;
+	private final byte[][] encoded;
+	private final int mask;
+
+	/**
+	 * @param strings
+	 *            ASCII 文字列のみ
+	 */
+	StringTable(final String... strings) {
+		final int capacity = Integer.highestOneBit(Math.max(strings.length, 1) * 4) * 2;
+		this.strings = new String[capacity];
+		this.encoded = new byte[capacity][];
+		this.mask = capacity - 1;
+		for (final String string : strings) {
+			final byte[] bytes = Strings.getBytes(string, Charsets.US_ASCII);
+			int slot = hash(bytes, 0, bytes.length) & mask;
+			while (this.strings[slot] != null) {
+				if (this.strings[slot].equals(string)) {
+					break;
+				}
+				slot = (slot + 1) & mask;
+			}
+			this.strings[slot] = string;
+			this.encoded[slot] = bytes;
+		}
+	}
+
+	/**
+	 * buf[offset, offset + length) と一致する文字列を返す。
+	 * 
+	 * @return 一致する文字列がない場合は null
+	 */
+	String lookup(final byte[] buf, final int offset, final int length) {
+		int slot = hash(buf, offset, length) & mask;
+		byte[] candidate;
+		while ((candidate = encoded[slot]) != null) {
+			if (equals(candidate, buf, offset, length)) {
+				return strings[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		return null;
+	}
+
+	private static boolean equals(final byte[] candidate, final byte[] buf,
+			final int offset, final int length) {
+		if (candidate.length != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (candidate[i] != buf[offset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int hash(final byte[] buf, final int offset,
+			final int length) {
+		int h = length;
+		for (int i = offset, end = offset + length; i < end; i++) {
+			h = 31 * h + buf[i];
+		}
+		return h ^ (h >>> 16);
+	}
+}
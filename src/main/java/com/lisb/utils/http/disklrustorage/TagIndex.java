@@ -0,0 +1,198 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ch.boye.httpclientandroidlib.Header;
+import ch.boye.httpclientandroidlib.client.cache.HttpCacheEntry;
+
+/**
+ * Surrogate-Key や Cache-Tag ヘッダのタグから、そのタグを持つエントリのキーを引く転置インデックス。
+ * 変更は {@link IndexJournal} に記録し、次回の起動時に読み込む。
+ */
+final class TagIndex implements Closeable {
+
+	/* 不要になった行がこの数と登録数の両方を超えたら、ファイルを詰め直す */
+	private static final int COMPACT_THRESHOLD = 1000;
+
+	private final IndexJournal journal;
+	private final Map<String, Set<String>> keysByTag = new HashMap<String, Set<String>>();
+	private final Map<String, String[]> tagsByKey = new HashMap<String, String[]>();
+	private int redundantLines;
+
+	private TagIndex(final File file, final JournalFlusher flusher) {
+		this.journal = new IndexJournal(file, flusher);
+	}
+
+	static TagIndex open(final File file, final IndexJournal.KeyFilter filter,
+			final JournalFlusher flusher) throws IOException {
+		final TagIndex index = new TagIndex(file, flusher);
+		index.journal.replay(new IndexJournal.Replayer() {
+			public void put(final String key, final String tags) {
+				index.putInternal(key, tags.split(" "));
+			}
+
+			public void remove(final String key) {
+				index.removeInternal(key);
+				index.redundantLines++;
+			}
+		});
+		if (index.needsCompaction()) {
+			index.compact(filter);
+		}
+		return index;
+	}
+
+	/**
+	 * 指定されたヘッダの値を空白とカンマで区切ってタグを取り出す。
+	 */
+	static Set<String> extractTags(final HttpCacheEntry entry,
+			final String[] headerNames) {
+		final Set<String> tags = new LinkedHashSet<String>();
+		for (final String headerName : headerNames) {
+			for (final Header header : entry.getHeaders(headerName)) {
+				for (final String tag : header.getValue().split("[\\s,]+")) {
+					if (tag.length() > 0) {
+						tags.add(tag);
+					}
+				}
+			}
+		}
+		return tags;
+	}
+
+	/**
+	 * 不要になった行が多く、ファイルを詰め直すべきかどうか。
+	 */
+	synchronized boolean needsCompaction() {
+		return redundantLines > COMPACT_THRESHOLD
+				&& redundantLines > tagsByKey.size();
+	}
+
+	/**
+	 * filter が受け入れるキーだけを残してファイルを詰め直す。
+	 */
+	synchronized void compact(final IndexJournal.KeyFilter filter)
+			throws IOException {
+		for (final String key : new ArrayList<String>(tagsByKey.keySet())) {
+			if (!filter.accept(key)) {
+				removeInternal(key);
+			}
+		}
+
+		final IndexJournal.Rewriter rewriter = journal.rewrite();
+		try {
+			for (final Map.Entry<String, String[]> entry : tagsByKey
+					.entrySet()) {
+				rewriter.put(entry.getKey(), join(entry.getValue()));
+			}
+			rewriter.commit();
+		} catch (IOException e) {
+			rewriter.abort();
+			throw e;
+		}
+		redundantLines = 0;
+	}
+
+	synchronized boolean contains(final String key) {
+		return tagsByKey.containsKey(key);
+	}
+
+	/**
+	 * キーのタグを登録する。タグが空の場合はキーを取り除く。
+	 */
+	synchronized void put(final String key, final Set<String> tags)
+			throws IOException {
+		if (tags.isEmpty()) {
+			remove(key);
+			return;
+		}
+		final String[] tagArray = tags.toArray(new String[tags.size()]);
+		final String[] existing = tagsByKey.get(key);
+		if (existing != null && Arrays.equals(existing, tagArray)) {
+			return;
+		}
+		putInternal(key, tagArray);
+		journal.put(key, join(tagArray));
+	}
+
+	synchronized void remove(final String key) throws IOException {
+		if (!removeInternal(key)) {
+			return;
+		}
+		redundantLines++;
+		journal.remove(key);
+	}
+
+	/**
+	 * タグを持つエントリのキーを返す。
+	 */
+	synchronized List<String> getKeys(final String tag) {
+		final Set<String> keys = keysByTag.get(tag);
+		return keys != null ? new ArrayList<String>(keys)
+				: new ArrayList<String>(0);
+	}
+
+	/**
+	 * まとめて書き出すために貯めている変更をファイルに書き出す。
+	 */
+	synchronized void flush() throws IOException {
+		journal.flush();
+	}
+
+	public synchronized void close() throws IOException {
+		journal.close();
+	}
+
+	private void putInternal(final String key, final String[] tags) {
+		if (removeInternal(key)) {
+			redundantLines++;
+		}
+		tagsByKey.put(key, tags);
+		for (final String tag : tags) {
+			Set<String> keys = keysByTag.get(tag);
+			if (keys == null) {
+				keys = new HashSet<String>();
+				keysByTag.put(tag, keys);
+			}
+			keys.add(key);
+		}
+	}
+
+	private boolean removeInternal(final String key) {
+		final String[] tags = tagsByKey.remove(key);
+		if (tags == null) {
+			return false;
+		}
+		for (final String tag : tags) {
+			final Set<String> keys = keysByTag.get(tag);
+			if (keys != null) {
+				keys.remove(key);
+				if (keys.isEmpty()) {
+					keysByTag.remove(tag);
+				}
+			}
+		}
+		return true;
+	}
+
+	private static String join(final String[] tags) {
+		final StringBuilder builder = new StringBuilder();
+		for (final String tag : tags) {
+			if (builder.length() > 0) {
+				builder.append(' ');
+			}
+			builder.append(tag);
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,29 @@
+package com.lisb.utils.http.disklrustorage;
+
+/**
+ * 経過時間の計測と待機。テストで時計を差し替えられるようにする。
+ */
+abstract class Ticker {
+
+	static final Ticker SYSTEM = new Ticker() {
+		@Override
+		long read() {
+			return System.nanoTime();
+		}
+
+		@Override
+		void sleep(final long nanos) throws InterruptedException {
+			Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+		}
+	};
+
+	/**
+	 * @return ナノ秒。差だけに意味がある ({@link System#nanoTime()} と同じ)
+	 */
+	abstract long read();
+
+	/**
+	 * nanos ナノ秒待つ。
+	 */
+	abstract void sleep(long nanos) throws InterruptedException;
+}
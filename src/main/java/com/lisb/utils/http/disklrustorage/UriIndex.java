@@ -0,0 +1,182 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * 元の URI・ホストからハッシュ化されたキーを引くためのインデックス。
+ * 変更は {@link IndexJournal} に記録し、次回の起動時に読み込む。
+ */
+final class UriIndex implements Closeable {
+
+	/* 不要になった行がこの数と登録数の両方を超えたら、ファイルを詰め直す */
+	private static final int COMPACT_THRESHOLD = 1000;
+
+	private final IndexJournal journal;
+	/* "<Variant を除いた URI>\0<URI>" → キー。接頭辞での検索に使う。 */
+	private final TreeMap<String, String> keysByUri = new TreeMap<String, String>();
+	/* キー → "<Variant を除いた URI>\0<URI>" */
+	private final Map<String, String> urisByKey = new HashMap<String, String>();
+	private final Map<String, Set<String>> keysByHost = new HashMap<String, Set<String>>();
+	private int redundantLines;
+
+	private UriIndex(final File file, final JournalFlusher flusher) {
+		this.journal = new IndexJournal(file, flusher);
+	}
+
+	/**
+	 * ファイルからインデックスを読み込む。
+	 * 
+	 * @param filter
+	 *            詰め直すときに残すキー
+	 * @param flusher
+	 *            追記をまとめて書き出す場合に指定する。null の場合は追記ごとに書き出す。
+	 */
+	static UriIndex open(final File file, final IndexJournal.KeyFilter filter,
+			final JournalFlusher flusher) throws IOException {
+		final UriIndex index = new UriIndex(file, flusher);
+		index.journal.replay(new IndexJournal.Replayer() {
+			public void put(final String key, final String uri) {
+				index.putInternal(key, uri);
+			}
+
+			public void remove(final String key) {
+				index.removeInternal(key);
+				index.redundantLines++;
+			}
+		});
+		if (index.needsCompaction()) {
+			index.compact(filter);
+		}
+		return index;
+	}
+
+	/**
+	 * 不要になった行が多く、ファイルを詰め直すべきかどうか。
+	 */
+	synchronized boolean needsCompaction() {
+		return redundantLines > COMPACT_THRESHOLD
+				&& redundantLines > urisByKey.size();
+	}
+
+	/**
+	 * filter が受け入れるキーだけを残してファイルを詰め直す。
+	 */
+	synchronized void compact(final IndexJournal.KeyFilter filter) throws IOException {
+		for (final String key : new ArrayList<String>(urisByKey.keySet())) {
+			if (!filter.accept(key)) {
+				removeInternal(key);
+			}
+		}
+
+		final IndexJournal.Rewriter rewriter = journal.rewrite();
+		try {
+			for (final Map.Entry<String, String> entry : urisByKey.entrySet()) {
+				rewriter.put(entry.getKey(), getUri(entry.getValue()));
+			}
+			rewriter.commit();
+		} catch (IOException e) {
+			rewriter.abort();
+			throw e;
+		}
+		redundantLines = 0;
+	}
+
+	synchronized boolean contains(final String key) {
+		return urisByKey.containsKey(key);
+	}
+
+	synchronized void put(final String key, final String uri)
+			throws IOException {
+		final String sortKey = urisByKey.get(key);
+		if (sortKey != null && getUri(sortKey).equals(uri)) {
+			return;
+		}
+		putInternal(key, uri);
+		journal.put(key, uri);
+	}
+
+	synchronized void remove(final String key) throws IOException {
+		if (!removeInternal(key)) {
+			return;
+		}
+		redundantLines++;
+		journal.remove(key);
+	}
+	/**
+	 * Variant を除いた URI が uriPrefix で始まるエントリのキーを返す。
+	 */
+	synchronized List<String> getKeysByPrefix(final String uriPrefix) {
+		return new ArrayList<String>(keysByUri.subMap(uriPrefix,
+				uriPrefix + Character.MAX_VALUE).values());
+	}
+
+	/**
+	 * ホストに属するエントリのキーを返す。
+	 * 
+	 * @param host
+	 *            ポート番号を含まないホスト名。大文字と小文字は区別しない。
+	 */
+	synchronized List<String> getKeysByHost(final String host) {
+		final Set<String> keys = keysByHost.get(CacheKeys.getHost("http://"
+				+ host));
+		return keys != null ? new ArrayList<String>(keys)
+				: new ArrayList<String>(0);
+	}
+
+	/**
+	 * まとめて書き出すために貯めている変更をファイルに書き出す。
+	 */
+	synchronized void flush() throws IOException {
+		journal.flush();
+	}
+
+	public synchronized void close() throws IOException {
+		journal.close();
+	}
+
+	private void putInternal(final String key, final String uri) {
+		if (removeInternal(key)) {
+			redundantLines++;
+		}
+		final String sortKey = CacheKeys.stripVariant(uri) + '\0' + uri;
+		keysByUri.put(sortKey, key);
+		urisByKey.put(key, sortKey);
+		final String host = CacheKeys.getHost(uri);
+		Set<String> keys = keysByHost.get(host);
+		if (keys == null) {
+			keys = new HashSet<String>();
+			keysByHost.put(host, keys);
+		}
+		keys.add(key);
+	}
+
+	private boolean removeInternal(final String key) {
+		final String sortKey = urisByKey.remove(key);
+		if (sortKey == null) {
+			return false;
+		}
+		keysByUri.remove(sortKey);
+		final String host = CacheKeys.getHost(getUri(sortKey));
+		final Set<String> keys = keysByHost.get(host);
+		if (keys != null) {
+			keys.remove(key);
+			if (keys.isEmpty()) {
+				keysByHost.remove(host);
+			}
+		}
+		return true;
+	}
+
+	private static String getUri(final String sortKey) {
+		return sortKey.substring(sortKey.indexOf('\0') + 1);
+	}
+}
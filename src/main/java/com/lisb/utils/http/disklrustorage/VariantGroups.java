@@ -0,0 +1,82 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 親エントリのハッシュ化されたキーと、それを接頭辞に持つ Variant のキーの対応を保持する。
+ */
+// Variant のハッシュ化されたキーは "<親のキー>-<Variant のハッシュ>" の形式なので、
+// 親のキーは Variant のキーから求められる。
+final class VariantGroups {
+
+	private final Map<String, Set<String>> groups = new HashMap<String, Set<String>>();
+
+	/**
+	 * Variant のキーの場合は親のキーを、そうでなければ null を返す。
+	 */
+	static String getParentKey(final String hashedKey) {
+		final int separator = hashedKey.indexOf('-');
+		return separator < 0 ? null : hashedKey.substring(0, separator);
+	}
+
+	synchronized void add(final String hashedKey) {
+		final String parentKey = getParentKey(hashedKey);
+		if (parentKey == null) {
+			return;
+		}
+		Set<String> variants = groups.get(parentKey);
+		if (variants == null) {
+			variants = new HashSet<String>();
+			groups.put(parentKey, variants);
+		}
+		variants.add(hashedKey);
+	}
+
+	synchronized void remove(final String hashedKey) {
+		final String parentKey = getParentKey(hashedKey);
+		if (parentKey == null) {
+			return;
+		}
+		final Set<String> variants = groups.get(parentKey);
+		if (variants != null) {
+			variants.remove(hashedKey);
+			if (variants.isEmpty()) {
+				groups.remove(parentKey);
+			}
+		}
+	}
+
+	/**
+	 * 親のキーに属する Variant のキーをすべて取り除いて返す。
+	 * 
+	 * @return Variant が登録されていない場合は null。以前のセッションの Variant は
+	 *         開いたときに登録されるが、親エントリの variantMap にだけ残るものは含まない。
+	 */
+	synchronized Set<String> removeGroup(final String parentKey) {
+		return groups.remove(parentKey);
+	}
+
+	/**
+	 * stored が受け付けない Variant のキーを取り除く。
+	 */
+	void prune(final IndexJournal.KeyFilter stored) {
+		final List<String> keys = new ArrayList<String>();
+		synchronized (this) {
+			for (final Set<String> variants : groups.values()) {
+				keys.addAll(variants);
+			}
+		}
+		for (final String key : keys) {
+			synchronized (this) {
+				if (!stored.accept(key)) {
+					remove(key);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 同じキーへの同時の書き込みをまとめる。
+ */
+// 書き込み中に来た値は、次の1回の書き込み (Write) にまとめて保留し、最新の1つだけを残す。
+// 書き込みが終わると、保留された値を渡した呼び出し元のうち1つが次の書き込みを行う。
+// どの呼び出し元も書き込むのは1回だけなので、同じキーへの書き込みが続いても戻らなくなることはない。
+// 途中の値は上書きされるので書き込まれないが、最後に書き込まれる値は常に最新のものになる。
+final class WriteCoalescer<V> {
+
+	interface Writer<V> {
+		void write(V value) throws IOException;
+	}
+
+	private final Map<String, Slot<V>> slots = new HashMap<String, Slot<V>>();
+
+	/**
+	 * @throws IOException
+	 *             value か、value を上書きした値の書き込みに失敗した場合
+	 */
+	void write(final String key, final V value, final Writer<V> writer)
+			throws IOException {
+		final Slot<V> slot;
+		final Write<V> write;
+		synchronized (slots) {
+			Slot<V> existing = slots.get(key);
+			if (existing == null) {
+				existing = new Slot<V>();
+				slots.put(key, existing);
+			}
+			slot = existing;
+			if (slot.next == null) {
+				slot.next = new Write<V>();
+			}
+			write = slot.next;
+			write.value = value;
+			write.waiters++;
+			try {
+				while (!write.done && slot.writing) {
+					slots.wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				if (--write.waiters == 0 && slot.next == write) {
+					// 他に待っている呼び出し元がいないので、保留した値は書き込まない
+					slot.next = null;
+					releaseIfIdle(key, slot);
+				}
+				throw new InterruptedIOException();
+			}
+			if (write.done) {
+				write.throwIfFailed();
+				return;
+			}
+			// 書き込み中の呼び出し元がいないので、保留された最新の値を書き込む
+			slot.writing = true;
+			slot.next = null;
+		}
+
+		try {
+			writer.write(write.value);
+		} catch (IOException e) {
+			write.failure = e;
+			throw e;
+		} catch (RuntimeException e) {
+			write.failure = new IOException(e.toString());
+			throw e;
+		} finally {
+			synchronized (slots) {
+				write.done = true;
+				slot.writing = false;
+				releaseIfIdle(key, slot);
+				slots.notifyAll();
+			}
+		}
+	}
+
+	/* slots のロックを保持して呼ぶ */
+	private void releaseIfIdle(final String key, final Slot<V> slot) {
+		if (!slot.writing && slot.next == null) {
+			slots.remove(key);
+		}
+	}
+
+	private static final class Slot<V> {
+		boolean writing;
+		/* 次に書き込む値。保留された値がない場合は null */
+		Write<V> next;
+	}
+
+	/**
+	 * 1回の書き込みと、それにまとめられた呼び出し元の待ち合わせ。
+	 */
+	private static final class Write<V> {
+		V value;
+		int waiters;
+		boolean done;
+		/* done の前に書き込み、slots のロックを通して読む */
+		IOException failure;
+
+		void throwIfFailed() throws IOException {
+			if (failure != null) {
+				final IOException e = new IOException("coalesced write failed");
+				e.initCause(failure);
+				throw e;
+			}
+		}
+	}
+}
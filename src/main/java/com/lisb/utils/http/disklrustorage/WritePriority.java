@@ -0,0 +1,22 @@
+package com.lisb.utils.http.disklrustorage;
+
+/**
+ * エントリの書き込みの優先度。優先度ごとに別々の書き込みの速度の上限が適用される。
+ * 
+ * @see DiskLruHttpCacheStorage#putEntry(String,
+ *      ch.boye.httpclientandroidlib.client.cache.HttpCacheEntry, WritePriority)
+ * @see CacheStorageConfig#setForegroundWriteRate(long)
+ * @see CacheStorageConfig#setPrefetchWriteRate(long)
+ */
+public enum WritePriority {
+
+	/**
+	 * 利用者が待っているレスポンスの書き込み。CachingHttpClient からの書き込みはこの優先度になる。
+	 */
+	FOREGROUND,
+
+	/**
+	 * 先読みなど、すぐには参照されないレスポンスの書き込み。
+	 */
+	PREFETCH
+}
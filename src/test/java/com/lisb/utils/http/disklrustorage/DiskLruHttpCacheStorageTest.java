@@ -1,7 +1,33 @@
 package com.lisb.utils.http.disklrustorage;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 
 import org.junit.AfterClass;
 import org.junit.Assert;
@@ -22,6 +48,7 @@ import ch.boye.httpclientandroidlib.impl.client.DefaultHttpClient;
 import ch.boye.httpclientandroidlib.impl.client.cache.CacheConfig;
 import ch.boye.httpclientandroidlib.impl.client.cache.CachingHttpClient;
 import ch.boye.httpclientandroidlib.impl.client.cache.HeapResource;
+import ch.boye.httpclientandroidlib.impl.cookie.DateUtils;
 import ch.boye.httpclientandroidlib.message.BasicHeader;
 import ch.boye.httpclientandroidlib.message.BasicStatusLine;
 import ch.boye.httpclientandroidlib.protocol.BasicHttpContext;
@@ -65,6 +92,1554 @@ public class DiskLruHttpCacheStorageTest {
 		assertEquals(inputEntry, outputEntry);
 	}
 
+	@Test
+	public void testRoundTripArbitraryMetadata() throws Exception {
+		// 固定のシードで生成した任意のヘッダ・Variant を書き込み、同じ値が読めることを確認する。
+		final Random random = new Random(20131112L);
+		for (int i = 0; i < 200; i++) {
+			final Header[] headers = new Header[random.nextInt(20)];
+			for (int j = 0; j < headers.length; j++) {
+				headers[j] = new BasicHeader(randomString(random, 1, 30),
+						randomString(random, 0, i == 0 ? 20000 : 200));
+			}
+			final Map<String, String> variantMap = new HashMap<String, String>();
+			for (int j = random.nextInt(5); j > 0; j--) {
+				variantMap.put(randomString(random, 0, 100),
+						randomString(random, 0, 100));
+			}
+			final StatusLine statusLine = new BasicStatusLine(
+					new ProtocolVersion(randomString(random, 1, 10),
+							random.nextInt(10), random.nextInt(10)),
+					100 + random.nextInt(500), randomString(random, 0, 50));
+			final HttpCacheEntry inputEntry = new HttpCacheEntry(new Date(
+					random.nextLong()), new Date(random.nextLong()),
+					statusLine, headers, new HeapResource(new byte[0]),
+					variantMap);
+
+			final String key = randomString(random, 1, 100);
+			storage.putEntry(key, inputEntry);
+			assertEquals(inputEntry, storage.getEntry(key));
+			storage.removeEntry(key);
+		}
+	}
+
+	/**
+	 * ASCII、Latin-1、CJK、サロゲートペアを含む、改行文字以外の任意の文字列を生成する。
+	 */
+	private static String randomString(final Random random, final int minLength,
+			final int maxLength) {
+		final int length = minLength + random.nextInt(maxLength - minLength + 1);
+		final StringBuilder builder = new StringBuilder(length);
+		while (builder.length() < length) {
+			final int codePoint;
+			switch (random.nextInt(5)) {
+			case 0:
+			case 1:
+				codePoint = 0x20 + random.nextInt(0x5f);
+				break;
+			case 2:
+				codePoint = 0xa0 + random.nextInt(0x60);
+				break;
+			case 3:
+				codePoint = 0x3040 + random.nextInt(0x6000);
+				break;
+			default:
+				codePoint = 0x10000 + random.nextInt(0x10000);
+				break;
+			}
+			builder.appendCodePoint(codePoint);
+		}
+		return builder.toString();
+	}
+
+	@Test
+	public void testSharedHeaders() throws Exception {
+		final long now = System.currentTimeMillis();
+		final Header[] headers = new Header[] {
+				new BasicHeader("Content-Type", "image/png"),
+				new BasicHeader("Vary", "Accept-Encoding"),
+				new BasicHeader("X-Request-Id", "0123456789") };
+		storage.putEntry("shared0", createEntry(now, headers));
+		storage.putEntry("shared1", createEntry(now, headers));
+
+		final HttpCacheEntry entry0 = storage.getEntry("shared0");
+		final HttpCacheEntry entry1 = storage.getEntry("shared1");
+		assertEquals(headers, entry0.getAllHeaders());
+		assertEquals(headers, entry1.getAllHeaders());
+		Assert.assertSame(entry0.getAllHeaders()[0].getName(),
+				entry1.getAllHeaders()[0].getName());
+		Assert.assertSame(entry0.getAllHeaders()[0].getValue(),
+				entry1.getAllHeaders()[0].getValue());
+		Assert.assertSame(entry0.getFirstHeader("Vary"),
+				entry1.getFirstHeader("Vary"));
+		Assert.assertNotSame(entry0.getAllHeaders()[2].getValue(),
+				entry1.getAllHeaders()[2].getValue());
+	}
+
+	@Test
+	public void testSweepExpiredEntries() throws Exception {
+		final CacheStorageConfig config = new CacheStorageConfig();
+		config.setExpiredEntryGracePeriod(0);
+		final DiskLruHttpCacheStorage sweepStorage = new DiskLruHttpCacheStorage(
+				new File("cache-sweep"), 1000 * 1000, config);
+		try {
+			final long now = System.currentTimeMillis();
+			final String date = DateUtils.formatDate(new Date(now - 20000));
+			sweepStorage.putEntry("expired", createEntry(now, new Header[] {
+					new BasicHeader("Date", date),
+					new BasicHeader("Cache-Control", "max-age=10") }));
+			sweepStorage.putEntry("revalidatable", createEntry(now,
+					new Header[] { new BasicHeader("Date", date),
+							new BasicHeader("Cache-Control", "max-age=10"),
+							new BasicHeader("ETag", "\"abc\"") }));
+			sweepStorage.putEntry("fresh", createEntry(now, new Header[] {
+					new BasicHeader("Date", date),
+					new BasicHeader("Cache-Control", "max-age=3600") }));
+			sweepStorage.putEntry("heuristic", createEntry(now,
+					new Header[] { new BasicHeader("Date", date) }));
+			// ミリ秒に変換すると long の範囲を超える値
+			sweepStorage.putEntry("huge-max-age", createEntry(now,
+					new Header[] {
+							new BasicHeader("Date", date),
+							new BasicHeader("Cache-Control", "max-age="
+									+ Long.MAX_VALUE) }));
+			final HttpCacheEntry hugeStale = createEntry(now, new Header[] {
+					new BasicHeader("Date", date),
+					new BasicHeader("Cache-Control",
+							"max-age=10, stale-if-error=" + Long.MAX_VALUE / 1000) });
+			sweepStorage.putEntry("huge-stale-if-error", hugeStale);
+
+			Assert.assertEquals(1, sweepStorage.sweepExpiredEntries());
+			Assert.assertNull(sweepStorage.getEntry("expired"));
+			Assert.assertNotNull(sweepStorage.getEntry("revalidatable"));
+			Assert.assertNotNull(sweepStorage.getEntry("fresh"));
+			Assert.assertNotNull(sweepStorage.getEntry("heuristic"));
+			Assert.assertNotNull(sweepStorage.getEntry("huge-max-age"));
+			Assert.assertNotNull(sweepStorage.getEntry("huge-stale-if-error"));
+			Assert.assertTrue(sweepStorage.isUsableIfError(hugeStale));
+			Assert.assertEquals(0, sweepStorage.sweepExpiredEntries());
+		} finally {
+			sweepStorage.delete();
+		}
+	}
+
+	@Test
+	public void testSweepEntriesOfPreviousSession() throws Exception {
+		final File dir = new File("cache-sweep-reopen");
+		final CacheStorageConfig config = new CacheStorageConfig();
+		config.setExpiredEntryGracePeriod(0);
+		DiskLruHttpCacheStorage sweepStorage = new DiskLruHttpCacheStorage(
+				dir, 1000 * 1000, config);
+		try {
+			final long now = System.currentTimeMillis();
+			final String date = DateUtils.formatDate(new Date(now - 20000));
+			sweepStorage.putEntry("expired", createEntry(now, new Header[] {
+					new BasicHeader("Date", date),
+					new BasicHeader("Cache-Control", "max-age=10") }));
+			sweepStorage.putEntry("fresh", createEntry(now, new Header[] {
+					new BasicHeader("Date", date),
+					new BasicHeader("Cache-Control", "max-age=3600") }));
+			sweepStorage.close();
+
+			// 読み込まれていないエントリも、開いたときにメタデータから期限が索引される
+			sweepStorage = new DiskLruHttpCacheStorage(dir, 1000 * 1000, config);
+			Assert.assertEquals(1, sweepStorage.sweepExpiredEntries());
+			Assert.assertNull(sweepStorage.getEntry("expired"));
+			Assert.assertNotNull(sweepStorage.getEntry("fresh"));
+		} finally {
+			sweepStorage.delete();
+		}
+	}
+
+	@Test
+	public void testHostQuota() throws Exception {
+		final CacheStorageConfig config = new CacheStorageConfig();
+		config.setMaxHostEntryCount(2);
+		config.setMaxEntryCount(4);
+		final DiskLruHttpCacheStorage quotaStorage = new DiskLruHttpCacheStorage(
+				new File("cache-quota"), 1000 * 1000, config);
+		try {
+			final long now = System.currentTimeMillis();
+			final Header[] headers = new Header[0];
+			quotaStorage.putEntry("http://a.example.com:80/1",
+					createEntry(now, headers));
+			quotaStorage.putEntry("http://a.example.com:80/2",
+					createEntry(now, headers));
+			quotaStorage.putEntry("http://b.example.com:80/1",
+					createEntry(now, headers));
+			Assert.assertNotNull(quotaStorage
+					.getEntry("http://a.example.com:80/1"));
+			quotaStorage.putEntry("{Accept-Encoding=gzip}http://a.example.com:80/3",
+					createEntry(now, headers));
+
+			// ホスト内で最も参照されていないエントリだけが削除される
+			Assert.assertNotNull(quotaStorage
+					.getEntry("http://a.example.com:80/1"));
+			Assert.assertNull(quotaStorage
+					.getEntry("http://a.example.com:80/2"));
+			Assert.assertNotNull(quotaStorage
+					.getEntry("{Accept-Encoding=gzip}http://a.example.com:80/3"));
+			Assert.assertNotNull(quotaStorage
+					.getEntry("http://b.example.com:80/1"));
+
+			quotaStorage.putEntry("http://c.example.com:80/1",
+					createEntry(now, headers));
+			quotaStorage.putEntry("http://d.example.com:80/1",
+					createEntry(now, headers));
+			// 全体の上限を超えたので全体で最も参照されていないエントリが削除される
+			Assert.assertNull(quotaStorage
+					.getEntry("http://a.example.com:80/1"));
+			Assert.assertNotNull(quotaStorage
+					.getEntry("http://d.example.com:80/1"));
+		} finally {
+			quotaStorage.delete();
+		}
+	}
+
+	@Test
+	public void testRebuildQuotasOnOpen() throws Exception {
+		final File dir = new File("cache-quota-rebuild");
+		final long now = System.currentTimeMillis();
+		DiskLruHttpCacheStorage quotaStorage = new DiskLruHttpCacheStorage(
+				dir, 1000 * 1000);
+		try {
+			for (int i = 0; i < 3; i++) {
+				quotaStorage.putEntry("http://a.example.com:80/" + i,
+						createEntry(now, new Header[0]));
+			}
+			quotaStorage.close();
+
+			// 以前のセッションのエントリの使用量は、開いた後にバックグラウンドで集計される
+			final CacheStorageConfig config = new CacheStorageConfig();
+			config.setMaxHostEntryCount(2);
+			quotaStorage = new DiskLruHttpCacheStorage(dir, 1000 * 1000, config);
+			quotaStorage.awaitIndexRebuild();
+			int remaining = 0;
+			for (int i = 0; i < 3; i++) {
+				final HttpCacheEntry entry = quotaStorage
+						.getEntry("http://a.example.com:80/" + i);
+				if (entry != null) {
+					entry.getResource().dispose();
+					remaining++;
+				}
+			}
+			Assert.assertEquals(2, remaining);
+		} finally {
+			quotaStorage.delete();
+		}
+	}
+
+	@Test
+	public void testRemoveVariants() throws Exception {
+		final File dir = new File("cache-variants");
+		final String uri = "http://example.com:80/vary";
+		final String gzip = "{Accept-Encoding=gzip}" + uri;
+		final String identity = "{Accept-Encoding=identity}" + uri;
+		final long now = System.currentTimeMillis();
+		final Map<String, String> variantMap = new HashMap<String, String>();
+		variantMap.put("{Accept-Encoding=gzip}", gzip);
+		variantMap.put("{Accept-Encoding=identity}", identity);
+		final HttpCacheEntry parent = new HttpCacheEntry(new Date(now),
+				new Date(now), new BasicStatusLine(new ProtocolVersion("HTTP",
+						1, 1), 200, "OK"), new Header[0], new HeapResource(
+						new byte[0]), variantMap);
+
+		DiskLruHttpCacheStorage variantStorage = new DiskLruHttpCacheStorage(
+				dir, 1000 * 1000);
+		try {
+			variantStorage.putEntry(uri, parent);
+			variantStorage.putEntry(gzip, createEntry(now, new Header[0]));
+			variantStorage.putEntry(identity, createEntry(now, new Header[0]));
+
+			// Variant だけを削除した場合は親と他の Variant は残る
+			variantStorage.removeEntry(identity);
+			Assert.assertNotNull(variantStorage.getEntry(uri));
+			Assert.assertNotNull(variantStorage.getEntry(gzip));
+			Assert.assertNull(variantStorage.getEntry(identity));
+
+			variantStorage.removeEntry(uri);
+			Assert.assertNull(variantStorage.getEntry(uri));
+			Assert.assertNull(variantStorage.getEntry(gzip));
+
+			// 再起動後は親エントリの variantMap から Variant を求めて削除する
+			variantStorage.putEntry(uri, parent);
+			variantStorage.putEntry(gzip, createEntry(now, new Header[0]));
+			variantStorage.putEntry(identity, createEntry(now, new Header[0]));
+			variantStorage.close();
+			variantStorage = new DiskLruHttpCacheStorage(dir, 1000 * 1000);
+			variantStorage.removeEntry(uri);
+			Assert.assertNull(variantStorage.getEntry(gzip));
+			Assert.assertNull(variantStorage.getEntry(identity));
+
+			// このセッションで書き込んだ Variant があっても、以前のセッションの Variant も削除する
+			variantStorage.putEntry(uri, parent);
+			variantStorage.putEntry(gzip, createEntry(now, new Header[0]));
+			variantStorage.close();
+			variantStorage = new DiskLruHttpCacheStorage(dir, 1000 * 1000);
+			variantStorage.putEntry(identity, createEntry(now, new Header[0]));
+			variantStorage.removeEntry(uri);
+			Assert.assertNull(variantStorage.getEntry(gzip));
+			Assert.assertNull(variantStorage.getEntry(identity));
+		} finally {
+			variantStorage.delete();
+		}
+	}
+
+	@Test
+	public void testRemoveByPrefixAndHost() throws Exception {
+		final File dir = new File("cache-uri-index");
+		final CacheStorageConfig config = new CacheStorageConfig();
+		config.setUriIndexEnabled(true);
+		final long now = System.currentTimeMillis();
+		DiskLruHttpCacheStorage indexStorage = new DiskLruHttpCacheStorage(
+				dir, 1000 * 1000, config);
+		try {
+			indexStorage.putEntry("http://a.example.com:80/api/v2/users/1",
+					createEntry(now, new Header[0]));
+			indexStorage.putEntry(
+					"{Accept-Encoding=gzip}http://a.example.com:80/api/v2/users/2",
+					createEntry(now, new Header[0]));
+			indexStorage.putEntry("http://a.example.com:80/api/v2/items/1",
+					createEntry(now, new Header[0]));
+			indexStorage.putEntry("http://b.example.com:80/api/v2/users/1",
+					createEntry(now, new Header[0]));
+			indexStorage.putEntry("http://b.example.com:80/top",
+					createEntry(now, new Header[0]));
+
+			// 再起動後もインデックスが使える
+			indexStorage.close();
+			indexStorage = new DiskLruHttpCacheStorage(dir, 1000 * 1000, config);
+
+			Assert.assertEquals(2, indexStorage
+					.removeByPrefix("http://a.example.com:80/api/v2/users/"));
+			Assert.assertNull(indexStorage
+					.getEntry("http://a.example.com:80/api/v2/users/1"));
+			Assert.assertNull(indexStorage
+					.getEntry("{Accept-Encoding=gzip}http://a.example.com:80/api/v2/users/2"));
+			Assert.assertNotNull(indexStorage
+					.getEntry("http://a.example.com:80/api/v2/items/1"));
+
+			Assert.assertEquals(2, indexStorage.removeByHost("B.example.com"));
+			Assert.assertNull(indexStorage
+					.getEntry("http://b.example.com:80/top"));
+			Assert.assertNotNull(indexStorage
+					.getEntry("http://a.example.com:80/api/v2/items/1"));
+			Assert.assertEquals(0, indexStorage.removeByHost("b.example.com"));
+		} finally {
+			indexStorage.delete();
+		}
+	}
+
+	@Test
+	public void testAppendAfterTornIndexLine() throws Exception {
+		final File dir = new File("cache-torn-index");
+		final CacheStorageConfig config = new CacheStorageConfig();
+		config.setUriIndexEnabled(true);
+		final long now = System.currentTimeMillis();
+		DiskLruHttpCacheStorage indexStorage = new DiskLruHttpCacheStorage(
+				dir, 1000 * 1000, config);
+		try {
+			indexStorage.putEntry("http://a.example.com:80/1",
+					createEntry(now, new Header[0]));
+			indexStorage.close();
+
+			// 追記の途中で異常終了した状態にする
+			final OutputStream out = new FileOutputStream(new File(dir,
+					"uri-index"), true);
+			try {
+				out.write("+ 0123456789abcdef http://a.exa".getBytes("UTF-8"));
+			} finally {
+				out.close();
+			}
+
+			// 途中で切れた行の後に追記しても、再起動後に読める
+			indexStorage = new DiskLruHttpCacheStorage(dir, 1000 * 1000, config);
+			indexStorage.putEntry("http://b.example.com:80/1",
+					createEntry(now, new Header[0]));
+			indexStorage.close();
+			indexStorage = new DiskLruHttpCacheStorage(dir, 1000 * 1000, config);
+			Assert.assertEquals(1, indexStorage.removeByHost("a.example.com"));
+			Assert.assertEquals(1, indexStorage.removeByHost("b.example.com"));
+		} finally {
+			indexStorage.delete();
+		}
+	}
+
+	@Test
+	public void testJournalGroupCommit() throws Exception {
+		final File dir = new File("cache-group-commit");
+		final CacheStorageConfig config = new CacheStorageConfig();
+		config.setUriIndexEnabled(true);
+		config.setJournalFlushDelay(60 * 1000);
+		final long now = System.currentTimeMillis();
+		DiskLruHttpCacheStorage groupStorage = new DiskLruHttpCacheStorage(
+				dir, 1000 * 1000, config);
+		try {
+			final File indexFile = new File(dir, "uri-index");
+			groupStorage.putEntry("http://a.example.com:80/1",
+					createEntry(now, new Header[0]));
+			groupStorage.putEntry("http://a.example.com:80/2",
+					createEntry(now, new Header[0]));
+			// 遅延の間は書き出さない
+			Assert.assertEquals(0, indexFile.length());
+			groupStorage.flush();
+			final long flushed = indexFile.length();
+			Assert.assertTrue(flushed > 0);
+
+			groupStorage.putEntry("http://b.example.com:80/1",
+					createEntry(now, new Header[0]));
+			Assert.assertEquals(flushed, indexFile.length());
+			// close で残りを書き出す
+			groupStorage.close();
+			Assert.assertTrue(indexFile.length() > flushed);
+
+			groupStorage = new DiskLruHttpCacheStorage(dir, 1000 * 1000, config);
+			Assert.assertEquals(2, groupStorage.removeByHost("a.example.com"));
+			Assert.assertEquals(1, groupStorage.removeByHost("b.example.com"));
+		} finally {
+			groupStorage.delete();
+		}
+	}
+
+	@Test
+	public void testInvalidateTag() throws Exception {
+		final File dir = new File("cache-tags");
+		final CacheStorageConfig config = new CacheStorageConfig();
+		config.setTagHeaders("Surrogate-Key", "Cache-Tag");
+		final long now = System.currentTimeMillis();
+		DiskLruHttpCacheStorage tagStorage = new DiskLruHttpCacheStorage(dir,
+				1000 * 1000, config);
+		try {
+			tagStorage.putEntry("http://example.com:80/1", createEntry(now,
+					new Header[] { new BasicHeader("Surrogate-Key",
+							"user-1 users") }));
+			tagStorage.putEntry("http://example.com:80/2", createEntry(now,
+					new Header[] { new BasicHeader("Cache-Tag",
+							"user-2,users") }));
+			tagStorage.putEntry("http://example.com:80/3", createEntry(now,
+					new Header[] { new BasicHeader("Surrogate-Key", "items") }));
+			// タグがなくなったエントリはインデックスから外れる
+			tagStorage.putEntry("http://example.com:80/4", createEntry(now,
+					new Header[] { new BasicHeader("Surrogate-Key", "users") }));
+			tagStorage.putEntry("http://example.com:80/4",
+					createEntry(now, new Header[0]));
+
+			tagStorage.close();
+			tagStorage = new DiskLruHttpCacheStorage(dir, 1000 * 1000, config);
+
+			Assert.assertEquals(1, tagStorage.invalidateTag("user-1"));
+			Assert.assertNull(tagStorage.getEntry("http://example.com:80/1"));
+			Assert.assertEquals(1, tagStorage.invalidateTag("users"));
+			Assert.assertNull(tagStorage.getEntry("http://example.com:80/2"));
+			Assert.assertNotNull(tagStorage.getEntry("http://example.com:80/3"));
+			Assert.assertNotNull(tagStorage.getEntry("http://example.com:80/4"));
+		} finally {
+			tagStorage.delete();
+		}
+	}
+
+	@Test
+	public void testEntries() throws Exception {
+		final File dir = new File("cache-entries");
+		final DiskLruHttpCacheStorage entriesStorage = new DiskLruHttpCacheStorage(
+				dir, 1000 * 1000);
+		try {
+			final long now = System.currentTimeMillis();
+			final Set<String> uris = new HashSet<String>();
+			for (int i = 0; i < 10; i++) {
+				final String uri = "http://example.com:80/" + i;
+				entriesStorage.putEntry(uri, createEntry(now, new Header[0]));
+				uris.add(uri);
+			}
+			entriesStorage.removeEntry("http://example.com:80/9");
+			uris.remove("http://example.com:80/9");
+
+			final CachedEntryIterator first = entriesStorage.entries();
+			final CachedEntryIterator second = first.trySplit();
+			Assert.assertNotNull(second);
+			final Set<String> found = new HashSet<String>();
+			for (final CachedEntryIterator i : new CachedEntryIterator[] {
+					first, second }) {
+				while (i.hasNext()) {
+					final CachedEntryInfo info = i.next();
+					Assert.assertEquals(3, info.getBodyLength());
+					Assert.assertEquals(200, info.getStatusCode());
+					Assert.assertEquals(now, info.getResponseDate().getTime());
+					Assert.assertTrue(found.add(info.getUri()));
+				}
+			}
+			Assert.assertEquals(uris, found);
+		} finally {
+			entriesStorage.delete();
+		}
+	}
+
+	@Test
+	public void testStoredUriMismatch() throws Exception {
+		final File dir = new File("cache-uri-mismatch");
+		final DiskLruHttpCacheStorage mismatchStorage = new DiskLruHttpCacheStorage(
+				dir, 1000 * 1000);
+		try {
+			final long now = System.currentTimeMillis();
+			mismatchStorage.putEntry("http://example.com:80/a",
+					createEntry(now, new Header[0]));
+			final File fileA = findEntryFile(dir, 0);
+			mismatchStorage.putEntry("http://example.com:80/b",
+					createEntry(now, new Header[0]));
+			File fileB = null;
+			for (final File file : dir.listFiles()) {
+				if (file.getName().endsWith(".0") && !file.equals(fileA)) {
+					fileB = file;
+				}
+			}
+			// ハッシュの衝突と同じ状態を作る
+			copyFile(fileA, fileB);
+
+			Assert.assertNull(mismatchStorage.getEntry("http://example.com:80/b"));
+			Assert.assertNotNull(mismatchStorage
+					.getEntry("http://example.com:80/a"));
+		} finally {
+			mismatchStorage.delete();
+		}
+	}
+
+	@Test
+	public void testRebuildUriIndex() throws Exception {
+		final File dir = new File("cache-rebuild-uri-index");
+		final long now = System.currentTimeMillis();
+		DiskLruHttpCacheStorage rebuildStorage = new DiskLruHttpCacheStorage(
+				dir, 1000 * 1000);
+		try {
+			rebuildStorage.putEntry("http://a.example.com:80/1",
+					createEntry(now, new Header[0]));
+			rebuildStorage.putEntry("http://a.example.com:80/2",
+					createEntry(now, new Header[0]));
+			rebuildStorage.putEntry("http://b.example.com:80/1",
+					createEntry(now, new Header[0]));
+			rebuildStorage.close();
+
+			// インデックスなしで保存したエントリも、メタデータの URI から索引される
+			final CacheStorageConfig config = new CacheStorageConfig();
+			config.setUriIndexEnabled(true);
+			rebuildStorage = new DiskLruHttpCacheStorage(dir, 1000 * 1000,
+					config);
+			Assert.assertEquals(2, rebuildStorage.removeByHost("a.example.com"));
+			Assert.assertNull(rebuildStorage.getEntry("http://a.example.com:80/1"));
+			Assert.assertNotNull(rebuildStorage
+					.getEntry("http://b.example.com:80/1"));
+		} finally {
+			rebuildStorage.delete();
+		}
+	}
+
+	@Test
+	public void testCorruptedMetadata() throws Exception {
+		final File dir = new File("cache-corrupt-metadata");
+		final DiskLruHttpCacheStorage corruptStorage = new DiskLruHttpCacheStorage(
+				dir, 1000 * 1000);
+		try {
+			corruptStorage.putEntry("key", createEntry(
+					System.currentTimeMillis(), new Header[] { new BasicHeader(
+							"Content-Type", "text/plain") }));
+			flipByte(findEntryFile(dir, 0), 30);
+
+			Assert.assertNull(corruptStorage.getEntry("key"));
+			Assert.assertNull(findEntryFile(dir, 0));
+		} finally {
+			corruptStorage.delete();
+		}
+	}
+
+	@Test
+	public void testMetadataReadError() throws Exception {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		EntryCodec.writeMetadata(out, "uri", createEntry(
+				System.currentTimeMillis(), new Header[] { new BasicHeader(
+						"Content-Type", "text/plain") }), 3, 0);
+		final byte[] metadata = out.toByteArray();
+
+		// 読み込みの失敗はエントリが壊れていることを表さない
+		try {
+			EntryCodec.readMetadata(new InputStream() {
+				private int position;
+
+				@Override
+				public int read() throws IOException {
+					if (position == 10) {
+						throw new IOException("I/O error");
+					}
+					return metadata[position++] & 0xff;
+				}
+			}, metadata.length);
+			Assert.fail();
+		} catch (CorruptedEntryException e) {
+			Assert.fail(e.toString());
+		} catch (IOException expected) {
+		}
+
+		try {
+			EntryCodec.readMetadata(new ByteArrayInputStream(metadata, 0, 10),
+					metadata.length);
+			Assert.fail();
+		} catch (CorruptedEntryException expected) {
+		}
+
+		final String text = new String(metadata, "UTF-8");
+		Assert.assertTrue(text.contains("\nOK\n1\n"));
+		final byte[] badCount = text.replace("\nOK\n1\n", "\nOK\n999999999\n")
+				.getBytes("UTF-8");
+		try {
+			EntryCodec.readMetadata(new ByteArrayInputStream(badCount),
+					badCount.length);
+			Assert.fail();
+		} catch (CorruptedEntryException expected) {
+		}
+	}
+
+	@Test
+	public void testCorruptedBody() throws Exception {
+		final File dir = new File("cache-corrupt-body");
+		final CacheStorageConfig config = new CacheStorageConfig();
+		config.setVerifyBodyChecksum(true);
+		final DiskLruHttpCacheStorage corruptStorage = new DiskLruHttpCacheStorage(
+				dir, 1000 * 1000, config);
+		try {
+			corruptStorage.putEntry("key",
+					createEntry(System.currentTimeMillis(), new Header[0]));
+			flipByte(findEntryFile(dir, 1), 1);
+
+			final HttpCacheEntry entry = corruptStorage.getEntry("key");
+			final InputStream in = entry.getResource().getInputStream();
+			try {
+				while (in.read() != -1) {
+				}
+				Assert.fail();
+			} catch (IOException expected) {
+			} finally {
+				in.close();
+			}
+			Assert.assertNull(corruptStorage.getEntry("key"));
+		} finally {
+			corruptStorage.delete();
+		}
+	}
+
+	@Test
+	public void testCorruptedBodyOfChannelResource() throws Exception {
+		final File dir = new File("cache-corrupt-channel");
+		final CacheStorageConfig config = new CacheStorageConfig();
+		config.setVerifyBodyChecksum(true);
+		final DiskLruHttpCacheStorage corruptStorage = new DiskLruHttpCacheStorage(
+				dir, 1000 * 1000, config);
+		try {
+			corruptStorage.putEntry("key",
+					createEntry(System.currentTimeMillis(), new Header[0]));
+			flipByte(findEntryFile(dir, 1), 1);
+
+			// 位置を指定した読み込みでも、最初に読む前にボディ全体を検証する
+			final HttpCacheEntry entry = corruptStorage.getEntry("key");
+			final ChannelResource resource = (ChannelResource) entry
+					.getResource();
+			try {
+				resource.read(ByteBuffer.allocate(1), 0);
+				Assert.fail();
+			} catch (IOException expected) {
+			} finally {
+				resource.dispose();
+			}
+			Assert.assertNull(corruptStorage.getEntry("key"));
+		} finally {
+			corruptStorage.delete();
+		}
+	}
+
+	@Test
+	public void testRecoverTruncatedJournal() throws Exception {
+		final File dir = new File("cache-truncated-journal");
+		final CacheStorageConfig config = new CacheStorageConfig();
+		config.setDurability(Durability.PERIODIC);
+		final long now = System.currentTimeMillis();
+		DiskLruHttpCacheStorage recoverStorage = new DiskLruHttpCacheStorage(
+				dir, 1000 * 1000, config);
+		try {
+			recoverStorage.putEntry("a", createEntry(now, new Header[0]));
+			recoverStorage.putEntry("b", createEntry(now, new Header[0]));
+			recoverStorage.close();
+
+			// 最後の commit の記録が途中で切れた状態にする
+			final File journal = new File(dir, "journal");
+			final RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+			try {
+				raf.setLength(raf.length() - 3);
+			} finally {
+				raf.close();
+			}
+
+			recoverStorage = new DiskLruHttpCacheStorage(dir, 1000 * 1000,
+					config);
+			Assert.assertNotNull(recoverStorage.getEntry("a"));
+			Assert.assertNull(recoverStorage.getEntry("b"));
+			recoverStorage.putEntry("b", createEntry(now, new Header[0]));
+			Assert.assertNotNull(recoverStorage.getEntry("b"));
+		} finally {
+			recoverStorage.delete();
+		}
+	}
+
+	@Test
+	public void testRecoverHalfWrittenBody() throws Exception {
+		final File dir = new File("cache-half-written-body");
+		final CacheStorageConfig config = new CacheStorageConfig();
+		config.setDurability(Durability.COMMIT);
+		DiskLruHttpCacheStorage recoverStorage = new DiskLruHttpCacheStorage(
+				dir, 1000 * 1000, config);
+		try {
+			recoverStorage.putEntry("key",
+					createEntry(System.currentTimeMillis(), new Header[0]));
+			recoverStorage.close();
+
+			// ジャーナルには記録されたが、ボディは途中までしか書かれていない状態にする
+			final RandomAccessFile raf = new RandomAccessFile(findEntryFile(
+					dir, 1), "rw");
+			try {
+				raf.setLength(1);
+			} finally {
+				raf.close();
+			}
+
+			recoverStorage = new DiskLruHttpCacheStorage(dir, 1000 * 1000,
+					config);
+			Assert.assertNull(recoverStorage.getEntry("key"));
+			Assert.assertNull(findEntryFile(dir, 0));
+		} finally {
+			recoverStorage.delete();
+		}
+	}
+
+	@Test
+	public void testOffHeapBodies() throws Exception {
+		final File dir = new File("cache-off-heap");
+		final CacheStorageConfig config = new CacheStorageConfig();
+		config.setOffHeapCacheSize(4 * 4096);
+		final DiskLruHttpCacheStorage offHeapStorage = new DiskLruHttpCacheStorage(
+				dir, 1000 * 1000, config);
+		try {
+			final long now = System.currentTimeMillis();
+			final byte[] body = new byte[6000];
+			new Random(0).nextBytes(body);
+			offHeapStorage.putEntry("key", new HttpCacheEntry(new Date(now),
+					new Date(now), new BasicStatusLine(new ProtocolVersion(
+							"HTTP", 1, 1), 200, "OK"), new Header[0],
+					new HeapResource(body)));
+			HttpCacheEntry entry = offHeapStorage.getEntry("key");
+			Assert.assertArrayEquals(body, readAll(entry.getResource()));
+			entry.getResource().dispose();
+
+			// 2回目以降はディスクのファイルを読まない
+			flipByte(findEntryFile(dir, 1), 5000);
+			entry = offHeapStorage.getEntry("key");
+			Assert.assertArrayEquals(body, readAll(entry.getResource()));
+			entry.getResource().dispose();
+
+			// 書き換えると保持していたボディは使われない
+			offHeapStorage.putEntry("key", createEntry(now, new Header[0]));
+			entry = offHeapStorage.getEntry("key");
+			Assert.assertArrayEquals(new byte[] { 1, 2, 3 },
+					readAll(entry.getResource()));
+			entry.getResource().dispose();
+		} finally {
+			offHeapStorage.delete();
+		}
+	}
+
+	@Test
+	public void testConcurrentReadsOfSameLengthRewrites() throws Exception {
+		final CacheStorageConfig config = new CacheStorageConfig();
+		config.setVerifyBodyChecksum(true);
+		final DiskLruHttpCacheStorage rewriteStorage = new DiskLruHttpCacheStorage(
+				new File("cache-same-length-rewrites"), 1000 * 1000, config);
+		try {
+			final long now = System.currentTimeMillis();
+			final int readerCount = 8;
+			final long deadline = System.currentTimeMillis() + 500;
+			final List<Throwable> failures = Collections
+					.synchronizedList(new ArrayList<Throwable>());
+			final Thread[] threads = new Thread[readerCount + 1];
+			// メタデータの長さを変えずに、ETag とボディだけを書き換え続ける
+			threads[0] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; System.currentTimeMillis() < deadline; i++) {
+							final byte[] body = new byte[100];
+							Arrays.fill(body, (byte) ('0' + i % 10));
+							rewriteStorage.putEntry("key", new HttpCacheEntry(
+									new Date(now), new Date(now),
+									new BasicStatusLine(new ProtocolVersion(
+											"HTTP", 1, 1), 200, "OK"),
+									new Header[] { new BasicHeader("ETag",
+											"\"" + i % 10 + "\"") },
+									new HeapResource(body)));
+						}
+					} catch (Throwable t) {
+						failures.add(t);
+					}
+				}
+			};
+			for (int i = 1; i <= readerCount; i++) {
+				threads[i] = new Thread() {
+					@Override
+					public void run() {
+						try {
+							while (System.currentTimeMillis() < deadline) {
+								final HttpCacheEntry entry = rewriteStorage
+										.getEntry("key");
+								if (entry == null) {
+									continue;
+								}
+								// ヘッダとボディは同じ書き込みのもの
+								final byte[] body = readAll(entry.getResource());
+								entry.getResource().dispose();
+								Assert.assertEquals(entry.getFirstHeader("ETag")
+										.getValue().charAt(1), (char) body[0]);
+							}
+						} catch (Throwable t) {
+							failures.add(t);
+						}
+					}
+				};
+			}
+			for (final Thread thread : threads) {
+				thread.start();
+			}
+			for (final Thread thread : threads) {
+				thread.join();
+			}
+			Assert.assertEquals(Collections.emptyList(), failures);
+		} finally {
+			rewriteStorage.delete();
+		}
+	}
+
+	@Test
+	public void testOffHeapPagesWithoutDispose() throws Exception {
+		final int pageSize = OffHeapBodyCache.PAGE_SIZE;
+		final OffHeapBodyCache cache = new OffHeapBodyCache(4 * pageSize,
+				pageSize);
+		final byte[] body = new byte[1000];
+		new Random(0).nextBytes(body);
+		final CRC32 crc = new CRC32();
+		crc.update(body, 0, body.length);
+		final long checksum = crc.getValue();
+
+		// CachingHttpClient と同じように、返された Resource を dispose せずに捨てる
+		for (int i = 0; i < 4; i++) {
+			Assert.assertNotNull(cache.load("key" + i,
+					new ByteArrayInputStream(body), body.length, checksum));
+			for (int j = 0; j < 10; j++) {
+				Assert.assertNotNull(cache.get("key" + i, body.length,
+						checksum));
+			}
+		}
+		// 読み込み中のストリームだけを残す
+		final InputStream reading = cache.get("key0", body.length, checksum)
+				.getInputStream();
+		Assert.assertEquals(4 * pageSize, cache.getUsedBytes());
+
+		// 書き換えや追い出しで一覧から外れたボディのページは、Resource が回収されると返却される
+		for (int i = 0; i < 4; i++) {
+			cache.remove("key" + i);
+		}
+		for (int i = 0; i < 100 && cache.getUsedBytes() > pageSize; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(pageSize, cache.getUsedBytes());
+		for (int i = 0; i < 3; i++) {
+			Assert.assertNotNull(cache.load("new" + i,
+					new ByteArrayInputStream(body), body.length, checksum));
+		}
+
+		// 読み込み中のストリームのページは再利用されていない
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int b;
+		while ((b = reading.read()) != -1) {
+			out.write(b);
+		}
+		Assert.assertArrayEquals(body, out.toByteArray());
+	}
+
+	@Test
+	public void testOffHeapStreamAfterDispose() throws Exception {
+		final int pageSize = OffHeapBodyCache.PAGE_SIZE;
+		final OffHeapBodyCache cache = new OffHeapBodyCache(pageSize, pageSize);
+		final byte[] body = new byte[1000];
+		new Random(0).nextBytes(body);
+		final CRC32 crc = new CRC32();
+		crc.update(body, 0, body.length);
+		final long checksum = crc.getValue();
+
+		final Resource resource = cache.load("key", new ByteArrayInputStream(
+				body), body.length, checksum);
+		final InputStream reading = resource.getInputStream();
+		resource.dispose();
+		cache.remove("key");
+		try {
+			((ChannelResource) resource).read(ByteBuffer.allocate(10), 0);
+			Assert.fail();
+		} catch (IOException expected) {
+		}
+
+		// 開いているストリームのページは close されるまで再利用しない
+		Assert.assertEquals(pageSize, cache.getUsedBytes());
+		final byte[] other = new byte[1000];
+		final CRC32 otherCrc = new CRC32();
+		otherCrc.update(other, 0, other.length);
+		Assert.assertNull(cache.load("other", new ByteArrayInputStream(other),
+				other.length, otherCrc.getValue()));
+		final byte[] read = new byte[body.length];
+		int filled = 0;
+		while (filled < read.length) {
+			filled += reading.read(read, filled, read.length - filled);
+		}
+		Assert.assertArrayEquals(body, read);
+
+		reading.close();
+		Assert.assertEquals(0, cache.getUsedBytes());
+		try {
+			reading.read();
+			Assert.fail();
+		} catch (IOException expected) {
+		}
+		final Resource loaded = cache.load("other", new ByteArrayInputStream(
+				other), other.length, otherCrc.getValue());
+		Assert.assertNotNull(loaded);
+		loaded.dispose();
+	}
+
+	@Test
+	public void testWriteCoalescer() throws Exception {
+		final WriteCoalescer<String> coalescer = new WriteCoalescer<String>();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<Thread> writingThreads = Collections
+				.synchronizedList(new ArrayList<Thread>());
+		final WriteCoalescer.Writer<String> writer = new WriteCoalescer.Writer<String>() {
+			public void write(final String value) throws IOException {
+				writingThreads.add(Thread.currentThread());
+				if (value.equals("first")) {
+					started.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						throw new IOException(e.toString());
+					}
+				} else {
+					throw new IOException(value);
+				}
+			}
+		};
+		final List<Throwable> failures = Collections
+				.synchronizedList(new ArrayList<Throwable>());
+		final Thread[] threads = new Thread[3];
+		for (int i = 0; i < threads.length; i++) {
+			final String value = i == 0 ? "first" : "fail" + i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						coalescer.write("key", value, writer);
+					} catch (Throwable t) {
+						failures.add(t);
+					}
+				}
+			};
+			threads[i].start();
+			if (i == 0) {
+				started.await();
+			} else {
+				// 書き込み中の値の後ろで待つまで待つ
+				while (threads[i].getState() != Thread.State.WAITING) {
+					Thread.sleep(1);
+				}
+			}
+		}
+		release.countDown();
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+
+		// 保留された2つの値は1回の書き込みにまとめられ、最初の呼び出し元は自分の値だけを書き込んで戻る
+		Assert.assertEquals(2, writingThreads.size());
+		Assert.assertSame(threads[0], writingThreads.get(0));
+		Assert.assertNotSame(threads[0], writingThreads.get(1));
+		// まとめられた書き込みの失敗は、値を渡したすべての呼び出し元に伝わる
+		Assert.assertEquals(2, failures.size());
+		for (final Throwable t : failures) {
+			Assert.assertTrue(t instanceof IOException);
+		}
+	}
+
+	@Test
+	public void testGroupCommit() throws Exception {
+		final int threadCount = 8;
+		final AtomicInteger started = new AtomicInteger();
+		final AtomicInteger completed = new AtomicInteger();
+		final AtomicInteger failing = new AtomicInteger();
+		final GroupCommit groupCommit = new GroupCommit(0) {
+			@Override
+			void syncShared() throws IOException {
+				final int n = started.incrementAndGet();
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					throw new IOException(e.toString());
+				}
+				if (failing.get() > 0) {
+					throw new IOException("fail");
+				}
+				completed.set(n);
+			}
+		};
+		final CyclicBarrier barrier = new CyclicBarrier(threadCount);
+		final List<Throwable> failures = Collections
+				.synchronizedList(new ArrayList<Throwable>());
+		final Thread[] threads = new Thread[threadCount];
+		for (int i = 0; i < threadCount; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						barrier.await();
+						final int before = started.get();
+						groupCommit.sync();
+						// 呼び出した後に始まった fsync が終わってから戻る
+						Assert.assertTrue(completed.get() > before);
+					} catch (Throwable t) {
+						failures.add(t);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+		Assert.assertEquals(Collections.emptyList(), failures);
+		// fsync の実行中に呼ばれた分は次の1回にまとめられる
+		Assert.assertTrue(started.get() < threadCount);
+
+		// 失敗した fsync を待っていた呼び出しは失敗し、次の fsync には影響しない
+		failing.set(1);
+		try {
+			groupCommit.sync();
+			Assert.fail();
+		} catch (IOException expected) {
+		}
+		failing.set(0);
+		groupCommit.sync();
+
+		final CacheStorageConfig config = new CacheStorageConfig();
+		config.setDurability(Durability.COMMIT);
+		config.setGroupCommitDelay(5);
+		testConcurrentAccess(new File("cache-group-commit"), config);
+	}
+
+	@Test
+	public void testConcurrentAccess() throws Exception {
+		testConcurrentAccess(new File("cache-concurrent"),
+				new CacheStorageConfig());
+	}
+
+	@Test
+	public void testLockFreeReads() throws Exception {
+		final File dir = new File("cache-lock-free");
+		final CacheStorageConfig config = new CacheStorageConfig();
+		config.setLockFreeReadsEnabled(true);
+		final DiskLruHttpCacheStorage lockFreeStorage = new DiskLruHttpCacheStorage(
+				dir, 1000 * 1000, config);
+		try {
+			final long now = System.currentTimeMillis();
+			final HttpCacheEntry expected = createEntry(now,
+					new Header[] { new BasicHeader("ETag", "\"1\"") });
+			lockFreeStorage.putEntry("key", expected);
+			// LRU の順序への反映をまたいで読み込む
+			for (int i = 0; i < 100; i++) {
+				final HttpCacheEntry entry = lockFreeStorage.getEntry("key");
+				assertEquals(expected, entry);
+				Assert.assertArrayEquals(new byte[] { 1, 2, 3 },
+						readAll(entry.getResource()));
+				entry.getResource().dispose();
+			}
+			lockFreeStorage.removeEntry("key");
+			Assert.assertNull(lockFreeStorage.getEntry("key"));
+		} finally {
+			lockFreeStorage.delete();
+		}
+		testConcurrentAccess(new File("cache-lock-free-concurrent"), config);
+	}
+
+	@Test
+	public void testCustomEntryStore() throws Exception {
+		final File dir = new File("cache-custom-store");
+		final HeapEntryStore store = new HeapEntryStore();
+		final DiskLruHttpCacheStorage heapStorage = new DiskLruHttpCacheStorage(
+				dir, new CacheStorageConfig(), store);
+		try {
+			final long now = System.currentTimeMillis();
+			final HttpCacheEntry expected = createEntry(now,
+					new Header[] { new BasicHeader("ETag", "\"1\"") });
+			heapStorage.putEntry("key", expected);
+			Assert.assertEquals(1, store.keys().size());
+			// インデックスを使わないので、ディレクトリにファイルは作られない
+			Assert.assertFalse(dir.exists());
+
+			final HttpCacheEntry entry = heapStorage.getEntry("key");
+			assertEquals(expected, entry);
+			Assert.assertArrayEquals(new byte[] { 1, 2, 3 },
+					readAll(entry.getResource()));
+			Assert.assertEquals("key", heapStorage.entries().next().getUri());
+
+			heapStorage.removeEntry("key");
+			Assert.assertNull(heapStorage.getEntry("key"));
+			Assert.assertEquals(0, store.size());
+		} finally {
+			heapStorage.delete();
+		}
+	}
+
+	@Test
+	public void testStaleWhileRevalidate() throws Exception {
+		final File dir = new File("cache-stale-while-revalidate");
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger revalidations = new AtomicInteger();
+		final CacheStorageConfig config = new CacheStorageConfig();
+		config.setEntryRevalidator(new EntryRevalidator() {
+			public void revalidate(final String uri) throws IOException {
+				revalidations.incrementAndGet();
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e.toString());
+				}
+			}
+		});
+		final DiskLruHttpCacheStorage staleStorage = new DiskLruHttpCacheStorage(
+				dir, 1000 * 1000, config);
+		try {
+			// 10秒前に鮮度の期限が過ぎている
+			final long now = System.currentTimeMillis();
+			final String date = DateUtils.formatDate(new Date(now - 20000));
+			staleStorage.putEntry("key", createEntry(now, new Header[] {
+					new BasicHeader("Date", date),
+					new BasicHeader("Cache-Control",
+							"max-age=10, stale-while-revalidate=60, stale-if-error=5") }));
+
+			// 再検証を待たずに古いエントリが返り、同時の再検証は1回にまとめられる
+			for (int i = 0; i < 3; i++) {
+				final HttpCacheEntry entry = staleStorage.getEntry("key");
+				Assert.assertNotNull(entry);
+				Assert.assertFalse(staleStorage.isUsableIfError(entry));
+				entry.getResource().dispose();
+			}
+			Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+			Assert.assertEquals(1, revalidations.get());
+			release.countDown();
+
+			// stale-while-revalidate を持たないエントリは再検証しない
+			staleStorage.putEntry("if-error", createEntry(now, new Header[] {
+					new BasicHeader("Date", date),
+					new BasicHeader("Cache-Control",
+							"max-age=10, stale-if-error=60") }));
+			final HttpCacheEntry entry = staleStorage.getEntry("if-error");
+			Assert.assertTrue(staleStorage.isUsableIfError(entry));
+			entry.getResource().dispose();
+			Assert.assertEquals(1, revalidations.get());
+		} finally {
+			staleStorage.delete();
+		}
+	}
+
+	@Test
+	public void testScheduledIndexCompaction() throws Exception {
+		final File dir = new File("cache-index-compaction");
+		final CacheStorageConfig config = new CacheStorageConfig();
+		config.setUriIndexEnabled(true);
+		config.setIndexCompactionInterval(100);
+		config.setMaintenanceIoRate(1000 * 1000);
+		final DiskLruHttpCacheStorage compactingStorage = new DiskLruHttpCacheStorage(
+				dir, 1000 * 1000, config);
+		try {
+			final long now = System.currentTimeMillis();
+			// 削除の記録が 1000 行を超えた時点で、詰め直しの対象になる
+			for (int i = 0; i < 1001; i++) {
+				compactingStorage.putEntry("http://example.com:80/" + i,
+						createEntry(now, new Header[0]));
+				compactingStorage.removeEntry("http://example.com:80/" + i);
+			}
+			compactingStorage.putEntry("http://example.com:80/kept",
+					createEntry(now, new Header[0]));
+
+			// 削除の記録はバックグラウンドで詰め直され、残ったエントリの1行だけになる
+			final File indexFile = new File(dir, "uri-index");
+			final long deadline = System.currentTimeMillis() + 10 * 1000;
+			while (indexFile.length() > 1000
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+			}
+			Assert.assertTrue(indexFile.length() < 1000);
+			Assert.assertEquals(1,
+					compactingStorage.removeByPrefix("http://example.com:80/"));
+		} finally {
+			compactingStorage.delete();
+		}
+	}
+
+	@Test
+	public void testWritePriority() throws Exception {
+		final File dir = new File("cache-write-priority");
+		final CacheStorageConfig config = new CacheStorageConfig();
+		config.setPrefetchWriteRate(20 * 1000);
+		final FakeTicker ticker = new FakeTicker();
+		config.setTicker(ticker);
+		final DiskLruHttpCacheStorage throttledStorage = new DiskLruHttpCacheStorage(
+				dir, 1000 * 1000, config);
+		try {
+			final long now = System.currentTimeMillis();
+			final byte[] body = new byte[30 * 1000];
+			final HttpCacheEntry entry = new HttpCacheEntry(new Date(now),
+					new Date(now), new BasicStatusLine(new ProtocolVersion(
+							"HTTP", 1, 1), 200, "OK"), new Header[0],
+					new HeapResource(body));
+
+			// 先読みの書き込みだけが上限に従う (1秒分は最初から使えるので、残りの 10KB で 0.5 秒待つ)
+			throttledStorage.putEntry("prefetch", entry, WritePriority.PREFETCH);
+			// 待機時間の端数は切り捨てられうる
+			Assert.assertTrue(ticker.sleptMillis() >= 499);
+			Assert.assertTrue(ticker.sleptMillis() <= 500);
+
+			final long slept = ticker.sleptMillis();
+			throttledStorage.putEntry("foreground", entry);
+			Assert.assertEquals(slept, ticker.sleptMillis());
+
+			final HttpCacheEntry read = throttledStorage.getEntry("prefetch");
+			Assert.assertArrayEquals(body, readAll(read.getResource()));
+			read.getResource().dispose();
+		} finally {
+			throttledStorage.delete();
+		}
+	}
+
+	@Test
+	public void testMaxEntrySize() throws Exception {
+		final File dir = new File("cache-max-entry-size");
+		final CacheStorageConfig config = new CacheStorageConfig();
+		config.setMaxEntrySize(1000);
+		final DiskLruHttpCacheStorage limitedStorage = new DiskLruHttpCacheStorage(
+				dir, 1000 * 1000, config);
+		try {
+			final long now = System.currentTimeMillis();
+			final StatusLine statusLine = new BasicStatusLine(
+					new ProtocolVersion("HTTP", 1, 1), 200, "OK");
+			limitedStorage.putEntry("key", createEntry(now, new Header[0]));
+
+			// 上限を超えるボディは保存せず、以前のエントリも削除する
+			limitedStorage.putEntry("key", new HttpCacheEntry(new Date(now),
+					new Date(now), statusLine, new Header[0], new HeapResource(
+							new byte[1001])));
+			Assert.assertNull(limitedStorage.getEntry("key"));
+
+			// 長さを偽る Resource は書き込みの途中で打ち切る
+			limitedStorage.putEntry("key", createEntry(now, new Header[0]));
+			limitedStorage.putEntry("key", new HttpCacheEntry(new Date(now),
+					new Date(now), statusLine, new Header[0], new Resource() {
+						private static final long serialVersionUID = 1L;
+
+						public InputStream getInputStream() {
+							return new ByteArrayInputStream(new byte[100 * 1000]);
+						}
+
+						public long length() {
+							return 10;
+						}
+
+						public void dispose() {
+						}
+					}));
+			Assert.assertNull(limitedStorage.getEntry("key"));
+			Assert.assertNull(findEntryFile(dir, 1));
+		} finally {
+			limitedStorage.delete();
+		}
+	}
+
+	@Test
+	public void testRecentWrites() throws Exception {
+		final File dir = new File("cache-recent-writes");
+		final CacheStorageConfig config = new CacheStorageConfig();
+		config.setRecentWritesSize(1000);
+		config.setRecentWritesTtl(200);
+		final FakeTicker ticker = new FakeTicker();
+		config.setTicker(ticker);
+		config.setMaxEntryCount(2);
+		final CountDownLatch revalidated = new CountDownLatch(1);
+		config.setEntryRevalidator(new EntryRevalidator() {
+			public void revalidate(final String uri) {
+				revalidated.countDown();
+			}
+		});
+		final DiskLruHttpCacheStorage recentStorage = new DiskLruHttpCacheStorage(
+				dir, 1000 * 1000, config);
+		try {
+			final HttpCacheEntry expected = createEntry(
+					System.currentTimeMillis(), new Header[] { new BasicHeader(
+							"ETag", "\"1\"") });
+			recentStorage.putEntry("key", expected);
+
+			// 書き込んだ直後はディスクを読まずに同じエントリを返す
+			flipByte(findEntryFile(dir, 1), 0);
+			final HttpCacheEntry recent = recentStorage.getEntry("key");
+			assertEquals(expected, recent);
+			Assert.assertArrayEquals(new byte[] { 1, 2, 3 },
+					readAll(recent.getResource()));
+			Assert.assertSame(recent, recentStorage.getEntry("key"));
+
+			ticker.advance(199);
+			Assert.assertSame(recent, recentStorage.getEntry("key"));
+
+			// 期間が過ぎるとディスクから読む
+			ticker.advance(1);
+			final HttpCacheEntry read = recentStorage.getEntry("key");
+			Assert.assertNotSame(recent, read);
+			assertEquals(expected, read);
+			read.getResource().dispose();
+
+			recentStorage.putEntry("key", expected);
+			recentStorage.removeEntry("key");
+			Assert.assertNull(recentStorage.getEntry("key"));
+
+			// ディスクを読まずに返す場合も、stale-while-revalidate の再検証を行う
+			final long now = System.currentTimeMillis();
+			recentStorage.putEntry("stale", createEntry(now, new Header[] {
+					new BasicHeader("Date", DateUtils.formatDate(new Date(
+							now - 20000))),
+					new BasicHeader("Cache-Control",
+							"max-age=10, stale-while-revalidate=60") }));
+			Assert.assertNotNull(recentStorage.getEntry("stale"));
+			Assert.assertTrue(revalidated.await(10, TimeUnit.SECONDS));
+			recentStorage.removeEntry("stale");
+
+			// エントリ数の上限で追い出す順序にも参照を反映する
+			recentStorage.putEntry("a", expected);
+			recentStorage.putEntry("b", expected);
+			Assert.assertNotNull(recentStorage.getEntry("a"));
+			recentStorage.putEntry("c", expected);
+			Assert.assertNotNull(recentStorage.getEntry("a"));
+			Assert.assertNull(recentStorage.getEntry("b"));
+		} finally {
+			recentStorage.delete();
+		}
+	}
+
+	@Test
+	public void testLazyHeaders() throws Exception {
+		final long now = System.currentTimeMillis();
+		final HttpCacheEntry expected = createEntry(now, new Header[] {
+				new BasicHeader("Set-Cookie", "a=1"),
+				new BasicHeader("Cache-Control", "max-age=60"),
+				new BasicHeader("X-\u00e9", "\u65e5\u672c"),
+				new BasicHeader("set-cookie", "b=2") });
+		storage.putEntry("lazy", expected);
+		final HttpCacheEntry entry = storage.getEntry("lazy");
+		try {
+			// 名前は大文字と小文字を区別せずに探す
+			Assert.assertEquals("max-age=60",
+					entry.getFirstHeader("cache-control").getValue());
+			final Header[] cookies = entry.getHeaders("SET-COOKIE");
+			Assert.assertEquals(2, cookies.length);
+			Assert.assertEquals("a=1", cookies[0].getValue());
+			Assert.assertEquals("b=2", cookies[1].getValue());
+			Assert.assertEquals("\u65e5\u672c",
+					entry.getFirstHeader("x-\u00c9").getValue());
+			Assert.assertNull(entry.getFirstHeader("ETag"));
+			assertEquals(expected, entry);
+		} finally {
+			entry.getResource().dispose();
+		}
+	}
+
+	@Test
+	public void testChannelResource() throws Exception {
+		final long now = System.currentTimeMillis();
+		final byte[] body = new byte[10000];
+		new Random(0).nextBytes(body);
+		final HttpCacheEntry expected = new HttpCacheEntry(new Date(now),
+				new Date(now), new BasicStatusLine(new ProtocolVersion("HTTP",
+						1, 1), 200, "OK"), new Header[0], new HeapResource(body));
+		storage.putEntry("channel", expected);
+		HttpCacheEntry entry = storage.getEntry("channel");
+		try {
+			assertChannelResource(body, entry.getResource());
+			// 位置を指定した読み込みはストリームの読み込みに影響しない
+			Assert.assertArrayEquals(body, readAll(entry.getResource()));
+		} finally {
+			entry.getResource().dispose();
+		}
+
+		// オフヒープに保持したボディもページをまたいで読める
+		final File dir = new File("cache-channel");
+		final CacheStorageConfig config = new CacheStorageConfig();
+		config.setOffHeapCacheSize(4 * 4096);
+		final DiskLruHttpCacheStorage offHeapStorage = new DiskLruHttpCacheStorage(
+				dir, 1000 * 1000, config);
+		try {
+			offHeapStorage.putEntry("channel", expected);
+			offHeapStorage.getEntry("channel").getResource().dispose();
+			entry = offHeapStorage.getEntry("channel");
+			try {
+				assertChannelResource(body, entry.getResource());
+			} finally {
+				entry.getResource().dispose();
+			}
+		} finally {
+			offHeapStorage.delete();
+		}
+	}
+
+	private void testConcurrentAccess(final File dir,
+			final CacheStorageConfig config) throws Exception {
+		final DiskLruHttpCacheStorage concurrentStorage = new DiskLruHttpCacheStorage(
+				dir, 1000 * 1000, config);
+		try {
+			final long now = System.currentTimeMillis();
+			final int threadCount = 16;
+			final CyclicBarrier barrier = new CyclicBarrier(threadCount);
+			final List<Throwable> failures = Collections
+					.synchronizedList(new ArrayList<Throwable>());
+			final Thread[] threads = new Thread[threadCount];
+			for (int i = 0; i < threadCount; i++) {
+				final int id = i;
+				threads[i] = new Thread() {
+					@Override
+					public void run() {
+						try {
+							barrier.await();
+							// 同じキーへの同時の書き込みはまとめられ、いずれも取りこぼされない
+							concurrentStorage.putEntry("key", createEntry(now
+									+ id, new Header[0]));
+							barrier.await();
+							final HttpCacheEntry entry = concurrentStorage
+									.getEntry("key");
+							Assert.assertNotNull(entry);
+							Assert.assertArrayEquals(new byte[] { 1, 2, 3 },
+									readAll(entry.getResource()));
+							entry.getResource().dispose();
+						} catch (Throwable t) {
+							failures.add(t);
+						}
+					}
+				};
+				threads[i].start();
+			}
+			for (final Thread thread : threads) {
+				thread.join();
+			}
+			Assert.assertEquals(Collections.emptyList(), failures);
+		} finally {
+			concurrentStorage.delete();
+		}
+	}
+
+	private static void assertChannelResource(final byte[] expected,
+			final Resource resource) throws IOException {
+		Assert.assertTrue(resource instanceof ChannelResource);
+		final ChannelResource channelResource = (ChannelResource) resource;
+
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(expected.length);
+		final ByteBuffer chunk = ByteBuffer.allocateDirect(999);
+		int read;
+		while ((read = channelResource.read(chunk, buffer.position())) != -1) {
+			chunk.flip();
+			buffer.put(chunk);
+			chunk.clear();
+			Assert.assertTrue(read > 0);
+		}
+		Assert.assertFalse(buffer.hasRemaining());
+		buffer.flip();
+		final byte[] actual = new byte[expected.length];
+		buffer.get(actual);
+		Assert.assertArrayEquals(expected, actual);
+
+		// 終端を超える範囲は転送しない
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final WritableByteChannel target = Channels.newChannel(out);
+		long position = 0;
+		while (position < expected.length) {
+			position += channelResource.transferTo(position, 3000, target);
+		}
+		Assert.assertEquals(0, channelResource.transferTo(position, 3000,
+				target));
+		Assert.assertArrayEquals(expected, out.toByteArray());
+	}
+
+	private static byte[] readAll(final Resource resource) throws IOException {
+		final InputStream in = resource.getInputStream();
+		try {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[1000];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static File findEntryFile(final File dir, final int index) {
+		for (final File file : dir.listFiles()) {
+			if (file.getName().endsWith("." + index)) {
+				return file;
+			}
+		}
+		return null;
+	}
+
+	private static void copyFile(final File from, final File to)
+			throws IOException {
+		final FileInputStream in = new FileInputStream(from);
+		try {
+			final FileOutputStream out = new FileOutputStream(to);
+			try {
+				final byte[] buffer = new byte[4096];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					out.write(buffer, 0, read);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void flipByte(final File file, final long position)
+			throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(position);
+			final int b = raf.read();
+			raf.seek(position);
+			raf.write(b ^ 0x01);
+		} finally {
+			raf.close();
+		}
+	}
+
 	@Test
 	public void testHttpGet() throws Exception {
 		final CachingHttpClient hc = createCachingHttpClient();
@@ -98,6 +1673,13 @@ public class DiskLruHttpCacheStorageTest {
 		return hc;
 	}
 
+	private HttpCacheEntry createEntry(final long now, final Header[] headers) {
+		final StatusLine statusLine = new BasicStatusLine(new ProtocolVersion(
+				"HTTP", 1, 1), 200, "OK");
+		return new HttpCacheEntry(new Date(now), new Date(now), statusLine,
+				headers, new HeapResource(new byte[] { 1, 2, 3 }));
+	}
+
 	private void assertEquals(HttpCacheEntry expected, HttpCacheEntry actual) {
 		Assert.assertEquals(expected.getRequestDate(), actual.getRequestDate());
 		Assert.assertEquals(expected.getResponseDate(),
@@ -125,4 +1707,122 @@ public class DiskLruHttpCacheStorageTest {
 		}
 	}
 
+	/**
+	 * ファイルを使わない {@link EntryStore}。容量による追い出しは行わない。
+	 */
+	private static final class HeapEntryStore implements EntryStore {
+		private final Map<String, byte[][]> entries = new HashMap<String, byte[][]>();
+
+		public synchronized EntryFiles get(final String key) {
+			final byte[][] values = entries.get(key);
+			if (values == null) {
+				return null;
+			}
+			return new EntryFiles() {
+				public InputStream getInputStream(final int index) {
+					return new ByteArrayInputStream(values[index]);
+				}
+
+				public long getLength(final int index) {
+					return values[index].length;
+				}
+
+				public void close() {
+				}
+			};
+		}
+
+		public EntryFiles peek(final String key) {
+			return get(key);
+		}
+
+		public Editor edit(final String key) {
+			final ByteArrayOutputStream[] outs = new ByteArrayOutputStream[2];
+			return new Editor() {
+				public OutputStream newOutputStream(final int index) {
+					outs[index] = new ByteArrayOutputStream();
+					return outs[index];
+				}
+
+				public void commit() {
+					final byte[][] values = new byte[outs.length][];
+					for (int i = 0; i < outs.length; i++) {
+						values[i] = outs[i].toByteArray();
+					}
+					synchronized (HeapEntryStore.this) {
+						entries.put(key, values);
+					}
+				}
+
+				public void abort() {
+				}
+			};
+		}
+
+		public synchronized boolean remove(final String key) {
+			return entries.remove(key) != null;
+		}
+
+		public synchronized boolean contains(final String key) {
+			return entries.containsKey(key);
+		}
+
+		public synchronized List<String> keys() {
+			return new ArrayList<String>(entries.keySet());
+		}
+
+		public synchronized long size() {
+			long size = 0;
+			for (final byte[][] values : entries.values()) {
+				for (final byte[] value : values) {
+					size += value.length;
+				}
+			}
+			return size;
+		}
+
+		public void flush() {
+		}
+
+		public void sync(final Collection<String> keys) {
+		}
+
+		public void syncEntry(final String key) {
+		}
+
+		public void close() {
+		}
+
+		public synchronized void delete() {
+			entries.clear();
+		}
+	}
+
+	/**
+	 * 待機した分だけ進む時計。
+	 */
+	private static final class FakeTicker extends Ticker {
+		private long nanos;
+		private long slept;
+
+		@Override
+		synchronized long read() {
+			return nanos;
+		}
+
+		@Override
+		synchronized void sleep(final long nanos) {
+			this.nanos += nanos;
+			slept += nanos;
+		}
+
+		synchronized void advance(final long millis) {
+			nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+		}
+
+		synchronized long sleptMillis() {
+			return TimeUnit.NANOSECONDS.toMillis(slept);
+		}
+	}
+
 }
@@ -0,0 +1,335 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.Date;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ch.boye.httpclientandroidlib.Header;
+import ch.boye.httpclientandroidlib.ProtocolVersion;
+import ch.boye.httpclientandroidlib.client.cache.HttpCacheEntry;
+import ch.boye.httpclientandroidlib.client.cache.Resource;
+import ch.boye.httpclientandroidlib.impl.client.cache.HeapResource;
+import ch.boye.httpclientandroidlib.message.BasicHeader;
+import ch.boye.httpclientandroidlib.message.BasicStatusLine;
+
+public class SegmentHttpCacheStorageTest {
+
+	@Test
+	public void testGetPutAndReopen() throws Exception {
+		final File dir = new File("segments");
+		SegmentHttpCacheStorage storage = new SegmentHttpCacheStorage(dir,
+				1000 * 1000);
+		try {
+			final HttpCacheEntry entry = createEntry(new byte[] { 5, 4, 3, 2,
+					1 }, new Header[] { new BasicHeader("ETag", "\"1\""),
+					new BasicHeader("Content-Type", "image/png") });
+			storage.putEntry("http://example.com:80/a", entry);
+			storage.putEntry("http://example.com:80/b",
+					createEntry(new byte[] { 1 }, new Header[0]));
+			storage.removeEntry("http://example.com:80/b");
+			assertEquals(entry, storage.getEntry("http://example.com:80/a"));
+			Assert.assertNull(storage.getEntry("http://example.com:80/b"));
+
+			// 再起動後もセグメントから読み込める
+			storage.close();
+			storage = new SegmentHttpCacheStorage(dir, 1000 * 1000);
+			assertEquals(entry, storage.getEntry("http://example.com:80/a"));
+			Assert.assertNull(storage.getEntry("http://example.com:80/b"));
+		} finally {
+			storage.delete();
+		}
+	}
+
+	@Test
+	public void testRemoveVariants() throws Exception {
+		final File dir = new File("segments-variants");
+		final SegmentHttpCacheStorage storage = new SegmentHttpCacheStorage(
+				dir, 1000 * 1000);
+		try {
+			final HttpCacheEntry entry = createEntry(new byte[] { 1, 2, 3 },
+					new Header[0]);
+			storage.putEntry("http://example.com:80/", entry);
+			storage.putEntry("{Accept-Encoding=gzip}http://example.com:80/",
+					entry);
+			storage.putEntry("{Accept-Encoding=gzip}http://example.com:80/other",
+					entry);
+			storage.removeEntry("http://example.com:80/");
+			Assert.assertNull(storage
+					.getEntry("{Accept-Encoding=gzip}http://example.com:80/"));
+			Assert.assertNotNull(storage
+					.getEntry("{Accept-Encoding=gzip}http://example.com:80/other"));
+		} finally {
+			storage.delete();
+		}
+	}
+
+	@Test
+	public void testEvictionAndCompaction() throws Exception {
+		final File dir = new File("segments-compaction");
+		SegmentHttpCacheStorage storage = new SegmentHttpCacheStorage(dir,
+				20 * 1000, 2 * 1000);
+		try {
+			final byte[] body = new byte[500];
+			for (int i = 0; i < 100; i++) {
+				storage.putEntry("http://example.com:80/" + (i % 10),
+						createEntry(body, new Header[] { new BasicHeader(
+								"X-Generation", Integer.toString(i)) }));
+			}
+			storage.compact();
+			Assert.assertTrue(storage.size() <= 20 * 1000);
+			Assert.assertTrue(segmentBytes(dir) <= 2 * 20 * 1000 + 2 * 1000);
+			for (int i = 0; i < 10; i++) {
+				final HttpCacheEntry entry = storage
+						.getEntry("http://example.com:80/" + i);
+				Assert.assertEquals(Integer.toString(90 + i),
+						entry.getFirstHeader("X-Generation").getValue());
+				Assert.assertArrayEquals(body, readAll(entry.getResource()));
+				entry.getResource().dispose();
+			}
+
+			// 容量を超えると古いものから追い出される
+			final byte[] large = new byte[15 * 1000];
+			storage.putEntry("http://example.com:80/large",
+					createEntry(large, new Header[0]));
+			Assert.assertTrue(storage.size() <= 20 * 1000);
+			Assert.assertNull(storage.getEntry("http://example.com:80/0"));
+			Assert.assertNotNull(storage.getEntry("http://example.com:80/large"));
+
+			storage.close();
+			storage = new SegmentHttpCacheStorage(dir, 20 * 1000, 2 * 1000);
+			Assert.assertNull(storage.getEntry("http://example.com:80/0"));
+			Assert.assertNotNull(storage.getEntry("http://example.com:80/9"));
+		} finally {
+			storage.delete();
+		}
+	}
+
+	@Test
+	public void testCompactionWhileReading() throws Exception {
+		final File dir = new File("segments-pinned");
+		SegmentHttpCacheStorage storage = new SegmentHttpCacheStorage(dir,
+				1000 * 1000, 1000);
+		try {
+			final byte[] body = new byte[600];
+			storage.putEntry("http://example.com:80/x",
+					createEntry(body, new Header[0]));
+			storage.putEntry("http://example.com:80/y",
+					createEntry(body, new Header[0]));
+			// segment-0 の PUT を読み込み中のまま、segment-1 に REMOVE を書く
+			final HttpCacheEntry pinned = storage
+					.getEntry("http://example.com:80/x");
+			storage.removeEntry("http://example.com:80/x");
+			for (int i = 0; i < 6; i++) {
+				storage.putEntry("http://example.com:80/y",
+						createEntry(body, new Header[0]));
+			}
+			storage.compact();
+			// REMOVE を含む segment-1 は削除され、segment-0 は読み込み中なので残っている
+			Assert.assertFalse(new File(dir, "segment-1").exists());
+			Assert.assertTrue(new File(dir, "segment-0").exists());
+			Assert.assertArrayEquals(body, readAll(pinned.getResource()));
+
+			// 残っていた segment-0 の PUT は再起動後に復活しない
+			storage.close();
+			storage = new SegmentHttpCacheStorage(dir, 1000 * 1000, 1000);
+			Assert.assertFalse(new File(dir, "segment-0").exists());
+			Assert.assertNull(storage.getEntry("http://example.com:80/x"));
+
+			// CachingHttpClient と同じように、返された Resource を dispose せずに捨てる
+			Assert.assertNotNull(storage.getEntry("http://example.com:80/y"));
+			for (int i = 0; i < 6; i++) {
+				storage.putEntry("http://example.com:80/y",
+						createEntry(body, new Header[0]));
+			}
+			storage.compact();
+			Assert.assertTrue(retiredSegmentCount(dir) > 0);
+			// Resource が回収されると、退役したセグメントは削除される
+			for (int i = 0; i < 100 && retiredSegmentCount(dir) > 0; i++) {
+				System.gc();
+				Thread.sleep(10);
+				storage.getEntry("http://example.com:80/none");
+			}
+			Assert.assertEquals(0, retiredSegmentCount(dir));
+		} finally {
+			storage.delete();
+		}
+	}
+
+	@Test
+	public void testTruncatedSegment() throws Exception {
+		final File dir = new File("segments-truncated");
+		SegmentHttpCacheStorage storage = new SegmentHttpCacheStorage(dir,
+				1000 * 1000);
+		try {
+			storage.putEntry("http://example.com:80/a",
+					createEntry(new byte[] { 1, 2, 3 }, new Header[0]));
+			storage.putEntry("http://example.com:80/b",
+					createEntry(new byte[] { 4, 5, 6 }, new Header[0]));
+			storage.close();
+
+			// 最後のレコードが途中までしか書かれていない状態にする
+			final RandomAccessFile raf = new RandomAccessFile(new File(dir,
+					"segment-0"), "rw");
+			try {
+				raf.setLength(raf.length() - 5);
+			} finally {
+				raf.close();
+			}
+
+			storage = new SegmentHttpCacheStorage(dir, 1000 * 1000);
+			Assert.assertNotNull(storage.getEntry("http://example.com:80/a"));
+			Assert.assertNull(storage.getEntry("http://example.com:80/b"));
+			storage.putEntry("http://example.com:80/b",
+					createEntry(new byte[] { 4, 5, 6 }, new Header[0]));
+			storage.close();
+			storage = new SegmentHttpCacheStorage(dir, 1000 * 1000);
+			final HttpCacheEntry entry = storage
+					.getEntry("http://example.com:80/b");
+			Assert.assertArrayEquals(new byte[] { 4, 5, 6 },
+					readAll(entry.getResource()));
+		} finally {
+			storage.delete();
+		}
+	}
+
+	@Test
+	public void testChannelResource() throws Exception {
+		final File dir = new File("segments-channel");
+		final SegmentHttpCacheStorage storage = new SegmentHttpCacheStorage(
+				dir, 1000 * 1000);
+		try {
+			storage.putEntry("http://example.com:80/a",
+					createEntry(new byte[] { 1, 2, 3 }, new Header[0]));
+			storage.putEntry("http://example.com:80/b",
+					createEntry(new byte[] { 4, 5, 6, 7 }, new Header[0]));
+			final HttpCacheEntry entry = storage
+					.getEntry("http://example.com:80/a");
+			final ChannelResource resource = (ChannelResource) entry
+					.getResource();
+			try {
+				// 同じセグメントの次のレコードは読まない
+				final ByteBuffer buffer = ByteBuffer.allocate(100);
+				Assert.assertEquals(2, resource.read(buffer, 1));
+				Assert.assertEquals(-1, resource.read(buffer, 3));
+				buffer.flip();
+				Assert.assertEquals(2, buffer.get());
+				Assert.assertEquals(3, buffer.get());
+				Assert.assertFalse(buffer.hasRemaining());
+
+				final ByteArrayOutputStream out = new ByteArrayOutputStream();
+				Assert.assertEquals(3, resource.transferTo(0, 100,
+						Channels.newChannel(out)));
+				Assert.assertArrayEquals(new byte[] { 1, 2, 3 },
+						out.toByteArray());
+			} finally {
+				resource.dispose();
+			}
+		} finally {
+			storage.delete();
+		}
+	}
+
+	@Test
+	public void testInterruptedRead() throws Exception {
+		final File dir = new File("segments-interrupted");
+		final SegmentHttpCacheStorage storage = new SegmentHttpCacheStorage(
+				dir, 1000 * 1000);
+		try {
+			storage.putEntry("http://example.com:80/a",
+					createEntry(new byte[] { 1, 2, 3 }, new Header[0]));
+			final HttpCacheEntry entry = storage
+					.getEntry("http://example.com:80/a");
+			final ChannelResource resource = (ChannelResource) entry
+					.getResource();
+			// 割り込まれたスレッドの読み込みだけが失敗する
+			Thread.currentThread().interrupt();
+			try {
+				resource.read(ByteBuffer.allocate(3), 0);
+				Assert.fail();
+			} catch (ClosedByInterruptException expected) {
+			} finally {
+				Thread.interrupted();
+			}
+
+			// 同じセグメントの読み込みと追記は続けられる
+			Assert.assertArrayEquals(new byte[] { 1, 2, 3 },
+					readAll(resource));
+			storage.putEntry("http://example.com:80/b",
+					createEntry(new byte[] { 4, 5 }, new Header[0]));
+			Assert.assertArrayEquals(new byte[] { 4, 5 }, readAll(storage
+					.getEntry("http://example.com:80/b").getResource()));
+		} finally {
+			storage.delete();
+		}
+	}
+
+	private static int retiredSegmentCount(final File dir) {
+		int count = 0;
+		for (final String name : dir.list()) {
+			if (name.endsWith(Segment.RETIRED_SUFFIX)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static long segmentBytes(final File dir) {
+		long bytes = 0;
+		for (final File file : dir.listFiles()) {
+			bytes += file.length();
+		}
+		return bytes;
+	}
+
+	private static HttpCacheEntry createEntry(final byte[] body,
+			final Header[] headers) {
+		final long now = System.currentTimeMillis();
+		return new HttpCacheEntry(new Date(now - 1000), new Date(now),
+				new BasicStatusLine(new ProtocolVersion("HTTP", 1, 1), 200,
+						"OK"), headers, new HeapResource(body));
+	}
+
+	private static byte[] readAll(final Resource resource) throws IOException {
+		final InputStream in = resource.getInputStream();
+		try {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[1000];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void assertEquals(final HttpCacheEntry expected,
+			final HttpCacheEntry actual) throws IOException {
+		Assert.assertEquals(expected.getRequestDate(), actual.getRequestDate());
+		Assert.assertEquals(expected.getResponseDate(),
+				actual.getResponseDate());
+		Assert.assertEquals(expected.getStatusLine().toString(), actual
+				.getStatusLine().toString());
+		final Header[] expectedHeaders = expected.getAllHeaders();
+		final Header[] actualHeaders = actual.getAllHeaders();
+		Assert.assertEquals(expectedHeaders.length, actualHeaders.length);
+		for (int i = 0; i < expectedHeaders.length; i++) {
+			Assert.assertEquals(expectedHeaders[i].getName(),
+					actualHeaders[i].getName());
+			Assert.assertEquals(expectedHeaders[i].getValue(),
+					actualHeaders[i].getValue());
+		}
+		Assert.assertArrayEquals(readAll(expected.getResource()),
+				readAll(actual.getResource()));
+	}
+}
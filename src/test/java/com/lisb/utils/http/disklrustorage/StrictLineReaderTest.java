@@ -0,0 +1,140 @@
+package com.lisb.utils.http.disklrustorage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.lisb.utils.http.disklrustorage.compat.Charsets;
+import com.lisb.utils.http.disklrustorage.compat.Strings;
+
+public class StrictLineReaderTest {
+
+	@Test
+	public void testReadLine() throws Exception {
+		final StrictLineReader in = open("abc\r\n\ndef\n", 8192);
+		Assert.assertEquals("abc", in.readLine());
+		Assert.assertEquals("", in.readLine());
+		Assert.assertEquals("def", in.readLine());
+		try {
+			in.readLine();
+			Assert.fail();
+		} catch (EOFException expected) {
+		}
+		in.close();
+	}
+
+	@Test
+	public void testReadLineAcrossBuffers() throws Exception {
+		final StrictLineReader in = open("0123456789\r\nabcdefghij\n12\n", 4);
+		Assert.assertEquals("0123456789", in.readLine());
+		Assert.assertEquals("abcdefghij", in.readLine());
+		Assert.assertEquals(12, in.readInt());
+		in.close();
+	}
+
+	@Test
+	public void testReadLineBytes() throws Exception {
+		// CR と LF が別々のバッファに分かれる場合も含む
+		final StrictLineReader in = new StrictLineReader(
+				new ByteArrayInputStream(Strings.getBytes(
+						"abc\r\n\n0123456\r\n\u00e9\n", Charsets.UTF_8)), 4,
+				Charsets.UTF_8);
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		in.readLineBytes(out);
+		Assert.assertEquals(3, out.size());
+		in.readLineBytes(out);
+		Assert.assertEquals(3, out.size());
+		in.readLineBytes(out);
+		Assert.assertEquals(10, out.size());
+		in.readLineBytes(out);
+		final byte[] bytes = out.toByteArray();
+		Assert.assertEquals("abc0123456\u00e9",
+				StrictLineReader.decodeUtf8(bytes, 0, bytes.length));
+		in.close();
+	}
+
+	@Test
+	public void testReadNumbers() throws Exception {
+		final StrictLineReader in = open("0\n-1\n" + Long.MAX_VALUE + "\n"
+				+ Long.MIN_VALUE + "\r\n" + Integer.MAX_VALUE + "\n", 8192);
+		Assert.assertEquals(0, in.readInt());
+		Assert.assertEquals(-1, in.readInt());
+		Assert.assertEquals(Long.MAX_VALUE, in.readLong());
+		Assert.assertEquals(Long.MIN_VALUE, in.readLong());
+		Assert.assertEquals(Integer.MAX_VALUE, in.readInt());
+		in.close();
+	}
+
+	@Test
+	public void testReadInvalidNumbers() throws Exception {
+		final String[] invalids = { "", "-", "1a", " 1", "9223372036854775808",
+				"-9223372036854775809" };
+		for (final String invalid : invalids) {
+			final StrictLineReader in = open(invalid + "\n", 8192);
+			try {
+				in.readLong();
+				Assert.fail(invalid);
+			} catch (IOException expected) {
+			}
+			in.close();
+		}
+		final StrictLineReader in = open("2147483648\n", 8192);
+		try {
+			in.readInt();
+			Assert.fail();
+		} catch (IOException expected) {
+		}
+		in.close();
+	}
+
+	@Test
+	public void testWriteAndReadUtf8() throws Exception {
+		final String[] lines = { "ascii", "", "Latin-1 \u00e9\u00ff",
+				"\u65e5\u672c\u8a9e\u306e\u7406\u7531", "\ud83d\ude00 emoji",
+				"unpaired \ud83d" };
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final StrictLineWriter out = new StrictLineWriter(bytes);
+		for (final String line : lines) {
+			out.writeLine(line);
+		}
+		out.writeLine(Long.MIN_VALUE);
+		out.writeLine(-42);
+		out.close();
+
+		// 小さいバッファで、複数バイトの文字がバッファの境界をまたぐようにする
+		final StrictLineReader in = new StrictLineReader(
+				new ByteArrayInputStream(bytes.toByteArray()), 5,
+				Charsets.UTF_8);
+		for (int i = 0; i < lines.length - 1; i++) {
+			Assert.assertEquals(lines[i], in.readLine());
+		}
+		Assert.assertEquals("unpaired ?", in.readLine());
+		Assert.assertEquals(Long.MIN_VALUE, in.readLong());
+		Assert.assertEquals(-42, in.readInt());
+		in.close();
+	}
+
+	@Test(expected = IOException.class)
+	public void testWriteLineBreak() throws Exception {
+		new StrictLineWriter(new ByteArrayOutputStream()).writeLine("a\nb");
+	}
+
+	@Test
+	public void testReadKnownString() throws Exception {
+		final StringTable table = new StringTable("known");
+		final String known = "known";
+		final StrictLineReader in = open("known\nunknown\n", 8192);
+		Assert.assertSame(known, in.readLine(table));
+		Assert.assertEquals("unknown", in.readLine(table));
+		in.close();
+	}
+
+	private static StrictLineReader open(final String data, final int capacity) {
+		return new StrictLineReader(new ByteArrayInputStream(Strings.getBytes(
+				data, Charsets.US_ASCII)), capacity, Charsets.US_ASCII);
+	}
+}